@@ -0,0 +1,217 @@
+/*
+ * Created on Oct 18, 2026
+ *
+ */
+package org.reactome.factorgraph;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.apache.commons.math3.distribution.NormalDistribution;
+
+/**
+ * Seeded builders of FactorGraphs used by the JMH benchmarks. Factor values are generated in the same
+ * way as in TestUtilities: the first variable in a factor is the output, whose expected state is the
+ * geometric mean of the states of the other variables (reversed for an inhibition), and a value is the
+ * two-sided p-value of the difference between a state and the expected state.
+ */
+public class BenchmarkGraphs {
+    // The fraction of inhibition factors so that graphs have frustrated loops
+    private static final double INHIBITION_RATIO = 0.2d;
+
+    /**
+     * Create a FactorGraph with the passed number of variables. Each variable is contained by
+     * about degree factors, each of which has arity variables. Variables are wired into factors
+     * randomly so the graph has loops for degree > 1.
+     * @param variables
+     * @param states
+     * @param arity
+     * @param degree
+     * @param seed
+     * @return
+     */
+    public static FactorGraph createGraph(int variables,
+                                          int states,
+                                          int arity,
+                                          int degree,
+                                          long seed) {
+        Random random = new Random(seed);
+        List<Variable> varList = createVariables(variables, states);
+        Set<Factor> factors = new LinkedHashSet<Factor>();
+        for (List<Variable> factorVars : wireVariables(varList, arity, degree, random)) {
+            boolean isInhibit = random.nextDouble() < INHIBITION_RATIO;
+            factors.add(createFactor(factorVars, isInhibit));
+        }
+        return createFactorGraph(factors);
+    }
+
+    /**
+     * Create a FactorGraph having pairwise EMFactors only, which can be used for EM learning.
+     * The first variable in a wired pair is the child.
+     * @param variables
+     * @param states
+     * @param degree
+     * @param seed
+     * @return
+     */
+    public static FactorGraph createEMGraph(int variables,
+                                            int states,
+                                            int degree,
+                                            long seed) {
+        Random random = new Random(seed);
+        List<Variable> varList = createVariables(variables, states);
+        Set<Factor> factors = new LinkedHashSet<Factor>();
+        for (List<Variable> pair : wireVariables(varList, 2, degree, random)) {
+            Variable child = pair.get(0);
+            Variable parent = pair.get(1);
+            boolean isInhibit = random.nextDouble() < INHIBITION_RATIO;
+            double[] values = createFactor(pair, isInhibit).getValues();
+            // Values are conditional probabilities of the child for each parent state
+            for (int i = 0; i < parent.getStates(); i++) {
+                double sum = 0.0d;
+                for (int j = 0; j < child.getStates(); j++)
+                    sum += values[i * child.getStates() + j];
+                for (int j = 0; j < child.getStates(); j++)
+                    values[i * child.getStates() + j] /= sum;
+            }
+            factors.add(new EMFactor(parent, child, values));
+        }
+        return createFactorGraph(factors);
+    }
+
+    /**
+     * Create a list of observations by sampling states for a random subset of variables
+     * in the passed FactorGraph.
+     * @param fg
+     * @param samples
+     * @param observedRatio the fraction of variables to be observed
+     * @param seed
+     * @return
+     */
+    public static List<Observation<Integer>> createObservations(FactorGraph fg,
+                                                                int samples,
+                                                                double observedRatio,
+                                                                long seed) {
+        Random random = new Random(seed);
+        List<Variable> varList = getSortedVariables(fg);
+        Collections.shuffle(varList, random);
+        List<Variable> observedVars = varList.subList(0, (int) Math.ceil(varList.size() * observedRatio));
+        List<Observation<Integer>> observations = new ArrayList<Observation<Integer>>();
+        for (int i = 0; i < samples; i++) {
+            Observation<Integer> observation = new Observation<Integer>();
+            observation.setName("Sample" + i);
+            for (Variable var : observedVars)
+                observation.addAssignment(var, random.nextInt(var.getStates()));
+            observations.add(observation);
+        }
+        return observations;
+    }
+
+    /**
+     * Get variables sorted by ids so that the returned list is reproducible.
+     * @param fg
+     * @return
+     */
+    public static List<Variable> getSortedVariables(FactorGraph fg) {
+        List<Variable> varList = new ArrayList<Variable>(fg.getVariables());
+        Collections.sort(varList, (v1, v2) -> Integer.compare(Integer.parseInt(v1.getId()),
+                                                              Integer.parseInt(v2.getId())));
+        return varList;
+    }
+
+    private static List<Variable> createVariables(int variables,
+                                                  int states) {
+        List<Variable> varList = new ArrayList<Variable>(variables);
+        for (int i = 0; i < variables; i++) {
+            Variable var = new Variable(states);
+            var.setName("V" + i);
+            var.setId(i);
+            varList.add(var);
+        }
+        return varList;
+    }
+
+    /**
+     * Assign each variable to degree slots and pack shuffled slots into groups of arity
+     * distinct variables. Slots that cannot be packed at the end are dropped.
+     */
+    private static List<List<Variable>> wireVariables(List<Variable> varList,
+                                                      int arity,
+                                                      int degree,
+                                                      Random random) {
+        List<Variable> slots = new ArrayList<Variable>(varList.size() * degree);
+        for (int i = 0; i < degree; i++)
+            slots.addAll(varList);
+        Collections.shuffle(slots, random);
+        List<List<Variable>> groups = new ArrayList<List<Variable>>();
+        while (slots.size() >= arity) {
+            List<Variable> group = new ArrayList<Variable>(arity);
+            // Search from the end so that removal is cheap
+            for (int i = slots.size() - 1; i >= 0 && group.size() < arity; i--) {
+                Variable var = slots.get(i);
+                if (group.contains(var))
+                    continue;
+                group.add(var);
+                slots.set(i, slots.get(slots.size() - 1));
+                slots.remove(slots.size() - 1);
+            }
+            if (group.size() < arity)
+                break;
+            groups.add(group);
+        }
+        return groups;
+    }
+
+    private static Factor createFactor(List<Variable> variables,
+                                       boolean isInhibit) {
+        Factor factor = new Factor();
+        factor.setVariables(variables);
+        StringBuilder name = new StringBuilder();
+        for (int i = 1; i < variables.size(); i++) {
+            if (i > 1)
+                name.append(" + ");
+            name.append(variables.get(i).getName());
+        }
+        name.append(isInhibit ? " -| " : " -> ").append(variables.get(0).getName());
+        factor.setName(name.toString());
+        NormalDistribution normal = new NormalDistribution();
+        double[] values = factor.getValues();
+        int[] strides = factor.getStrideArray();
+        for (int i = 0; i < values.length; i++) {
+            // The first variable has stride 1
+            int output = i % variables.get(0).getStates();
+            double logExp = 0.0d;
+            for (int j = 1; j < variables.size(); j++) {
+                int states = variables.get(j).getStates();
+                int state = (i / strides[j]) % states;
+                if (isInhibit)
+                    state = states - 1 - state;
+                logExp += Math.log(state + 1);
+            }
+            double exp = Math.exp(logExp / (variables.size() - 1));
+            double diff = Math.abs(output + 1 - exp);
+            // Use two-sides p-value
+            values[i] = (1.0d - normal.cumulativeProbability(diff)) * 2.0d;
+        }
+        return factor;
+    }
+
+    private static FactorGraph createFactorGraph(Set<Factor> factors) {
+        FactorGraph fg = new FactorGraph();
+        fg.setFactors(factors);
+        fg.validatVariables();
+        // Don't call setIdsInFactors(), which depends on the order of a HashSet. Variables
+        // keep their ids assigned in createVariables().
+        int id = 0;
+        for (Variable var : fg.getVariables())
+            id = Math.max(id, Integer.parseInt(var.getId()) + 1);
+        for (Factor factor : factors)
+            factor.setId(id ++);
+        return fg;
+    }
+
+}
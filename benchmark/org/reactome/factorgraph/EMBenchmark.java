@@ -0,0 +1,87 @@
+/*
+ * Created on Oct 18, 2026
+ *
+ */
+package org.reactome.factorgraph;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmark for ExpectationMaximization.learn() on a graph having pairwise EMFactors only. A fixed
+ * number of EM iterations is run in each op, and factor values are reset before each op so that all
+ * ops do the same work.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class EMBenchmark {
+    private static final long SEED = 1234L;
+    // The fraction of variables observed in each sample
+    private static final double OBSERVED_RATIO = 0.5d;
+
+    @Param({"2", "3"})
+    private int states;
+    @Param({"2", "4", "8"})
+    private int degree;
+    @Param({"100"})
+    private int variables;
+    @Param({"20"})
+    private int evidences;
+    @Param({"5"})
+    private int iterations;
+
+    private FactorGraph fg;
+    private List<EMFactor> factors;
+    private List<double[]> initialValues;
+    private ExpectationMaximization em;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        fg = BenchmarkGraphs.createEMGraph(variables, states, degree, SEED);
+        factors = new ArrayList<EMFactor>();
+        initialValues = new ArrayList<double[]>();
+        for (Factor factor : fg.getFactors()) {
+            factors.add((EMFactor) factor);
+            initialValues.add(factor.getValues().clone());
+        }
+        em = new ExpectationMaximization();
+        em.setEvidences(BenchmarkGraphs.createObservations(fg, evidences, OBSERVED_RATIO, SEED));
+        em.setMaxIteration(iterations);
+        // Run all iterations
+        em.setTolerance(-1.0d);
+    }
+
+    @Setup(Level.Invocation)
+    public void resetValues() {
+        for (int i = 0; i < factors.size(); i++) {
+            EMFactor factor = factors.get(i);
+            double[] values = initialValues.get(i);
+            System.arraycopy(values, 0, factor.getValues(), 0, values.length);
+            factor.setValues(factor.getValues()); // Clear cached log values
+        }
+    }
+
+    @Benchmark
+    public double emLearn() throws InferenceCannotConvergeException {
+        return em.learn(fg, factors);
+    }
+
+}
@@ -0,0 +1,108 @@
+/*
+ * Created on Oct 18, 2026
+ *
+ */
+package org.reactome.factorgraph;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Micro-benchmarks for the message kernels used by LoopyBeliefPropagation on Factor and Variable
+ * objects. Edges and messages are created by running LBP once on a graph from BenchmarkGraphs, and
+ * then a single message is computed for a fixed factor or variable in each op. Run with "-prof gc"
+ * to get bytes allocated per op.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FactorKernelBenchmark {
+    private static final int VARIABLES = 200;
+    private static final long SEED = 1234L;
+
+    @Param({"2", "3"})
+    private int states;
+    @Param({"2", "3", "4"})
+    private int arity;
+    @Param({"2", "4", "8"})
+    private int degree;
+    @Param({"false", "true"})
+    private boolean logSpace;
+
+    private Factor factor;
+    private Variable factorTarget;
+    private Variable variable;
+    private Factor variableTarget;
+    // A copy of factor values (logs for logSpace) used by marginalize() and maximize()
+    private double[] factorValues;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        FactorGraph fg = BenchmarkGraphs.createGraph(VARIABLES, states, arity, degree, SEED);
+        LoopyBeliefPropagation lbp = new LoopyBeliefPropagation();
+        // Edges are used by the kernels
+        lbp.setUseCompiledGraph(false);
+        lbp.setUseLogSpace(logSpace);
+        lbp.setFactorGraph(fg);
+        try {
+            lbp.runInference();
+        }
+        catch(InferenceCannotConvergeException e) {
+            // Messages are still good for the kernels
+        }
+        // Pick the variable having the largest number of factors so that degree is reached
+        for (Variable var : BenchmarkGraphs.getSortedVariables(fg)) {
+            if (variable == null || var.getInEdges().size() > variable.getInEdges().size())
+                variable = var;
+        }
+        variableTarget = (Factor) variable.getOutEdges().get(0).getToNode();
+        factor = variableTarget;
+        List<Variable> variables = factor.getVariables();
+        factorTarget = variables.get(variables.size() - 1);
+        double[] values = logSpace ? factor.getLogValues() : factor.getValues();
+        factorValues = new double[values.length];
+        System.arraycopy(values, 0, factorValues, 0, values.length);
+    }
+
+    @Benchmark
+    public double[] factorSendMessageSumProduct() {
+        return factor.sendMessage(factorTarget, InferenceType.SUM_PRODUCT, logSpace);
+    }
+
+    @Benchmark
+    public double[] factorSendMessageMaxProduct() {
+        return factor.sendMessage(factorTarget, InferenceType.MAX_PRODUCT, logSpace);
+    }
+
+    @Benchmark
+    public double[] variableSendMessage() {
+        return variable.sendMessage(variableTarget, InferenceType.SUM_PRODUCT, logSpace);
+    }
+
+    @Benchmark
+    public double[] factorMarginalize() {
+        return factor.marginalize(factorValues, factorTarget);
+    }
+
+    @Benchmark
+    public double[] factorMaximize() {
+        return factor.maximize(factorValues, factorTarget, logSpace);
+    }
+
+}
@@ -0,0 +1,66 @@
+/*
+ * Created on Oct 18, 2026
+ *
+ */
+package org.reactome.factorgraph;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmark for a whole inference run of LoopyBeliefPropagation with an observation on a graph from
+ * BenchmarkGraphs. Run with "-prof gc" to get bytes allocated per run. See GibbsBenchmark for GibbsSampling.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class InferenceBenchmark {
+    private static final long SEED = 1234L;
+    // The fraction of variables observed
+    private static final double OBSERVED_RATIO = 0.1d;
+
+    @Param({"2", "3"})
+    private int states;
+    @Param({"2", "3", "4"})
+    private int arity;
+    @Param({"2", "4", "8"})
+    private int degree;
+    @Param({"200"})
+    private int variables;
+    @Param({"false", "true"})
+    private boolean compiled;
+
+    private LoopyBeliefPropagation lbp;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        FactorGraph fg = BenchmarkGraphs.createGraph(variables, states, arity, degree, SEED);
+        Observation<Integer> observation = BenchmarkGraphs.createObservations(fg, 1, OBSERVED_RATIO, SEED).get(0);
+        lbp = new LoopyBeliefPropagation();
+        lbp.setUseCompiledGraph(compiled);
+        lbp.setFactorGraph(fg);
+        lbp.setObservation(observation);
+    }
+
+    @Benchmark
+    public LoopyBeliefPropagation lbpRunInference() throws InferenceCannotConvergeException {
+        lbp.runInference();
+        return lbp;
+    }
+
+}
@@ -5,9 +5,14 @@
 package org.reactome.factorgraph;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.reactome.factorgraph.InferenceMetrics.Outcome;
+import org.reactome.factorgraph.InferenceMetrics.Phase;
 
 /**
  * An abstract Inferencer to provide some common attributes and methods.
@@ -28,6 +33,10 @@ public abstract class AbstractInferencer implements Inferencer {
     // These two properties are related to CLGFactors and CLGVariables
     private List<Factor> factorsFromContinuous; // Marginalized from CLGFactors
     private List<ContinuousFactor> continuousFactors; // CLGFactors in the original FactorGraph
+    // Listeners to get metrics of inference runs
+    private List<InferenceListener> listeners;
+    // Cached for inference on packed arrays
+    private CompiledFactorGraph compiledGraph;
     
     protected AbstractInferencer() {
     }
@@ -48,6 +57,20 @@ public abstract class AbstractInferencer implements Inferencer {
         return this.factorGraph;
     }
     
+    /**
+     * Get the CompiledFactorGraph for the FactorGraph set in this object. The CompiledFactorGraph is
+     * cached and re-created if the structure of the FactorGraph has been changed since it was compiled.
+     * See CompiledFactorGraph.isCompiledFrom() for details.
+     * @return
+     */
+    public synchronized CompiledFactorGraph getCompiledGraph() {
+        if (factorGraph == null)
+            throw new IllegalArgumentException("The target FactorGraph has not been assigned.");
+        if (compiledGraph == null || !compiledGraph.isCompiledFrom(factorGraph))
+            compiledGraph = new CompiledFactorGraph(factorGraph);
+        return compiledGraph;
+    }
+    
     /* (non-Javadoc)
      * @see org.reactome.factorgraph.Inferencer#setObservation(java.util.Map)
      */
@@ -118,6 +141,105 @@ public abstract class AbstractInferencer implements Inferencer {
         return this.maxDiff;
     }
     
+    /**
+     * Add an InferenceListener to get metrics of inference runs. No metrics is collected if
+     * there is no listener.
+     * @param listener
+     */
+    public void addInferenceListener(InferenceListener listener) {
+        if (listeners == null)
+            listeners = new CopyOnWriteArrayList<InferenceListener>();
+        if (!listeners.contains(listener))
+            listeners.add(listener);
+    }
+    
+    public void removeInferenceListener(InferenceListener listener) {
+        if (listeners != null)
+            listeners.remove(listener);
+    }
+    
+    public List<InferenceListener> getInferenceListeners() {
+        if (listeners == null)
+            return Collections.emptyList();
+        return Collections.unmodifiableList(listeners);
+    }
+    
+    /**
+     * Create an InferenceMetrics object for a new inference run.
+     * @param observation
+     * @return null if no InferenceListener has been registered.
+     */
+    protected InferenceMetrics startMetrics(Observation<? extends Number> observation) {
+        if (listeners == null || listeners.isEmpty())
+            return null;
+        return new InferenceMetrics(getClass().getSimpleName(), factorGraph, observation);
+    }
+    
+    /**
+     * Record the time of the passed phase.
+     * @param metrics
+     * @param phase
+     * @param startTime the start time from System.nanoTime()
+     */
+    protected void finishPhase(InferenceMetrics metrics,
+                               Phase phase,
+                               long startTime) {
+        if (metrics == null)
+            return;
+        reportPhase(metrics, phase, System.nanoTime() - startTime);
+    }
+    
+    /**
+     * Record the passed time for the passed phase.
+     * @param metrics
+     * @param phase
+     * @param nanos
+     */
+    protected void reportPhase(InferenceMetrics metrics,
+                               Phase phase,
+                               long nanos) {
+        if (metrics == null)
+            return;
+        metrics.addPhaseTime(phase, nanos);
+        for (InferenceListener listener : listeners)
+            listener.phaseFinished(metrics, phase, nanos);
+    }
+    
+    protected void finishIteration(InferenceMetrics metrics,
+                                   int iteration,
+                                   double maxDiff) {
+        if (metrics == null)
+            return;
+        metrics.addIteration(maxDiff);
+        for (InferenceListener listener : listeners)
+            listener.iterationFinished(metrics, iteration, maxDiff);
+    }
+    
+    /**
+     * Report the time used to calculate logZ. The passed metrics should be created for the
+     * calculation itself, not for the inference run before it.
+     * @param metrics
+     * @param startTime the start time from System.nanoTime()
+     */
+    protected void finishLogZ(InferenceMetrics metrics,
+                              long startTime) {
+        if (metrics == null)
+            return;
+        long nanos = System.nanoTime() - startTime;
+        metrics.addPhaseTime(Phase.LOGZ, nanos);
+        for (InferenceListener listener : listeners)
+            listener.logZCalculated(metrics, nanos);
+    }
+    
+    protected void finishInference(InferenceMetrics metrics,
+                                   Outcome outcome) {
+        if (metrics == null)
+            return;
+        metrics.finish(outcome);
+        for (InferenceListener listener : listeners)
+            listener.inferenceFinished(metrics);
+    }
+    
 //  private double calculateMaxDiff(FactorGraph fg) {
 //  double maxDiff = 0.0d;
 //  Set<FGNode> nodes = new HashSet<FGNode>(fg.getVariables());
@@ -217,6 +339,9 @@ public abstract class AbstractInferencer implements Inferencer {
      * @return
      */
     public double calculateLogZ() {
+        // Not a part of the inference run, which has been finished
+        InferenceMetrics metrics = startMetrics(observation);
+        long time = System.nanoTime();
         double logZ = 0.0d;
         double tmp = 0.0d; // Just a tmp variable
         for (Variable variable : factorGraph.getVariables()) {
@@ -245,6 +370,7 @@ public abstract class AbstractInferencer implements Inferencer {
                 }
             }
         }
+        finishLogZ(metrics, time);
         return logZ;
     }
     
@@ -267,22 +393,37 @@ public abstract class AbstractInferencer implements Inferencer {
             factor.setVariables(list);
             var.addFactor(factor);
             double[] values = new double[var.getStates()];
-            if (var.getStates() == 2) { // Two states for perturbation 
-                // The value should be the strength. The largest should be 1.0
-                double value = varToValue.get(var).doubleValue();
-                if (value > 1.0d || value < 0.0d)
-                    throw new IllegalStateException(var + " value should be in [0, 1]. The assigne value is: " + value);
-                values[0] = 1.0d - value;
-                values[1] = value;
-            }
-            else // More than two states
-                values[varToValue.get(var).intValue()] = 1.0d;
+            fillObservedValues(var, varToValue.get(var), values, 0);
             factor.setValues(values);
             factorGraph.addFactor(factor);
             observationFactors.add(factor);
         }
     }
 
+    /**
+     * Fill the likelihood of an observed value for the passed Variable into the passed array starting
+     * from offset. For a two-state variable, the observed value should be the strength in [0, 1]. Otherwise,
+     * the observed value should be the state.
+     */
+    static void fillObservedValues(Variable var, 
+                                   Number observedValue,
+                                   double[] values,
+                                   int offset) {
+        if (var.getStates() == 2) { // Two states for perturbation 
+            // The value should be the strength. The largest should be 1.0
+            double value = observedValue.doubleValue();
+            if (value > 1.0d || value < 0.0d)
+                throw new IllegalStateException(var + " value should be in [0, 1]. The assigne value is: " + value);
+            values[offset] = 1.0d - value;
+            values[offset + 1] = value;
+        }
+        else { // More than two states
+            for (int i = 0; i < var.getStates(); i++)
+                values[offset + i] = 0.0d;
+            values[offset + observedValue.intValue()] = 1.0d;
+        }
+    }
+
     protected void detachObservation() {
         if (observation == null)
             return;
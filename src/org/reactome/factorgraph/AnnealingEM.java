@@ -80,4 +80,12 @@ public class AnnealingEM extends ExpectationMaximization {
         }
     }
     
+    @Override
+    protected void expect(double[] beliefs, 
+                          int offset,
+                          double[] counts) {
+        for (int i = 0; i < counts.length; i++)
+            counts[i] += Math.pow(beliefs[offset + i], currentBeta);
+    }
+    
 }
@@ -0,0 +1,519 @@
+/*
+ * Created on Oct 18, 2026
+ *
+ */
+package org.reactome.factorgraph;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Loopy belief propagation for a batch of observations on the same CompiledFactorGraph. Messages
+ * are laid out as [edge][sample][state] so that a factor table is walked once for all samples in
+ * the batch when messages are sent from this factor. Samples are retired one by one as they converge
+ * so that no work is spent on converged samples. The ALL_OUTGOING order is used for each iteration
+ * (all factors first, then all variables) so that the result for a sample doesn't depend on other
+ * samples in the batch.
+ */
+class BatchMessagePassing {
+    private CompiledFactorGraph graph;
+    private InferenceType inferenceType;
+    private boolean logSpace;
+    // The maximum number of samples
+    private int capacity;
+    // The number of samples in the current batch
+    private int samples;
+    // Evidence: [variable][sample][state]
+    private double[] evidence;
+    // Messages: [edge][sample][state]
+    private double[] varToFactor;
+    private double[] factorToVar;
+    // Factor table for active samples: [cell][active sample]
+    private double[] tableBuffer;
+    private double[] directTableBuffer;
+    // Messages for active samples: [active sample][state]
+    private double[] messageBuffer;
+    private double[] prefixBuffer;
+    private double[] suffixBuffer;
+    // Per sample
+    private double[] maxDiffs;
+    private boolean[] failed;
+    // Samples that have not converged yet
+    private int[] activeSamples;
+    private int activeCount;
+
+    public BatchMessagePassing(CompiledFactorGraph graph,
+                               InferenceType inferenceType,
+                               boolean logSpace,
+                               int capacity) {
+        this.graph = graph;
+        this.inferenceType = inferenceType;
+        this.logSpace = logSpace;
+        this.capacity = capacity;
+        evidence = new double[graph.varOffset[graph.getNumberOfVariables()] * capacity];
+        varToFactor = new double[graph.messageSize * capacity];
+        factorToVar = new double[graph.messageSize * capacity];
+        tableBuffer = new double[graph.maxTableSize * capacity];
+        directTableBuffer = new double[graph.maxTableSize * capacity];
+        messageBuffer = new double[graph.maxStates * capacity];
+        prefixBuffer = new double[graph.maxStates];
+        suffixBuffer = new double[(graph.maxDegree + 1) * graph.maxStates];
+        maxDiffs = new double[capacity];
+        failed = new boolean[capacity];
+        activeSamples = new int[capacity];
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public InferenceType getInferenceType() {
+        return inferenceType;
+    }
+
+    public boolean isLogSpace() {
+        return logSpace;
+    }
+
+    /**
+     * Start a new batch: evidence is set from the passed observations, and all messages are
+     * set to the passed initial message, or messages in the passed snapshot if it is not null.
+     * @param observations
+     * @param initialMessage
+     * @param snapshot
+     */
+    public void initialize(List<? extends Observation<? extends Number>> observations,
+                           double initialMessage,
+                           MessageSnapshot snapshot) {
+        if (observations.size() > capacity)
+            throw new IllegalArgumentException("Too many observations for a batch: " + observations.size() + " > " + capacity);
+        samples = observations.size();
+        double value = logSpace ? Math.log(initialMessage) : initialMessage;
+        Arrays.fill(varToFactor, value);
+        Arrays.fill(factorToVar, value);
+        if (snapshot != null)
+            restoreMessages(snapshot);
+        Arrays.fill(evidence, logSpace ? 0.0d : 1.0d);
+        for (int b = 0; b < samples; b++) {
+            setEvidence(b, observations.get(b));
+            failed[b] = false;
+            activeSamples[b] = b;
+        }
+        activeCount = samples;
+    }
+
+    private void setEvidence(int sample, Observation<? extends Number> observation) {
+        double[] values = prefixBuffer;
+        if (observation != null && observation.getVariableAssignments() != null) {
+            for (VariableAssignment<? extends Number> varAssgn : observation.getVariableAssignments()) {
+                int v = graph.getVariableIndex(varAssgn.getVariable());
+                if (v < 0 || varAssgn.getAssignment() == null) // e.g. ContinuousVariable
+                    continue;
+                AbstractInferencer.fillObservedValues(varAssgn.getVariable(),
+                                                      varAssgn.getAssignment(),
+                                                      values,
+                                                      0);
+                multiplyEvidence(v, sample, values);
+            }
+        }
+        for (int i = 0; i < graph.getNumberOfContinuousFactors(); i++) {
+            ContinuousFactor factor = graph.getContinuousFactor(i);
+            VariableAssignment<? extends Number> varAssgn = null;
+            if (observation != null)
+                varAssgn = observation.getVariableAssignment(factor.getContinuousVariable());
+            // The returned array is reused by the factor
+            synchronized (factor) {
+                multiplyEvidence(graph.continuousFactorVariable[i],
+                                 sample,
+                                 factor.marginalizeForDiscrete(varAssgn));
+            }
+        }
+    }
+
+    private void multiplyEvidence(int v, int sample, double[] values) {
+        int states = graph.varStates[v];
+        int offset = graph.varOffset[v] * capacity + sample * states;
+        for (int s = 0; s < states; s++) {
+            if (logSpace)
+                evidence[offset + s] += Math.log(values[s]);
+            else
+                evidence[offset + s] *= values[s];
+        }
+    }
+
+    private void restoreMessages(MessageSnapshot snapshot) {
+        double[] message = prefixBuffer;
+        for (int f = 0; f < graph.getNumberOfFactors(); f++) {
+            Factor factor = graph.getFactor(f);
+            int start = graph.factorEdgeStart[f];
+            for (int e = start; e < graph.factorEdgeStart[f + 1]; e++) {
+                int states = graph.varStates[graph.edgeVariable[e]];
+                int offset = graph.messageOffset[e] * capacity;
+                if (!snapshot.copyMessage(factor, e - start, true, message, 0, logSpace))
+                    break; // Not in the snapshot
+                for (int b = 0; b < capacity; b++)
+                    System.arraycopy(message, 0, varToFactor, offset + b * states, states);
+                snapshot.copyMessage(factor, e - start, false, message, 0, logSpace);
+                for (int b = 0; b < capacity; b++)
+                    System.arraycopy(message, 0, factorToVar, offset + b * states, states);
+            }
+        }
+    }
+
+    /**
+     * Get the number of samples that have not been retired.
+     * @return
+     */
+    public int getActiveCount() {
+        return activeCount;
+    }
+
+    public int getActiveSample(int index) {
+        return activeSamples[index];
+    }
+
+    public double getMaxDiff(int sample) {
+        return maxDiffs[sample];
+    }
+
+    /**
+     * Check if a NaN message has been generated for the passed sample. A failed sample is
+     * retired automatically.
+     * @param sample
+     * @return
+     */
+    public boolean isFailed(int sample) {
+        return failed[sample];
+    }
+
+    /**
+     * Retire samples flagged in the passed array so that their messages will not be updated
+     * any more.
+     * @param retired indexed by sample
+     */
+    public void retire(boolean[] retired) {
+        int count = 0;
+        for (int i = 0; i < activeCount; i++) {
+            int b = activeSamples[i];
+            if (!retired[b] && !failed[b])
+                activeSamples[count ++] = b;
+        }
+        activeCount = count;
+    }
+
+    /**
+     * Perform one iteration for all active samples.
+     */
+    public void sweep() {
+        for (int i = 0; i < activeCount; i++)
+            maxDiffs[activeSamples[i]] = 0.0d;
+        for (int f = 0; f < graph.getNumberOfFactors(); f++)
+            sendFactorMessages(f);
+        for (int v = 0; v < graph.getNumberOfVariables(); v++)
+            sendVariableMessages(v);
+    }
+
+    /**
+     * Send messages from a factor to all its variables for all active samples. The factor table is
+     * multiplied with all incoming messages once for all samples. The message to a variable is
+     * calculated by dividing the marginal by the incoming message from the variable as in
+     * CompiledMessagePassing. If an incoming message contains a zero, messages along that edge are
+     * calculated directly.
+     * @param f
+     */
+    private void sendFactorMessages(int f) {
+        int active = activeCount;
+        int size = fillFactorTable(f, -1, tableBuffer);
+        double[] message = messageBuffer;
+        int end = graph.factorEdgeStart[f + 1];
+        for (int e = graph.factorEdgeStart[f]; e < end; e++) {
+            int states = graph.varStates[graph.edgeVariable[e]];
+            marginalize(tableBuffer, size, e, message);
+            int messageStart = graph.messageOffset[e] * capacity;
+            boolean needDirect = false;
+            for (int k = 0; k < active && !needDirect; k++) {
+                int offset = messageStart + activeSamples[k] * states;
+                for (int s = 0; s < states; s++) {
+                    double in = varToFactor[offset + s];
+                    int index = k * states + s;
+                    if (logSpace) {
+                        if (message[index] == 0.0d || Double.isInfinite(in)) {
+                            needDirect = true;
+                            break;
+                        }
+                        message[index] = Math.log(message[index]) - in;
+                    }
+                    else {
+                        if (in == 0.0d) {
+                            needDirect = true;
+                            break;
+                        }
+                        message[index] /= in;
+                    }
+                }
+            }
+            if (needDirect) {
+                // Just re-calculate for all samples
+                int directSize = fillFactorTable(f, e, directTableBuffer);
+                marginalize(directTableBuffer, directSize, e, message);
+                for (int k = 0; k < active; k++) {
+                    normalize(message, k * states, states, false, logSpace);
+                    updateMessage(factorToVar, e, activeSamples[k], message, k * states, states);
+                }
+                continue;
+            }
+            for (int k = 0; k < active; k++) {
+                normalize(message, k * states, states, logSpace, logSpace);
+                updateMessage(factorToVar, e, activeSamples[k], message, k * states, states);
+            }
+        }
+    }
+
+    /**
+     * Fill the passed table for all active samples with the factor values multiplied by incoming
+     * messages except the one along the passed edge (-1 for all messages). The table is converted
+     * into the probability space if the log space is used.
+     * @return the size of the factor table
+     */
+    private int fillFactorTable(int f,
+                                int excludedEdge,
+                                double[] table) {
+        int tableStart = graph.tableOffset[f];
+        int size = graph.tableOffset[f + 1] - tableStart;
+        int active = activeCount;
+        for (int i = 0; i < size; i++) {
+            double value = logSpace ? graph.logTables[tableStart + i] : graph.tables[tableStart + i];
+            for (int k = 0; k < active; k++)
+                table[i * active + k] = value;
+        }
+        int end = graph.factorEdgeStart[f + 1];
+        for (int e = graph.factorEdgeStart[f]; e < end; e++) {
+            if (e == excludedEdge)
+                continue;
+            multiplyIn(table, size, e);
+        }
+        if (logSpace) {
+            for (int k = 0; k < active; k++)
+                convertLogToProb(table, k, active, size);
+        }
+        return size;
+    }
+
+    /**
+     * Marginalize (or maximize for MAX_PRODUCT) the passed table for the variable along the passed
+     * edge. The results are laid out as [active sample][state].
+     */
+    private void marginalize(double[] table,
+                             int size,
+                             int edge,
+                             double[] message) {
+        int active = activeCount;
+        int states = graph.varStates[graph.edgeVariable[edge]];
+        int stride = graph.edgeStride[edge];
+        Arrays.fill(message, 0, active * states, 0.0d);
+        int block = stride * states;
+        for (int outer = 0; outer < size; outer += block) {
+            for (int s = 0; s < states; s++) {
+                int start = outer + s * stride;
+                for (int i = start; i < start + stride; i++) {
+                    int cell = i * active;
+                    for (int k = 0; k < active; k++) {
+                        if (inferenceType == InferenceType.MAX_PRODUCT) {
+                            if (table[cell + k] > message[k * states + s])
+                                message[k * states + s] = table[cell + k];
+                        }
+                        else
+                            message[k * states + s] += table[cell + k];
+                    }
+                }
+            }
+        }
+    }
+
+    private void multiplyIn(double[] table,
+                            int size,
+                            int edge) {
+        int states = graph.varStates[graph.edgeVariable[edge]];
+        int stride = graph.edgeStride[edge];
+        int messageStart = graph.messageOffset[edge] * capacity;
+        int active = activeCount;
+        int block = stride * states;
+        for (int outer = 0; outer < size; outer += block) {
+            for (int s = 0; s < states; s++) {
+                int start = outer + s * stride;
+                for (int i = start; i < start + stride; i++) {
+                    int cell = i * active;
+                    for (int k = 0; k < active; k++) {
+                        double m = varToFactor[messageStart + activeSamples[k] * states + s];
+                        if (logSpace)
+                            table[cell + k] += m;
+                        else
+                            table[cell + k] *= m;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Send messages from a variable to all its factors for all active samples using
+     * prefix and suffix products of incoming messages.
+     * @param v
+     */
+    private void sendVariableMessages(int v) {
+        int start = graph.varEdgeStart[v];
+        int degree = graph.varEdgeStart[v + 1] - start;
+        int states = graph.varStates[v];
+        double identity = logSpace ? 0.0d : 1.0d;
+        double[] suffix = suffixBuffer;
+        double[] prefix = prefixBuffer;
+        double[] message = messageBuffer;
+        for (int k = 0; k < activeCount; k++) {
+            int b = activeSamples[k];
+            for (int s = 0; s < states; s++)
+                suffix[degree * states + s] = identity;
+            for (int i = degree - 1; i >= 0; i--) {
+                int offset = graph.messageOffset[graph.varEdges[start + i]] * capacity + b * states;
+                for (int s = 0; s < states; s++) {
+                    if (logSpace)
+                        suffix[i * states + s] = suffix[(i + 1) * states + s] + factorToVar[offset + s];
+                    else
+                        suffix[i * states + s] = suffix[(i + 1) * states + s] * factorToVar[offset + s];
+                }
+            }
+            System.arraycopy(evidence, graph.varOffset[v] * capacity + b * states, prefix, 0, states);
+            for (int i = 0; i < degree; i++) {
+                int edge = graph.varEdges[start + i];
+                int offset = graph.messageOffset[edge] * capacity + b * states;
+                for (int s = 0; s < states; s++) {
+                    if (logSpace)
+                        message[s] = prefix[s] + suffix[(i + 1) * states + s];
+                    else
+                        message[s] = prefix[s] * suffix[(i + 1) * states + s];
+                }
+                for (int s = 0; s < states; s++) {
+                    if (logSpace)
+                        prefix[s] += factorToVar[offset + s];
+                    else
+                        prefix[s] *= factorToVar[offset + s];
+                }
+                normalize(message, 0, states, logSpace, logSpace);
+                updateMessage(varToFactor, edge, b, message, 0, states);
+            }
+        }
+    }
+
+    private void updateMessage(double[] messages,
+                               int edge,
+                               int sample,
+                               double[] message,
+                               int from,
+                               int states) {
+        int offset = graph.messageOffset[edge] * capacity + sample * states;
+        for (int s = 0; s < states; s++) {
+            double value = message[from + s];
+            if (Double.isNaN(value)) {
+                // Keep the old message so that other samples are not affected
+                failed[sample] = true;
+                return;
+            }
+            double diff = Math.abs(value - messages[offset + s]);
+            if (diff > maxDiffs[sample])
+                maxDiffs[sample] = diff;
+            messages[offset + s] = value;
+        }
+    }
+
+    /**
+     * Calculate beliefs for the passed sample in the probability space. See
+     * CompiledMessagePassing.calculateBeliefs().
+     */
+    public void calculateBeliefs(int sample,
+                                 double[] varBeliefs,
+                                 double[] factorBeliefs) {
+        for (int v = 0; v < graph.getNumberOfVariables(); v++) {
+            int states = graph.varStates[v];
+            int beliefStart = graph.varOffset[v];
+            System.arraycopy(evidence, graph.varOffset[v] * capacity + sample * states, varBeliefs, beliefStart, states);
+            int end = graph.varEdgeStart[v + 1];
+            for (int i = graph.varEdgeStart[v]; i < end; i++) {
+                int offset = graph.messageOffset[graph.varEdges[i]] * capacity + sample * states;
+                for (int s = 0; s < states; s++) {
+                    if (logSpace)
+                        varBeliefs[beliefStart + s] += factorToVar[offset + s];
+                    else
+                        varBeliefs[beliefStart + s] *= factorToVar[offset + s];
+                }
+            }
+            normalize(varBeliefs, beliefStart, states, logSpace, false);
+        }
+        for (int f = 0; f < graph.getNumberOfFactors(); f++) {
+            int tableStart = graph.tableOffset[f];
+            int size = graph.tableOffset[f + 1] - tableStart;
+            for (int i = 0; i < size; i++) {
+                double value = graph.tables[tableStart + i];
+                factorBeliefs[tableStart + i] = logSpace ? Math.log(value) : value;
+            }
+            int end = graph.factorEdgeStart[f + 1];
+            for (int e = graph.factorEdgeStart[f]; e < end; e++) {
+                int states = graph.varStates[graph.edgeVariable[e]];
+                int stride = graph.edgeStride[e];
+                int messageStart = graph.messageOffset[e] * capacity + sample * states;
+                int block = stride * states;
+                for (int outer = 0; outer < size; outer += block) {
+                    for (int s = 0; s < states; s++) {
+                        double m = varToFactor[messageStart + s];
+                        int start = tableStart + outer + s * stride;
+                        for (int i = start; i < start + stride; i++) {
+                            if (logSpace)
+                                factorBeliefs[i] += m;
+                            else
+                                factorBeliefs[i] *= m;
+                        }
+                    }
+                }
+            }
+            normalize(factorBeliefs, tableStart, size, logSpace, false);
+        }
+    }
+
+    /**
+     * The same as FGNode.normalize() for a segment of the passed array.
+     */
+    private void normalize(double[] values,
+                           int from,
+                           int length,
+                           boolean logSpace,
+                           boolean needBackToLogSpace) {
+        if (logSpace)
+            convertLogToProb(values, from, 1, length);
+        double sum = 0.0d;
+        for (int i = from; i < from + length; i++)
+            sum += values[i];
+        for (int i = from; i < from + length; i++)
+            values[i] /= sum;
+        if (needBackToLogSpace) {
+            for (int i = from; i < from + length; i++)
+                values[i] = Math.log(values[i]);
+        }
+    }
+
+    /**
+     * Convert length values, starting at from and separated by step, from the log space
+     * into the probability space.
+     */
+    private void convertLogToProb(double[] values,
+                                  int from,
+                                  int step,
+                                  int length) {
+        int end = from + length * step;
+        double max = values[from];
+        for (int i = from + step; i < end; i += step) {
+            if (values[i] > max)
+                max = values[i];
+        }
+        for (int i = from; i < end; i += step)
+            values[i] = Math.exp(values[i] - max);
+    }
+
+}
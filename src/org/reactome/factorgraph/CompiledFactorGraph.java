@@ -0,0 +1,487 @@
+/*
+ * Created on Oct 18, 2026
+ *
+ */
+package org.reactome.factorgraph;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A frozen view of a FactorGraph using contiguous primitive arrays so that message passing
+ * can be performed without walking Edge and FGNode objects. Edges are numbered factor by factor
+ * so that edges of one Factor are contiguous, following the order of variables in that Factor.
+ * Edges of one Variable can be reached via a CSR (compressed sparse row) index. Messages of one
+ * direction are packed into one double array, and the message for an edge starts at messageOffset[edge].
+ * Factor values are packed into one double array too, starting at tableOffset[factor].
+ * ContinuousFactors are not compiled as factors. Instead, they are kept as sources of evidence for their
+ * discrete variables, which are applied as per-variable likelihood vectors during inference.
+ * Note: The structure of the original FactorGraph should not be changed after an object of this class
+ * is created. Otherwise, a new CompiledFactorGraph should be created. Use isCompiledFrom() to check.
+ */
+public class CompiledFactorGraph {
+    // The original FactorGraph
+    private FactorGraph factorGraph;
+    // Indexed nodes
+    private Variable[] variables;
+    private Factor[] factors;
+    private Map<Variable, Integer> varToIndex;
+    private Map<Factor, Integer> factorToIndex;
+    private ContinuousFactor[] continuousFactors;
+    private Map<ContinuousFactor, Integer> continuousFactorToIndex;
+    // The following arrays are package accessible for performance reason
+    // States for each variable
+    int[] varStates;
+    // Offset of a variable in an array packing one value per variable state (e.g. evidence)
+    int[] varOffset;
+    // Discrete variables for continuous factors
+    int[] continuousFactorVariable;
+    // CSR index for variable to edges: edges of variable v are varEdges[varEdgeStart[v]] to
+    // varEdges[varEdgeStart[v + 1] - 1]
+    int[] varEdgeStart;
+    int[] varEdges;
+    // Edges for factor f are from factorEdgeStart[f] to factorEdgeStart[f + 1] - 1
+    int[] factorEdgeStart;
+    // For each edge
+    int[] edgeVariable;
+    int[] edgeFactor;
+    int[] edgeStride;
+    int[] messageOffset;
+    // Packed factor values
+    int[] tableOffset;
+    double[] tables;
+    // Cached logs of factor values for the log space
+    double[] logTables;
+    // Some sizes for allocating buffers
+    int messageSize;
+    int maxTableSize;
+    int maxStates;
+    int maxDegree;
+    // Edges in the breadth-first order from roots if the graph has no loop. null if there is a loop.
+    int[] treeEdges;
+    // True if the parent node of the tree edge at the same position is the variable
+    boolean[] treeEdgeFromVariable;
+    // Variables grouped by colors so that no two variables sharing a factor have the same color:
+    // variables having color c are colorVariables[colorStart[c]] to colorVariables[colorStart[c + 1] - 1].
+    // These are null until buildVariableColors() is called.
+    int[] colorStart;
+    int[] colorVariables;
+    // Lookups for conditional distributions used by Gibbs sampling: entries for variable v are from
+    // conditionalStart[v] to conditionalStart[v + 1] - 1 in conditionalIndex. For each factor of v, the
+    // entries are the table offset of the factor, the stride of v, the number of other variables,
+    // and then pairs of an index and a stride for the other variables. These are null until
+    // buildConditionalIndex() is called.
+    int[] conditionalStart;
+    int[] conditionalIndex;
+    // Tree-structured blocks for blocked Gibbs sampling, created by getSamplingBlocks()
+    private SamplingBlocks samplingBlocks;
+
+    /**
+     * The only constructor: the passed FactorGraph object is compiled immediately.
+     * @param fg
+     */
+    public CompiledFactorGraph(FactorGraph fg) {
+        if (fg == null || fg.getFactors() == null)
+            throw new IllegalArgumentException("The passed FactorGraph is empty.");
+        this.factorGraph = fg;
+        compile();
+    }
+
+    private void compile() {
+        List<Factor> factorList = new ArrayList<Factor>();
+        List<ContinuousFactor> continuousList = new ArrayList<ContinuousFactor>();
+        for (Factor factor : factorGraph.getFactors()) {
+            if (factor instanceof ContinuousFactor)
+                continuousList.add((ContinuousFactor) factor);
+            else
+                factorList.add(factor);
+        }
+        factors = factorList.toArray(new Factor[0]);
+        continuousFactors = continuousList.toArray(new ContinuousFactor[0]);
+        factorToIndex = new HashMap<Factor, Integer>();
+        for (int i = 0; i < factors.length; i++)
+            factorToIndex.put(factors[i], i);
+        // Collect variables from factors in case some variables are not listed
+        // in the FactorGraph object
+        List<Variable> varList = new ArrayList<Variable>();
+        varToIndex = new HashMap<Variable, Integer>();
+        int totalEdges = 0;
+        for (Factor factor : factors) {
+            for (Variable var : factor.getVariables()) {
+                if (!varToIndex.containsKey(var)) {
+                    varToIndex.put(var, varList.size());
+                    varList.add(var);
+                }
+                totalEdges ++;
+            }
+        }
+        // Discrete variables linked to continuous variables only should be here too
+        continuousFactorVariable = new int[continuousFactors.length];
+        continuousFactorToIndex = new HashMap<ContinuousFactor, Integer>();
+        for (int i = 0; i < continuousFactors.length; i++) {
+            continuousFactorToIndex.put(continuousFactors[i], i);
+            Variable var = continuousFactors[i].getDiscreteVariable();
+            if (!varToIndex.containsKey(var)) {
+                varToIndex.put(var, varList.size());
+                varList.add(var);
+            }
+            continuousFactorVariable[i] = varToIndex.get(var);
+        }
+        variables = varList.toArray(new Variable[0]);
+        varStates = new int[variables.length];
+        varOffset = new int[variables.length + 1];
+        for (int i = 0; i < variables.length; i++) {
+            varStates[i] = variables[i].getStates();
+            varOffset[i + 1] = varOffset[i] + varStates[i];
+            if (varStates[i] > maxStates)
+                maxStates = varStates[i];
+        }
+        // Edges grouped by factors
+        factorEdgeStart = new int[factors.length + 1];
+        edgeVariable = new int[totalEdges];
+        edgeFactor = new int[totalEdges];
+        edgeStride = new int[totalEdges];
+        messageOffset = new int[totalEdges + 1];
+        tableOffset = new int[factors.length + 1];
+        int[] varDegree = new int[variables.length];
+        int edge = 0;
+        for (int f = 0; f < factors.length; f++) {
+            Factor factor = factors[f];
+            factorEdgeStart[f] = edge;
+            List<Variable> factorVars = factor.getVariables();
+            for (int i = 0; i < factorVars.size(); i++) {
+                int v = varToIndex.get(factorVars.get(i));
+                edgeVariable[edge] = v;
+                edgeFactor[edge] = f;
+                edgeStride[edge] = factor.getStrideArray()[i];
+                messageOffset[edge + 1] = messageOffset[edge] + varStates[v];
+                varDegree[v] ++;
+                edge ++;
+            }
+            int size = factor.getValues().length;
+            tableOffset[f + 1] = tableOffset[f] + size;
+            if (size > maxTableSize)
+                maxTableSize = size;
+        }
+        factorEdgeStart[factors.length] = edge;
+        messageSize = messageOffset[totalEdges];
+        // CSR for variables
+        varEdgeStart = new int[variables.length + 1];
+        for (int v = 0; v < variables.length; v++) {
+            varEdgeStart[v + 1] = varEdgeStart[v] + varDegree[v];
+            if (varDegree[v] > maxDegree)
+                maxDegree = varDegree[v];
+        }
+        varEdges = new int[totalEdges];
+        int[] filled = new int[variables.length];
+        for (int e = 0; e < totalEdges; e++) {
+            int v = edgeVariable[e];
+            varEdges[varEdgeStart[v] + filled[v]] = e;
+            filled[v] ++;
+        }
+        tables = new double[tableOffset[factors.length]];
+        logTables = new double[tables.length];
+        // Make sure logs are calculated for zero values
+        Arrays.fill(logTables, Double.NEGATIVE_INFINITY);
+        updateFactorValues();
+        buildTreeSchedule();
+    }
+
+    /**
+     * Order edges by breadth-first search from a root in each connected component so that messages can be
+     * passed from leaves to roots and then back in two passes if there is no loop. Nodes are indexed
+     * as variables first and then factors. Searching stops as soon as a node is reached a second time,
+     * which indicates a loop.
+     */
+    private void buildTreeSchedule() {
+        int nodes = variables.length + factors.length;
+        boolean[] visited = new boolean[nodes];
+        int[] parentEdge = new int[nodes];
+        int[] queue = new int[nodes];
+        int[] order = new int[edgeVariable.length];
+        boolean[] fromVariable = new boolean[edgeVariable.length];
+        int count = 0;
+        for (int root = 0; root < nodes; root++) {
+            if (visited[root])
+                continue;
+            visited[root] = true;
+            parentEdge[root] = -1;
+            int head = 0;
+            int tail = 0;
+            queue[tail++] = root;
+            while (head < tail) {
+                int node = queue[head++];
+                boolean isVariable = node < variables.length;
+                int start = isVariable ? varEdgeStart[node] : factorEdgeStart[node - variables.length];
+                int end = isVariable ? varEdgeStart[node + 1] : factorEdgeStart[node - variables.length + 1];
+                for (int i = start; i < end; i++) {
+                    int e = isVariable ? varEdges[i] : i;
+                    if (e == parentEdge[node])
+                        continue;
+                    int child = isVariable ? variables.length + edgeFactor[e] : edgeVariable[e];
+                    if (visited[child])
+                        return; // There is a loop
+                    visited[child] = true;
+                    parentEdge[child] = e;
+                    queue[tail++] = child;
+                    order[count] = e;
+                    fromVariable[count] = isVariable;
+                    count ++;
+                }
+            }
+        }
+        treeEdges = order;
+        treeEdgeFromVariable = fromVariable;
+    }
+
+    /**
+     * Color variables in the interaction graph, where two variables are connected if they share a
+     * factor, so that variables having the same color are conditionally independent given all other
+     * variables. A greedy coloring is used with variables having more factors colored first. Colors
+     * are built once only.
+     * @return the number of colors
+     */
+    public synchronized int buildVariableColors() {
+        if (colorStart != null)
+            return colorStart.length - 1;
+        // Sort variables by degree in the descending order via counting
+        int[] degreeStart = new int[maxDegree + 2];
+        for (int v = 0; v < variables.length; v++)
+            degreeStart[maxDegree - getDegree(v) + 1] ++;
+        for (int d = 0; d <= maxDegree; d++)
+            degreeStart[d + 1] += degreeStart[d];
+        int[] order = new int[variables.length];
+        for (int v = 0; v < variables.length; v++)
+            order[degreeStart[maxDegree - getDegree(v)] ++] = v;
+        int[] colors = new int[variables.length];
+        Arrays.fill(colors, -1);
+        // usedBy[c] == v if color c has been used by a neighbor of v
+        int[] usedBy = new int[Math.max(maxDegree, 1) + 1];
+        Arrays.fill(usedBy, -1);
+        int numberOfColors = 0;
+        for (int v : order) {
+            for (int i = varEdgeStart[v]; i < varEdgeStart[v + 1]; i++) {
+                int f = edgeFactor[varEdges[i]];
+                for (int j = factorEdgeStart[f]; j < factorEdgeStart[f + 1]; j++) {
+                    int color = colors[edgeVariable[j]];
+                    if (color >= 0)
+                        usedBy[color] = v;
+                }
+            }
+            int color = 0;
+            while (color < numberOfColors && usedBy[color] == v)
+                color ++;
+            if (color == numberOfColors) {
+                numberOfColors ++;
+                if (numberOfColors == usedBy.length) {
+                    int length = usedBy.length;
+                    usedBy = Arrays.copyOf(usedBy, length * 2);
+                    Arrays.fill(usedBy, length, usedBy.length, -1);
+                }
+            }
+            colors[v] = color;
+        }
+        int[] start = new int[numberOfColors + 1];
+        for (int v = 0; v < variables.length; v++)
+            start[colors[v] + 1] ++;
+        for (int c = 0; c < numberOfColors; c++)
+            start[c + 1] += start[c];
+        int[] next = Arrays.copyOf(start, numberOfColors);
+        int[] colored = new int[variables.length];
+        for (int v = 0; v < variables.length; v++)
+            colored[next[colors[v]] ++] = v;
+        colorVariables = colored;
+        colorStart = start;
+        return numberOfColors;
+    }
+
+    /**
+     * Build lookups so that the conditional distribution of a variable given all other variables can be
+     * calculated by walking one int array without going through edges: for each factor of the variable,
+     * the index of the factor value for the variable in state 0 is the table offset plus the sum of states of
+     * other variables multiplied by their strides. The lookups are built once only.
+     */
+    public synchronized void buildConditionalIndex() {
+        if (conditionalStart != null)
+            return;
+        int[] start = new int[variables.length + 1];
+        for (int v = 0; v < variables.length; v++) {
+            int size = 0;
+            for (int i = varEdgeStart[v]; i < varEdgeStart[v + 1]; i++) {
+                int f = edgeFactor[varEdges[i]];
+                // Offset, stride, size, and then pairs for other variables
+                size += 3 + 2 * (factorEdgeStart[f + 1] - factorEdgeStart[f] - 1);
+            }
+            start[v + 1] = start[v] + size;
+        }
+        int[] index = new int[start[variables.length]];
+        int pos = 0;
+        for (int v = 0; v < variables.length; v++) {
+            for (int i = varEdgeStart[v]; i < varEdgeStart[v + 1]; i++) {
+                int e = varEdges[i];
+                int f = edgeFactor[e];
+                index[pos++] = tableOffset[f];
+                index[pos++] = edgeStride[e];
+                index[pos++] = factorEdgeStart[f + 1] - factorEdgeStart[f] - 1;
+                for (int j = factorEdgeStart[f]; j < factorEdgeStart[f + 1]; j++) {
+                    if (j == e)
+                        continue;
+                    index[pos++] = edgeVariable[j];
+                    index[pos++] = edgeStride[j];
+                }
+            }
+        }
+        conditionalIndex = index;
+        conditionalStart = start;
+    }
+
+    /**
+     * Get the partition of variables into tree-structured blocks for blocked Gibbs sampling. The
+     * blocks are created once only.
+     * @return
+     */
+    synchronized SamplingBlocks getSamplingBlocks() {
+        if (samplingBlocks == null)
+            samplingBlocks = new SamplingBlocks(this);
+        return samplingBlocks;
+    }
+
+    /**
+     * Copy values from Factor objects into the packed table. Call this method if values in
+     * Factor objects have been changed (e.g. during parameter learning) after this object is
+     * compiled.
+     * @return true if any value has been changed
+     */
+    public boolean updateFactorValues() {
+        boolean changed = false;
+        for (int f = 0; f < factors.length; f++) {
+            double[] values = factors[f].getValues();
+            int offset = tableOffset[f];
+            for (int i = 0; i < values.length; i++) {
+                if (tables[offset + i] != values[i]) {
+                    tables[offset + i] = values[i];
+                    logTables[offset + i] = Math.log(values[i]);
+                    changed = true;
+                }
+            }
+        }
+        return changed;
+    }
+
+    public FactorGraph getFactorGraph() {
+        return factorGraph;
+    }
+
+    /**
+     * Check if this object is still valid for the passed FactorGraph: it should be the compiled FactorGraph
+     * object having the same factors, each of which has the same variables in the same order with the same
+     * numbers of states. Factor values are not checked. Call updateFactorValues() for changed values.
+     * This method takes time linear to the number of edges.
+     * @param fg
+     * @return
+     */
+    public boolean isCompiledFrom(FactorGraph fg) {
+        if (fg != factorGraph || 
+            fg.getFactors() == null ||
+            fg.getFactors().size() != factors.length + continuousFactors.length)
+            return false;
+        for (Factor factor : fg.getFactors()) {
+            if (factor instanceof ContinuousFactor) {
+                Integer index = continuousFactorToIndex.get(factor);
+                if (index == null)
+                    return false;
+                int v = continuousFactorVariable[index];
+                Variable var = ((ContinuousFactor) factor).getDiscreteVariable();
+                if (variables[v] != var || var.getStates() != varStates[v])
+                    return false;
+                continue;
+            }
+            Integer index = factorToIndex.get(factor);
+            if (index == null)
+                return false;
+            List<Variable> factorVars = factor.getVariables();
+            int start = factorEdgeStart[index];
+            if (factorVars.size() != factorEdgeStart[index + 1] - start ||
+                factor.getValues().length != tableOffset[index + 1] - tableOffset[index])
+                return false;
+            for (int i = 0; i < factorVars.size(); i++) {
+                Variable var = factorVars.get(i);
+                int v = edgeVariable[start + i];
+                if (variables[v] != var || var.getStates() != varStates[v])
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    public int getNumberOfVariables() {
+        return variables.length;
+    }
+
+    public int getNumberOfFactors() {
+        return factors.length;
+    }
+
+    public int getNumberOfEdges() {
+        return edgeVariable.length;
+    }
+
+    public Variable getVariable(int index) {
+        return variables[index];
+    }
+
+    public Factor getFactor(int index) {
+        return factors[index];
+    }
+    
+    public int getNumberOfContinuousFactors() {
+        return continuousFactors.length;
+    }
+    
+    public ContinuousFactor getContinuousFactor(int index) {
+        return continuousFactors[index];
+    }
+
+    /**
+     * Get the index of the passed Variable object. -1 is returned if the passed
+     * Variable is not in this CompiledFactorGraph.
+     * @param var
+     * @return
+     */
+    public int getVariableIndex(Variable var) {
+        Integer index = varToIndex.get(var);
+        if (index == null)
+            return -1;
+        return index;
+    }
+
+    public int getFactorIndex(Factor factor) {
+        Integer index = factorToIndex.get(factor);
+        if (index == null)
+            return -1;
+        return index;
+    }
+
+    /**
+     * Check if the compiled graph has no loop. A forest (i.e. more than one connected component) is
+     * regarded as a tree too since each component can be handled independently. ContinuousFactors are
+     * not considered since they are always leaves.
+     * @return
+     */
+    public boolean isTree() {
+        return treeEdges != null;
+    }
+
+    /**
+     * Get the degree (number of factors) of the variable at the passed index.
+     * @param varIndex
+     * @return
+     */
+    public int getDegree(int varIndex) {
+        return varEdgeStart[varIndex + 1] - varEdgeStart[varIndex];
+    }
+
+}
@@ -0,0 +1,481 @@
+/*
+ * Created on Oct 18, 2026
+ *
+ */
+package org.reactome.factorgraph;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+import org.apache.commons.math3.random.RandomDataGenerator;
+
+/**
+ * Gibbs sampling performed on a CompiledFactorGraph. The current assignment is kept in an int array indexed
+ * by variables in the compiled graph, and counts of variable and factor states are accumulated after each
+ * sweep so that no sample is kept: memory is bounded by the size of the graph instead of the number of samples.
+ * All buffers are allocated when an object of this class is created so that no allocation occurs during
+ * sampling. The conditional distribution of a variable is calculated in the log space from cached logs of
+ * factor values and evidence, using lookups precomputed in CompiledFactorGraph.buildConditionalIndex() so that
+ * there is no limit on the size of the Markov blanket.
+ */
+class CompiledGibbsSampler {
+    // The number of variables sampled by one task in a chromatic sweep. This is fixed so that
+    // samples don't depend on the number of threads.
+    private static final int COLOR_CHUNK_SIZE = 256;
+    private CompiledFactorGraph graph;
+    private RandomDataGenerator randomizer;
+    // Logs of evidence from the observation and ContinuousFactors
+    private double[] logEvidence;
+    private boolean[] hasEvidence;
+    // Variables having evidence
+    private int[] evidenceVariables;
+    private int evidenceVariableCount;
+    // The current state of each variable
+    private int[] states;
+    // Counts of variable states packed as in CompiledFactorGraph.varOffset
+    private int[] variableCounts;
+    // Counts of factor states packed as in CompiledFactorGraph.tableOffset
+    private int[] factorCounts;
+    private int samples;
+    // Buffer for the conditional distribution of one variable
+    private double[] probs;
+    // Tasks for each color used by chromatic sweeps
+    private List<List<ColorTask>> colorTasks;
+    // Buffers for blocked sweeps: logs for variables packed as in CompiledFactorGraph.varOffset
+    // and logs for joint states of children of an internal factor
+    private double[] blockLogs;
+    private double[] combinationLogs;
+
+    public CompiledGibbsSampler(CompiledFactorGraph graph) {
+        this.graph = graph;
+        int variables = graph.getNumberOfVariables();
+        logEvidence = new double[graph.varOffset[variables]];
+        hasEvidence = new boolean[variables];
+        evidenceVariables = new int[variables];
+        states = new int[variables];
+        variableCounts = new int[graph.varOffset[variables]];
+        factorCounts = new int[graph.tableOffset[graph.getNumberOfFactors()]];
+        probs = new double[Math.max(graph.maxStates, 2)];
+        graph.buildConditionalIndex();
+    }
+
+    public CompiledFactorGraph getCompiledGraph() {
+        return graph;
+    }
+
+    public void setRandomGenerator(RandomDataGenerator randomizer) {
+        this.randomizer = randomizer;
+        // Random generators for tasks are seeded from the new generator
+        colorTasks = null;
+    }
+
+    /**
+     * Set evidence from the passed Observation and ContinuousFactors in the compiled graph. This is
+     * the same as CompiledMessagePassing.setEvidence() in the log space.
+     * @param observation null for no observation
+     */
+    public void setEvidence(Observation<? extends Number> observation) {
+        for (int i = 0; i < evidenceVariableCount; i++) {
+            int v = evidenceVariables[i];
+            for (int j = graph.varOffset[v]; j < graph.varOffset[v + 1]; j++)
+                logEvidence[j] = 0.0d;
+            hasEvidence[v] = false;
+        }
+        evidenceVariableCount = 0;
+        if (observation != null && observation.getVariableAssignments() != null) {
+            for (VariableAssignment<? extends Number> varAssgn : observation.getVariableAssignments()) {
+                int v = graph.getVariableIndex(varAssgn.getVariable());
+                if (v < 0 || varAssgn.getAssignment() == null) // e.g. ContinuousVariable
+                    continue;
+                AbstractInferencer.fillObservedValues(varAssgn.getVariable(),
+                                                      varAssgn.getAssignment(),
+                                                      probs,
+                                                      0);
+                addEvidence(v, probs);
+            }
+        }
+        for (int i = 0; i < graph.getNumberOfContinuousFactors(); i++) {
+            ContinuousFactor factor = graph.getContinuousFactor(i);
+            VariableAssignment<? extends Number> varAssgn = null;
+            if (observation != null)
+                varAssgn = observation.getVariableAssignment(factor.getContinuousVariable());
+            // The returned array is reused by the factor
+            synchronized (factor) {
+                addEvidence(graph.continuousFactorVariable[i],
+                            factor.marginalizeForDiscrete(varAssgn));
+            }
+        }
+    }
+
+    private void addEvidence(int v, double[] values) {
+        int offset = graph.varOffset[v];
+        if (!hasEvidence[v]) {
+            hasEvidence[v] = true;
+            evidenceVariables[evidenceVariableCount ++] = v;
+        }
+        for (int s = 0; s < graph.varStates[v]; s++)
+            logEvidence[offset + s] += Math.log(values[s]);
+    }
+
+    /**
+     * Assign a random state to each variable.
+     */
+    public void initializeStates() {
+        for (int v = 0; v < states.length; v++)
+            states[v] = randomizer.nextInt(0, graph.varStates[v] - 1);
+    }
+
+    /**
+     * Clear accumulated counts.
+     */
+    public void resetCounts() {
+        Arrays.fill(variableCounts, 0);
+        Arrays.fill(factorCounts, 0);
+        samples = 0;
+    }
+
+    /**
+     * Sample all variables once in the order of indices in the compiled graph.
+     */
+    public void sweep() {
+        for (int v = 0; v < states.length; v++)
+            states[v] = sample(v, probs, randomizer);
+    }
+
+    /**
+     * Sample all variables once color by color: variables having the same color don't share any factor
+     * so that they are sampled in parallel using the passed ForkJoinPool, which is still a valid Gibbs sweep.
+     * Variables of one color are split into chunks of a fixed size, and each chunk has its own random
+     * generator seeded from the random generator of this object so that samples are reproducible regardless
+     * of the number of threads.
+     * @param pool
+     */
+    public void sweepByColor(ForkJoinPool pool) {
+        if (colorTasks == null)
+            colorTasks = createColorTasks();
+        RecursiveAction sweepTask = new RecursiveAction() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected void compute() {
+                for (List<ColorTask> tasks : colorTasks) {
+                    for (ColorTask task : tasks)
+                        task.reinitialize();
+                    invokeAll(tasks);
+                }
+            }
+        };
+        if (ForkJoinTask.inForkJoinPool())
+            sweepTask.invoke(); // e.g. called from a parallel chain
+        else
+            pool.invoke(sweepTask);
+    }
+
+    private List<List<ColorTask>> createColorTasks() {
+        int colors = graph.buildVariableColors();
+        List<List<ColorTask>> rtn = new ArrayList<List<ColorTask>>(colors);
+        for (int c = 0; c < colors; c++) {
+            List<ColorTask> tasks = new ArrayList<ColorTask>();
+            for (int start = graph.colorStart[c]; start < graph.colorStart[c + 1]; start += COLOR_CHUNK_SIZE) {
+                RandomDataGenerator taskRandomizer = new RandomDataGenerator();
+                taskRandomizer.reSeed(randomizer.nextLong(0L, Long.MAX_VALUE - 1));
+                tasks.add(new ColorTask(start,
+                                        Math.min(start + COLOR_CHUNK_SIZE, graph.colorStart[c + 1]),
+                                        taskRandomizer));
+            }
+            rtn.add(tasks);
+        }
+        return rtn;
+    }
+
+    /**
+     * Sample a state for the passed variable from its conditional distribution given the current
+     * states of other variables.
+     * @param probs the buffer for the conditional distribution
+     * @param randomizer
+     */
+    private int sample(int v, double[] probs, RandomDataGenerator randomizer) {
+        int varStates = graph.varStates[v];
+        int offset = graph.varOffset[v];
+        for (int s = 0; s < varStates; s++)
+            probs[s] = logEvidence[offset + s];
+        addFactorLogs(graph.conditionalIndex,
+                      graph.conditionalStart[v],
+                      graph.conditionalStart[v + 1],
+                      varStates,
+                      probs,
+                      0);
+        int state = draw(probs, 0, varStates, randomizer);
+        if (state < 0)
+            throw new IllegalStateException("Cannot find a legal state for " + graph.getVariable(v) +
+                                            ": " + Arrays.toString(Arrays.copyOf(probs, varStates)));
+        return state;
+    }
+
+    /**
+     * Add logs of factor values for a variable given the current states of other variables.
+     * @param index lookups in the format of CompiledFactorGraph.conditionalIndex
+     * @param start the first position in index
+     * @param end the position after the last one in index
+     * @param logs logs are added to logs[offset] to logs[offset + varStates - 1]
+     */
+    private void addFactorLogs(int[] index,
+                               int start,
+                               int end,
+                               int varStates,
+                               double[] logs,
+                               int offset) {
+        double[] logTables = graph.logTables;
+        for (int i = start; i < end;) {
+            // The index of the factor value with this variable in state 0
+            int base = index[i++];
+            int stride = index[i++];
+            int others = index[i++];
+            for (int j = 0; j < others; j++) {
+                base += states[index[i]] * index[i + 1];
+                i += 2;
+            }
+            for (int s = 0; s < varStates; s++)
+                logs[offset + s] += logTables[base + s * stride];
+        }
+    }
+
+    /**
+     * Draw an index from a distribution in the log space. The passed logs are replaced by
+     * unnormalized probabilities.
+     * @return -1 if no index has a positive probability
+     */
+    private int draw(double[] logs,
+                     int offset,
+                     int length,
+                     RandomDataGenerator randomizer) {
+        double max = Double.NEGATIVE_INFINITY;
+        for (int i = offset; i < offset + length; i++) {
+            if (logs[i] > max)
+                max = logs[i];
+        }
+        double sum = 0.0d;
+        for (int i = offset; i < offset + length; i++) {
+            logs[i] = Math.exp(logs[i] - max);
+            sum += logs[i];
+        }
+        if (!(sum > 0.0d) || Double.isInfinite(sum))
+            return -1;
+        double sampled = randomizer.nextUniform(0.0d, 1.0d, true) * sum; // Include the lower point
+        double cum = 0.0d;
+        for (int i = 0; i < length - 1; i++) {
+            cum += logs[offset + i];
+            if (sampled <= cum)
+                return i;
+        }
+        return length - 1;
+    }
+
+    /**
+     * Sample all variables once block by block: variables in a tree-structured block from
+     * CompiledFactorGraph.getSamplingBlocks() are sampled jointly given all other variables by
+     * forward-filtering/backward-sampling, which mixes much faster than single-site updates for
+     * strongly coupled variables.
+     */
+    public void sweepByBlock() {
+        SamplingBlocks blocks = graph.getSamplingBlocks();
+        if (blockLogs == null) {
+            blockLogs = new double[graph.varOffset[graph.getNumberOfVariables()]];
+            combinationLogs = new double[Math.max(blocks.maxCombinations, 1)];
+        }
+        for (int b = 0; b < blocks.getNumberOfBlocks(); b++) {
+            if (blocks.blockFactorStart[b] == blocks.blockFactorStart[b + 1]) {
+                // Only one variable in this block
+                int v = blocks.blockVariables[blocks.blockStart[b]];
+                states[v] = sample(v, probs, randomizer);
+            }
+            else
+                sampleBlock(blocks, b);
+        }
+    }
+
+    private void sampleBlock(SamplingBlocks blocks, int b) {
+        // Filtering from leaves to the seed: blockLogs for a variable is the log of the
+        // distribution of its sub-tree given variables outside of the block
+        for (int i = blocks.blockStart[b]; i < blocks.blockStart[b + 1]; i++) {
+            int v = blocks.blockVariables[i];
+            int offset = graph.varOffset[v];
+            for (int s = 0; s < graph.varStates[v]; s++)
+                blockLogs[offset + s] = logEvidence[offset + s];
+            addFactorLogs(blocks.localIndex,
+                          blocks.localStart[v],
+                          blocks.localStart[v + 1],
+                          graph.varStates[v],
+                          blockLogs,
+                          offset);
+        }
+        for (int k = blocks.blockFactorStart[b + 1] - 1; k >= blocks.blockFactorStart[b]; k--) {
+            int parent = blocks.parentVariable[k];
+            int offset = graph.varOffset[parent];
+            int base = getFixedIndex(blocks, k);
+            int combinations = blocks.childCombinations[k];
+            for (int s = 0; s < graph.varStates[parent]; s++) {
+                fillCombinationLogs(blocks, k, base + s * blocks.parentStride[k]);
+                blockLogs[offset + s] += logSum(combinationLogs, combinations);
+            }
+        }
+        // Sampling from the seed to leaves
+        int seed = blocks.blockVariables[blocks.blockStart[b]];
+        states[seed] = drawBlockState(blockLogs, graph.varOffset[seed], graph.varStates[seed], seed);
+        for (int k = blocks.blockFactorStart[b]; k < blocks.blockFactorStart[b + 1]; k++) {
+            int base = getFixedIndex(blocks, k) + states[blocks.parentVariable[k]] * blocks.parentStride[k];
+            fillCombinationLogs(blocks, k, base);
+            int combination = drawBlockState(combinationLogs,
+                                             0,
+                                             blocks.childCombinations[k],
+                                             blocks.parentVariable[k]);
+            for (int j = blocks.childStart[k]; j < blocks.childStart[k + 1]; j++) {
+                int child = blocks.childVariables[j];
+                states[child] = combination % graph.varStates[child];
+                combination /= graph.varStates[child];
+            }
+        }
+    }
+
+    private int drawBlockState(double[] logs, int offset, int length, int v) {
+        int state = draw(logs, offset, length, randomizer);
+        if (state < 0)
+            throw new IllegalStateException("Cannot find a legal state in the block of " + graph.getVariable(v) + ".");
+        return state;
+    }
+
+    /**
+     * Get the index of the value of internal factor k with the parent and children in state 0
+     * given the current states of variables in other blocks.
+     */
+    private int getFixedIndex(SamplingBlocks blocks, int k) {
+        int index = graph.tableOffset[blocks.factor[k]];
+        for (int j = blocks.outsideStart[k]; j < blocks.outsideStart[k + 1]; j++)
+            index += states[blocks.outsideVariables[j]] * blocks.outsideStrides[j];
+        return index;
+    }
+
+    /**
+     * Fill combinationLogs with logs for all joint states of children of internal factor k: the
+     * log of the factor value plus logs of sub-trees of the children. The first child changes
+     * fastest in the joint states.
+     * @param base the index of the factor value with all children in state 0
+     */
+    private void fillCombinationLogs(SamplingBlocks blocks, int k, int base) {
+        for (int c = 0; c < blocks.childCombinations[k]; c++) {
+            int index = base;
+            double log = 0.0d;
+            int combination = c;
+            for (int j = blocks.childStart[k]; j < blocks.childStart[k + 1]; j++) {
+                int child = blocks.childVariables[j];
+                int state = combination % graph.varStates[child];
+                combination /= graph.varStates[child];
+                index += state * blocks.childStrides[j];
+                log += blockLogs[graph.varOffset[child] + state];
+            }
+            combinationLogs[c] = graph.logTables[index] + log;
+        }
+    }
+
+    private double logSum(double[] logs, int length) {
+        double max = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < length; i++) {
+            if (logs[i] > max)
+                max = logs[i];
+        }
+        if (max == Double.NEGATIVE_INFINITY)
+            return max;
+        double sum = 0.0d;
+        for (int i = 0; i < length; i++)
+            sum += Math.exp(logs[i] - max);
+        return max + Math.log(sum);
+    }
+
+    /**
+     * Add the current states into counts of variable and factor states.
+     */
+    public void accumulate() {
+        for (int v = 0; v < states.length; v++)
+            variableCounts[graph.varOffset[v] + states[v]] ++;
+        for (int f = 0; f < graph.getNumberOfFactors(); f++) {
+            int index = graph.tableOffset[f];
+            for (int e = graph.factorEdgeStart[f]; e < graph.factorEdgeStart[f + 1]; e++)
+                index += states[graph.edgeVariable[e]] * graph.edgeStride[e];
+            factorCounts[index] ++;
+        }
+        samples ++;
+    }
+
+    /**
+     * Add counts accumulated by another sampler for the same compiled graph into this
+     * sampler. This is used to merge counts from parallel chains.
+     * @param other
+     */
+    public void addCounts(CompiledGibbsSampler other) {
+        if (other.graph != graph)
+            throw new IllegalArgumentException("Counts can be added from a sampler for the same compiled graph only.");
+        for (int i = 0; i < variableCounts.length; i++)
+            variableCounts[i] += other.variableCounts[i];
+        for (int i = 0; i < factorCounts.length; i++)
+            factorCounts[i] += other.factorCounts[i];
+        samples += other.samples;
+    }
+
+    public int getState(int v) {
+        return states[v];
+    }
+
+    public void setState(int v, int state) {
+        if (state < 0 || state >= graph.varStates[v])
+            throw new IllegalArgumentException("State " + state + " is out of range for " + graph.getVariable(v));
+        states[v] = state;
+    }
+
+    /**
+     * The number of accumulated samples since the last call to resetCounts().
+     * @return
+     */
+    public int getSamples() {
+        return samples;
+    }
+
+    int[] getVariableCounts() {
+        return variableCounts;
+    }
+
+    int[] getFactorCounts() {
+        return factorCounts;
+    }
+
+    /**
+     * Sample a chunk of variables having the same color.
+     */
+    private class ColorTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        // Positions in CompiledFactorGraph.colorVariables
+        private int start;
+        private int end;
+        private RandomDataGenerator randomizer;
+        private double[] probs;
+
+        public ColorTask(int start, int end, RandomDataGenerator randomizer) {
+            this.start = start;
+            this.end = end;
+            this.randomizer = randomizer;
+            this.probs = new double[Math.max(graph.maxStates, 2)];
+        }
+
+        @Override
+        protected void compute() {
+            for (int i = start; i < end; i++) {
+                int v = graph.colorVariables[i];
+                states[v] = sample(v, probs, randomizer);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,1012 @@
+/*
+ * Created on Oct 18, 2026
+ *
+ */
+package org.reactome.factorgraph;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Message passing for loopy belief propagation performed on a CompiledFactorGraph. All
+ * messages are kept in two packed double arrays, one for messages from variables to factors
+ * and another for messages from factors to variables. All buffers are allocated when an object
+ * of this class is created so that no allocation occurs during iterations. The computation follows
+ * the same logic implemented in Variable.sendMessage() and Factor.sendMessage().
+ */
+class CompiledMessagePassing {
+    private CompiledFactorGraph graph;
+    private InferenceType inferenceType;
+    private boolean logSpace;
+    // Evidence for variables as likelihood vectors, packed by CompiledFactorGraph.varOffset.
+    // Values are in the log space if logSpace is true.
+    private double[] evidence;
+    // Variables whose evidence is not the identity
+    private int[] evidenceVariables;
+    private int evidenceVariableCount;
+    private boolean[] hasEvidence;
+    // Messages
+    private double[] varToFactor;
+    private double[] factorToVar;
+    // Used by the FLOODING schedule as the second buffer
+    private double[] nextVarToFactor;
+    private double[] nextFactorToVar;
+    // Buffers for the calling thread
+    private Workspace workspace;
+    private int[] variableOrder;
+    private int[] factorOrder;
+    private Random random;
+    // For parallel computing
+    private ForkJoinPool pool;
+    private List<SweepTask> tasks;
+    // For the RESIDUAL schedule
+    private ResidualQueue residualQueue;
+    private double[] pendingFactorToVar;
+    private double tolerance;
+    // Damping for each edge in both directions. These arrays are allocated only if damping is used.
+    private boolean dampingEnabled;
+    private double initialDamping;
+    private double[] varToFactorDamping;
+    private double[] factorToVarDamping;
+    // Message changes in the last update and the numbers of reversed changes to detect oscillation
+    private double[] varToFactorChange;
+    private double[] factorToVarChange;
+    private int[] varToFactorReversals;
+    private int[] factorToVarReversals;
+    // Number of messages updated since messages are initialized
+    private long messageUpdates;
+
+    public CompiledMessagePassing(CompiledFactorGraph graph,
+                                  InferenceType inferenceType,
+                                  boolean logSpace) {
+        this.graph = graph;
+        this.inferenceType = inferenceType;
+        this.logSpace = logSpace;
+        varToFactor = new double[graph.messageSize];
+        factorToVar = new double[graph.messageSize];
+        evidence = new double[graph.varOffset[graph.getNumberOfVariables()]];
+        Arrays.fill(evidence, logSpace ? 0.0d : 1.0d);
+        evidenceVariables = new int[graph.getNumberOfVariables()];
+        hasEvidence = new boolean[graph.getNumberOfVariables()];
+        workspace = new Workspace();
+        variableOrder = new int[graph.getNumberOfVariables()];
+        for (int i = 0; i < variableOrder.length; i++)
+            variableOrder[i] = i;
+        factorOrder = new int[graph.getNumberOfFactors()];
+        for (int i = 0; i < factorOrder.length; i++)
+            factorOrder[i] = i;
+        random = new Random();
+    }
+
+    public InferenceType getInferenceType() {
+        return inferenceType;
+    }
+
+    public boolean isLogSpace() {
+        return logSpace;
+    }
+
+    /**
+     * Set the ForkJoinPool used by the FLOODING schedule.
+     * @param pool
+     */
+    public void setPool(ForkJoinPool pool) {
+        if (this.pool != pool)
+            tasks = null; // Chunks are decided by the pool
+        this.pool = pool;
+    }
+
+    /**
+     * Set the tolerance used by the RESIDUAL schedule: a message whose residual is not
+     * greater than this value will not be sent.
+     * @param tolerance
+     */
+    public void setTolerance(double tolerance) {
+        this.tolerance = tolerance;
+    }
+
+    /**
+     * Set the damping used for all edges when messages are initialized. If adaptive is true,
+     * reversed message changes are tracked for each edge so that damping can be increased for
+     * oscillating edges via increaseDamping(). Damping is not used by the RESIDUAL schedule and the
+     * two-pass schedule for trees.
+     * @param damping the weight of the old message
+     * @param adaptive
+     */
+    public void setDamping(double damping,
+                           boolean adaptive) {
+        this.initialDamping = damping;
+        this.dampingEnabled = damping > 0.0d || adaptive;
+        if (dampingEnabled && varToFactorDamping == null) {
+            int edges = graph.getNumberOfEdges();
+            varToFactorDamping = new double[edges];
+            factorToVarDamping = new double[edges];
+            varToFactorChange = new double[graph.messageSize];
+            factorToVarChange = new double[graph.messageSize];
+            varToFactorReversals = new int[edges];
+            factorToVarReversals = new int[edges];
+        }
+    }
+
+    /**
+     * Initialize all messages using the passed value, which should be in the probability
+     * space.
+     * @param initialMessage
+     */
+    public void initializeMessages(double initialMessage) {
+        double value = logSpace ? Math.log(initialMessage) : initialMessage;
+        for (int i = 0; i < varToFactor.length; i++) {
+            varToFactor[i] = value;
+            factorToVar[i] = value;
+        }
+        residualQueue = null;
+        messageUpdates = 0;
+        workspace.updates = 0;
+        if (dampingEnabled) {
+            Arrays.fill(varToFactorDamping, initialDamping);
+            Arrays.fill(factorToVarDamping, initialDamping);
+            Arrays.fill(varToFactorChange, 0.0d);
+            Arrays.fill(factorToVarChange, 0.0d);
+            Arrays.fill(varToFactorReversals, 0);
+            Arrays.fill(factorToVarReversals, 0);
+        }
+    }
+
+    /**
+     * Increase damping for edges whose messages oscillate: the weight of the new message is halved
+     * for edges having at least the passed number of reversed changes since the last call, until the
+     * passed maxDamping is reached. Counts of reversed changes are reset after this call.
+     * @param maxDamping the largest damping allowed
+     * @param cutoff edges having this number of reversed changes are regarded as oscillating
+     * @return the number of edges whose damping has been increased
+     */
+    public int increaseDamping(double maxDamping,
+                               int cutoff) {
+        if (!dampingEnabled)
+            return 0;
+        int count = increaseDamping(varToFactorDamping, varToFactorReversals, maxDamping, cutoff);
+        count += increaseDamping(factorToVarDamping, factorToVarReversals, maxDamping, cutoff);
+        return count;
+    }
+
+    /**
+     * Get the number of messages updated since messages are initialized.
+     * @return
+     */
+    public long getMessageUpdates() {
+        return messageUpdates + workspace.updates;
+    }
+
+    private int increaseDamping(double[] damping,
+                                int[] reversals,
+                                double maxDamping,
+                                int cutoff) {
+        int count = 0;
+        for (int e = 0; e < damping.length; e++) {
+            if (reversals[e] >= cutoff && damping[e] < maxDamping) {
+                damping[e] = Math.min(maxDamping, 1.0d - (1.0d - damping[e]) / 2.0d);
+                count ++;
+            }
+            reversals[e] = 0;
+        }
+        return count;
+    }
+
+    /**
+     * Set evidence from the passed Observation and ContinuousFactors in the compiled graph. Only
+     * variables having evidence in the previous call are reset. Observed variables that are not in the
+     * compiled graph are ignored.
+     * @param observation null for no observation
+     */
+    public void setEvidence(Observation<? extends Number> observation) {
+        double identity = logSpace ? 0.0d : 1.0d;
+        for (int i = 0; i < evidenceVariableCount; i++) {
+            int v = evidenceVariables[i];
+            for (int j = graph.varOffset[v]; j < graph.varOffset[v + 1]; j++)
+                evidence[j] = identity;
+            hasEvidence[v] = false;
+        }
+        evidenceVariableCount = 0;
+        double[] values = workspace.messageBuffer;
+        if (observation != null && observation.getVariableAssignments() != null) {
+            for (VariableAssignment<? extends Number> varAssgn : observation.getVariableAssignments()) {
+                int v = graph.getVariableIndex(varAssgn.getVariable());
+                if (v < 0 || varAssgn.getAssignment() == null) // e.g. ContinuousVariable
+                    continue;
+                AbstractInferencer.fillObservedValues(varAssgn.getVariable(),
+                                                      varAssgn.getAssignment(),
+                                                      values,
+                                                      0);
+                multiplyEvidence(v, values);
+            }
+        }
+        for (int i = 0; i < graph.getNumberOfContinuousFactors(); i++) {
+            ContinuousFactor factor = graph.getContinuousFactor(i);
+            VariableAssignment<? extends Number> varAssgn = null;
+            if (observation != null)
+                varAssgn = observation.getVariableAssignment(factor.getContinuousVariable());
+            // The returned array is reused by the factor
+            synchronized (factor) {
+                multiplyEvidence(graph.continuousFactorVariable[i],
+                                 factor.marginalizeForDiscrete(varAssgn));
+            }
+        }
+    }
+
+    private void multiplyEvidence(int v, double[] values) {
+        int offset = graph.varOffset[v];
+        int states = graph.varStates[v];
+        if (!hasEvidence[v]) {
+            hasEvidence[v] = true;
+            evidenceVariables[evidenceVariableCount ++] = v;
+        }
+        for (int s = 0; s < states; s++) {
+            if (logSpace)
+                evidence[offset + s] += Math.log(values[s]);
+            else
+                evidence[offset + s] *= values[s];
+        }
+    }
+
+    /**
+     * Replace initial messages with messages kept in the passed snapshot. Edges not in the
+     * snapshot keep their current messages.
+     * @param snapshot
+     */
+    public void restoreMessages(MessageSnapshot snapshot) {
+        for (int f = 0; f < graph.getNumberOfFactors(); f++) {
+            Factor factor = graph.getFactor(f);
+            int start = graph.factorEdgeStart[f];
+            for (int e = start; e < graph.factorEdgeStart[f + 1]; e++) {
+                int offset = graph.messageOffset[e];
+                if (!snapshot.copyMessage(factor, e - start, true, varToFactor, offset, logSpace))
+                    break; // Not in the snapshot
+                snapshot.copyMessage(factor, e - start, false, factorToVar, offset, logSpace);
+            }
+        }
+        residualQueue = null;
+    }
+
+    /**
+     * Replace initial messages with packed messages generated by copyMessages() for the same
+     * CompiledFactorGraph and in the same space.
+     * @param messages
+     */
+    public void restoreMessages(double[] messages) {
+        if (messages.length != 2 * varToFactor.length)
+            throw new IllegalArgumentException("The passed messages are not for this CompiledFactorGraph.");
+        System.arraycopy(messages, 0, varToFactor, 0, varToFactor.length);
+        System.arraycopy(messages, varToFactor.length, factorToVar, 0, factorToVar.length);
+        residualQueue = null;
+    }
+
+    /**
+     * Copy the current messages into a packed array: messages from variables to factors followed by
+     * messages from factors to variables. Different from createSnapshot(), no object is created for
+     * each factor so that messages for many observations can be kept.
+     * @param dest a new array is created if it is null or not in the correct size
+     * @return
+     */
+    public double[] copyMessages(double[] dest) {
+        if (dest == null || dest.length != 2 * varToFactor.length)
+            dest = new double[2 * varToFactor.length];
+        System.arraycopy(varToFactor, 0, dest, 0, varToFactor.length);
+        System.arraycopy(factorToVar, 0, dest, varToFactor.length, factorToVar.length);
+        return dest;
+    }
+
+    /**
+     * Copy the current messages into a MessageSnapshot. Factors that are not in the passed
+     * FactorGraph (e.g. factors for observations) are not copied.
+     * @param fg
+     * @return
+     */
+    public MessageSnapshot createSnapshot(FactorGraph fg) {
+        MessageSnapshot snapshot = new MessageSnapshot(logSpace);
+        for (int f = 0; f < graph.getNumberOfFactors(); f++) {
+            Factor factor = graph.getFactor(f);
+            if (!fg.getFactors().contains(factor))
+                continue;
+            int start = graph.factorEdgeStart[f];
+            for (int e = start; e < graph.factorEdgeStart[f + 1]; e++) {
+                int offset = graph.messageOffset[e];
+                snapshot.setMessages(factor, e - start, varToFactor, offset, factorToVar, offset);
+            }
+        }
+        return snapshot;
+    }
+
+    /**
+     * Perform one iteration using the passed schedule.
+     * @param schedule
+     * @param viaFactors used by the SEQUENTIAL schedule only
+     * @return the maximum difference of messages in this iteration
+     */
+    public double sweep(MessageSchedule schedule,
+                        boolean viaFactors) {
+        if (schedule == MessageSchedule.FLOODING)
+            return flood();
+        if (schedule == MessageSchedule.RESIDUAL)
+            return sendResidualMessages();
+        Workspace w = workspace;
+        w.maxDiff = 0.0d;
+        w.varToFactorOut = varToFactor;
+        w.factorToVarOut = factorToVar;
+        w.damp = dampingEnabled;
+        if (schedule == MessageSchedule.ALL_OUTGOING) {
+            // Messages sent by factors depend on messages sent by variables only.
+            // Therefore, the order of nodes doesn't matter.
+            for (int f = 0; f < graph.getNumberOfFactors(); f++)
+                sendFactorMessages(f, w);
+            for (int v = 0; v < graph.getNumberOfVariables(); v++)
+                sendVariableMessages(v, w);
+        }
+        else if (viaFactors) {
+            shuffle(factorOrder);
+            for (int f : factorOrder) {
+                int end = graph.factorEdgeStart[f + 1];
+                for (int e = graph.factorEdgeStart[f]; e < end; e++)
+                    sendFactorMessage(e, w);
+                for (int e = graph.factorEdgeStart[f]; e < end; e++)
+                    sendVariableMessage(e, w);
+            }
+        }
+        else {
+            shuffle(variableOrder);
+            for (int v : variableOrder) {
+                int end = graph.varEdgeStart[v + 1];
+                for (int i = graph.varEdgeStart[v]; i < end; i++)
+                    sendFactorMessage(graph.varEdges[i], w);
+                for (int i = graph.varEdgeStart[v]; i < end; i++)
+                    sendVariableMessage(graph.varEdges[i], w);
+            }
+        }
+        return w.maxDiff;
+    }
+
+    /**
+     * Pass messages for a graph without loop in two passes: from leaves to roots and then from
+     * roots to leaves, following CompiledFactorGraph.treeEdges. Each message is sent once after all
+     * messages it depends on have been sent, so that beliefs are exact after 2 * |E| messages and
+     * initial messages are not used.
+     * @return the maximum difference between new messages and the messages before the passes
+     */
+    public double passTreeMessages() {
+        if (!graph.isTree())
+            throw new IllegalStateException("The compiled graph has loops: two-pass message passing cannot be used.");
+        Workspace w = workspace;
+        w.maxDiff = 0.0d;
+        w.varToFactorOut = varToFactor;
+        w.factorToVarOut = factorToVar;
+        w.damp = false;
+        int[] edges = graph.treeEdges;
+        boolean[] fromVariable = graph.treeEdgeFromVariable;
+        // Upward: from children to parents
+        for (int i = edges.length - 1; i >= 0; i--) {
+            if (fromVariable[i])
+                sendFactorMessage(edges[i], w);
+            else
+                sendVariableMessage(edges[i], w);
+        }
+        // Downward: from parents to children
+        for (int i = 0; i < edges.length; i++) {
+            if (fromVariable[i])
+                sendVariableMessage(edges[i], w);
+            else
+                sendFactorMessage(edges[i], w);
+        }
+        return w.maxDiff;
+    }
+
+    /**
+     * All new messages are calculated from messages in the previous iteration and written into
+     * the second buffers, which are swapped with the current buffers after all nodes are done.
+     * Nodes are split into chunks, each of which is handled by a task with its own Workspace
+     * and its own maximum difference.
+     * @return
+     */
+    private double flood() {
+        if (nextVarToFactor == null) {
+            nextVarToFactor = new double[graph.messageSize];
+            nextFactorToVar = new double[graph.messageSize];
+        }
+        if (pool == null)
+            pool = ForkJoinPool.commonPool();
+        if (tasks == null)
+            tasks = createSweepTasks();
+        for (SweepTask task : tasks) {
+            task.reinitialize();
+            task.workspace.varToFactorOut = nextVarToFactor;
+            task.workspace.factorToVarOut = nextFactorToVar;
+            task.workspace.damp = dampingEnabled;
+        }
+        pool.invoke(new RecursiveTask<Double>() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected Double compute() {
+                invokeAll(tasks);
+                return null;
+            }
+        });
+        // Reduce
+        double maxDiff = 0.0d;
+        for (SweepTask task : tasks) {
+            if (task.workspace.maxDiff > maxDiff)
+                maxDiff = task.workspace.maxDiff;
+            messageUpdates += task.workspace.updates;
+            task.workspace.updates = 0;
+        }
+        double[] tmp = varToFactor;
+        varToFactor = nextVarToFactor;
+        nextVarToFactor = tmp;
+        tmp = factorToVar;
+        factorToVar = nextFactorToVar;
+        nextFactorToVar = tmp;
+        return maxDiff;
+    }
+
+    /**
+     * Send up to the number of edges messages from factors to variables, picking the message
+     * having the largest residual each time. After a message is sent to a variable, messages from
+     * this variable to its other factors are updated, and messages from these factors to their
+     * other variables are re-calculated as pending messages with new residuals. Messages whose
+     * inputs don't change are never re-calculated.
+     * @return the largest residual left
+     */
+    private double sendResidualMessages() {
+        Workspace w = workspace;
+        w.varToFactorOut = varToFactor;
+        w.factorToVarOut = factorToVar;
+        w.damp = false;
+        if (residualQueue == null)
+            initializeResiduals(w);
+        int total = graph.getNumberOfEdges();
+        for (int i = 0; i < total; i++) {
+            if (residualQueue.isEmpty() || residualQueue.getMaxResidual() <= tolerance)
+                break;
+            int edge = residualQueue.peek();
+            int v = graph.edgeVariable[edge];
+            int states = graph.varStates[v];
+            System.arraycopy(pendingFactorToVar, graph.messageOffset[edge], w.messageBuffer, 0, states);
+            updateMessage(factorToVar, factorToVar, edge, w.messageBuffer, states, w);
+            residualQueue.update(edge, 0.0d);
+            // The message to the factor along the edge doesn't change
+            sendVariableMessages(v, w);
+            int end = graph.varEdgeStart[v + 1];
+            for (int j = graph.varEdgeStart[v]; j < end; j++) {
+                int varEdge = graph.varEdges[j];
+                if (varEdge == edge)
+                    continue;
+                int f = graph.edgeFactor[varEdge];
+                int factorEnd = graph.factorEdgeStart[f + 1];
+                for (int e = graph.factorEdgeStart[f]; e < factorEnd; e++) {
+                    if (e == varEdge)
+                        continue;
+                    updateResidual(e, w);
+                }
+            }
+        }
+        return residualQueue.getMaxResidual();
+    }
+
+    private void initializeResiduals(Workspace w) {
+        residualQueue = new ResidualQueue(graph.getNumberOfEdges());
+        if (pendingFactorToVar == null)
+            pendingFactorToVar = new double[graph.messageSize];
+        for (int v = 0; v < graph.getNumberOfVariables(); v++)
+            sendVariableMessages(v, w);
+        for (int e = 0; e < graph.getNumberOfEdges(); e++)
+            updateResidual(e, w);
+    }
+
+    /**
+     * Re-calculate the pending message along the passed edge and its residual.
+     */
+    private void updateResidual(int edge, Workspace w) {
+        int states = computeFactorMessage(edge, w);
+        int offset = graph.messageOffset[edge];
+        double residual = 0.0d;
+        for (int s = 0; s < states; s++) {
+            double value = w.messageBuffer[s];
+            pendingFactorToVar[offset + s] = value;
+            double diff = Math.abs(value - factorToVar[offset + s]);
+            // Make sure a NaN message is sent so that an exception can be thrown
+            if (Double.isNaN(diff))
+                diff = Double.POSITIVE_INFINITY;
+            if (diff > residual)
+                residual = diff;
+        }
+        residualQueue.update(edge, residual);
+    }
+
+    private List<SweepTask> createSweepTasks() {
+        // Factors are listed first as nodes, followed by variables
+        int total = graph.getNumberOfFactors() + graph.getNumberOfVariables();
+        // A few chunks for each thread for load balance
+        int chunks = Math.max(1, Math.min(total, pool.getParallelism() * 4));
+        List<SweepTask> list = new ArrayList<SweepTask>(chunks);
+        for (int i = 0; i < chunks; i++) {
+            int start = (int) ((long) total * i / chunks);
+            int end = (int) ((long) total * (i + 1) / chunks);
+            list.add(new SweepTask(start, end));
+        }
+        return list;
+    }
+
+    private void shuffle(int[] order) {
+        for (int i = order.length - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int tmp = order[i];
+            order[i] = order[j];
+            order[j] = tmp;
+        }
+    }
+
+    /**
+     * Send a message from a variable to a factor along the passed edge.
+     * @param edge
+     */
+    private void sendVariableMessage(int edge, Workspace w) {
+        int v = graph.edgeVariable[edge];
+        int states = graph.varStates[v];
+        double[] message = w.messageBuffer;
+        System.arraycopy(evidence, graph.varOffset[v], message, 0, states);
+        int end = graph.varEdgeStart[v + 1];
+        for (int i = graph.varEdgeStart[v]; i < end; i++) {
+            int other = graph.varEdges[i];
+            if (other == edge)
+                continue;
+            int offset = graph.messageOffset[other];
+            for (int s = 0; s < states; s++) {
+                if (logSpace)
+                    message[s] += factorToVar[offset + s];
+                else
+                    message[s] *= factorToVar[offset + s];
+            }
+        }
+        normalize(message, states, logSpace, logSpace);
+        updateMessage(varToFactor, w.varToFactorOut, edge, message, states, w);
+    }
+
+    /**
+     * Send messages from a variable to all its factors. Prefix and suffix products of
+     * incoming messages are used so that the cost is linear to the degree of the variable.
+     * @param v
+     */
+    private void sendVariableMessages(int v, Workspace w) {
+        int start = graph.varEdgeStart[v];
+        int degree = graph.varEdgeStart[v + 1] - start;
+        int states = graph.varStates[v];
+        double identity = logSpace ? 0.0d : 1.0d;
+        double[] suffix = w.suffixBuffer;
+        // suffix[i] is the product of incoming messages from i to degree - 1
+        for (int s = 0; s < states; s++)
+            suffix[degree * states + s] = identity;
+        for (int i = degree - 1; i >= 0; i--) {
+            int offset = graph.messageOffset[graph.varEdges[start + i]];
+            for (int s = 0; s < states; s++) {
+                if (logSpace)
+                    suffix[i * states + s] = suffix[(i + 1) * states + s] + factorToVar[offset + s];
+                else
+                    suffix[i * states + s] = suffix[(i + 1) * states + s] * factorToVar[offset + s];
+            }
+        }
+        // Evidence is put into prefix
+        double[] prefix = w.prefixBuffer;
+        System.arraycopy(evidence, graph.varOffset[v], prefix, 0, states);
+        double[] message = w.messageBuffer;
+        for (int i = 0; i < degree; i++) {
+            int edge = graph.varEdges[start + i];
+            int offset = graph.messageOffset[edge];
+            for (int s = 0; s < states; s++) {
+                if (logSpace)
+                    message[s] = prefix[s] + suffix[(i + 1) * states + s];
+                else
+                    message[s] = prefix[s] * suffix[(i + 1) * states + s];
+            }
+            // Have to update prefix before the message is updated
+            for (int s = 0; s < states; s++) {
+                if (logSpace)
+                    prefix[s] += factorToVar[offset + s];
+                else
+                    prefix[s] *= factorToVar[offset + s];
+            }
+            normalize(message, states, logSpace, logSpace);
+            updateMessage(varToFactor, w.varToFactorOut, edge, message, states, w);
+        }
+    }
+
+    /**
+     * Send a message from a factor to a variable along the passed edge.
+     * @param edge
+     */
+    private void sendFactorMessage(int edge, Workspace w) {
+        int states = computeFactorMessage(edge, w);
+        updateMessage(factorToVar, w.factorToVarOut, edge, w.messageBuffer, states, w);
+    }
+    
+    /**
+     * Calculate the message from a factor to a variable along the passed edge. The message
+     * is kept in the message buffer of the passed Workspace.
+     * @return the number of states of the message
+     */
+    private int computeFactorMessage(int edge, Workspace w) {
+        int f = graph.edgeFactor[edge];
+        double[] table = w.directTableBuffer;
+        int size = fillFactorTable(f, edge, table);
+        int v = graph.edgeVariable[edge];
+        int states = graph.varStates[v];
+        double[] message = w.messageBuffer;
+        // Work in the log domain directly for the log space
+        if (inferenceType == InferenceType.MAX_PRODUCT)
+            maximize(table, size, graph.edgeStride[edge], states, message);
+        else if (logSpace)
+            logMarginalize(table, size, graph.edgeStride[edge], states, message, w.prefixBuffer);
+        else
+            marginalize(table, size, graph.edgeStride[edge], states, message);
+        normalize(message, states, logSpace, logSpace);
+        return states;
+    }
+
+    /**
+     * Send messages from a factor to all its variables. The factor table is multiplied
+     * with all incoming messages once. The message to a variable is calculated by dividing
+     * the marginal of the product by the incoming message from that variable, which is a constant
+     * for each state of the variable (a subtraction in the log space). If the incoming message
+     * contains a zero, the message is calculated directly.
+     * @param f
+     */
+    private void sendFactorMessages(int f, Workspace w) {
+        double[] table = w.tableBuffer;
+        int size = fillFactorTable(f, -1, table);
+        // Maximization can be done in the log domain directly. For marginalization, the table
+        // is converted once for all outgoing messages, which needs fewer exp() than log-sum-exp
+        // for each message.
+        boolean logMax = logSpace && inferenceType == InferenceType.MAX_PRODUCT;
+        if (logSpace && !logMax)
+            convertLogToProb(table, size);
+        double[] message = w.messageBuffer;
+        int end = graph.factorEdgeStart[f + 1];
+        for (int e = graph.factorEdgeStart[f]; e < end; e++) {
+            int states = graph.varStates[graph.edgeVariable[e]];
+            if (inferenceType == InferenceType.MAX_PRODUCT)
+                maximize(table, size, graph.edgeStride[e], states, message);
+            else
+                marginalize(table, size, graph.edgeStride[e], states, message);
+            int offset = graph.messageOffset[e];
+            boolean needDirect = false;
+            for (int s = 0; s < states; s++) {
+                double in = varToFactor[offset + s];
+                if (logMax) {
+                    if (Double.isInfinite(message[s]) || Double.isInfinite(in)) {
+                        needDirect = true;
+                        break;
+                    }
+                    message[s] -= in;
+                }
+                else if (logSpace) {
+                    if (message[s] == 0.0d || Double.isInfinite(in)) {
+                        needDirect = true;
+                        break;
+                    }
+                    message[s] = Math.log(message[s]) - in;
+                }
+                else {
+                    if (in == 0.0d) {
+                        needDirect = true;
+                        break;
+                    }
+                    message[s] /= in;
+                }
+            }
+            if (needDirect) {
+                sendFactorMessage(e, w);
+                continue;
+            }
+            normalize(message, states, logSpace, logSpace);
+            updateMessage(factorToVar, w.factorToVarOut, e, message, states, w);
+        }
+    }
+
+    /**
+     * Copy the values of the factor into the passed table buffer, and multiply in all
+     * incoming messages except the one along the passed edge. Use -1 for the edge
+     * to multiply all incoming messages.
+     * @return the size of the factor table
+     */
+    private int fillFactorTable(int f,
+                                int excludedEdge,
+                                double[] table) {
+        int tableStart = graph.tableOffset[f];
+        int size = graph.tableOffset[f + 1] - tableStart;
+        // Log values are cached in the compiled graph
+        System.arraycopy(logSpace ? graph.logTables : graph.tables, tableStart, table, 0, size);
+        int end = graph.factorEdgeStart[f + 1];
+        for (int e = graph.factorEdgeStart[f]; e < end; e++) {
+            if (e == excludedEdge)
+                continue;
+            multiplyIn(table,
+                       size,
+                       varToFactor,
+                       graph.messageOffset[e],
+                       graph.edgeStride[e],
+                       graph.varStates[graph.edgeVariable[e]]);
+        }
+        return size;
+    }
+
+    /**
+     * Multiply a variable message into a factor table. Cells in the table are visited
+     * in blocks of the variable stride so that no division is needed to get the variable
+     * state for a cell.
+     */
+    private void multiplyIn(double[] table,
+                            int size,
+                            double[] messages,
+                            int offset,
+                            int stride,
+                            int states) {
+        int block = stride * states;
+        for (int outer = 0; outer < size; outer += block) {
+            for (int s = 0; s < states; s++) {
+                double m = messages[offset + s];
+                int start = outer + s * stride;
+                int end = start + stride;
+                if (logSpace) {
+                    for (int i = start; i < end; i++)
+                        table[i] += m;
+                }
+                else {
+                    for (int i = start; i < end; i++)
+                        table[i] *= m;
+                }
+            }
+        }
+    }
+
+    private void marginalize(double[] table,
+                             int size,
+                             int stride,
+                             int states,
+                             double[] rtn) {
+        for (int s = 0; s < states; s++)
+            rtn[s] = 0.0d;
+        int block = stride * states;
+        for (int outer = 0; outer < size; outer += block) {
+            for (int s = 0; s < states; s++) {
+                int start = outer + s * stride;
+                int end = start + stride;
+                double sum = 0.0d;
+                for (int i = start; i < end; i++)
+                    sum += table[i];
+                rtn[s] += sum;
+            }
+        }
+    }
+
+    /**
+     * Marginalize a table in the log domain using log-sum-exp for each state so that no
+     * conversion of the whole table is needed. The passed buffer is used for sums.
+     */
+    private void logMarginalize(double[] table,
+                                int size,
+                                int stride,
+                                int states,
+                                double[] rtn,
+                                double[] sums) {
+        for (int s = 0; s < states; s++) {
+            rtn[s] = Double.NEGATIVE_INFINITY;
+            sums[s] = 0.0d;
+        }
+        int block = stride * states;
+        for (int outer = 0; outer < size; outer += block) {
+            for (int s = 0; s < states; s++) {
+                int start = outer + s * stride;
+                for (int i = start; i < start + stride; i++) {
+                    if (table[i] > rtn[s])
+                        rtn[s] = table[i];
+                }
+            }
+        }
+        for (int outer = 0; outer < size; outer += block) {
+            for (int s = 0; s < states; s++) {
+                double max = rtn[s];
+                if (max == Double.NEGATIVE_INFINITY)
+                    continue; // All zeros
+                int start = outer + s * stride;
+                double sum = 0.0d;
+                for (int i = start; i < start + stride; i++)
+                    sum += Math.exp(table[i] - max);
+                sums[s] += sum;
+            }
+        }
+        for (int s = 0; s < states; s++) {
+            if (rtn[s] != Double.NEGATIVE_INFINITY)
+                rtn[s] += Math.log(sums[s]);
+        }
+    }
+
+    /**
+     * Maximize a table. This works for both spaces since the log is monotonic: the table is
+     * in the log domain if the log space is used.
+     */
+    private void maximize(double[] table,
+                          int size,
+                          int stride,
+                          int states,
+                          double[] rtn) {
+        double initial = logSpace ? Double.NEGATIVE_INFINITY : 0.0d;
+        for (int s = 0; s < states; s++)
+            rtn[s] = initial;
+        int block = stride * states;
+        for (int outer = 0; outer < size; outer += block) {
+            for (int s = 0; s < states; s++) {
+                int start = outer + s * stride;
+                int end = start + stride;
+                for (int i = start; i < end; i++) {
+                    if (table[i] > rtn[s])
+                        rtn[s] = table[i];
+                }
+            }
+        }
+    }
+
+    /**
+     * Write a new message into the target buffer and update the maximum difference
+     * against the current message.
+     */
+    private void updateMessage(double[] current,
+                               double[] target,
+                               int edge,
+                               double[] message,
+                               int states,
+                               Workspace w) {
+        int offset = graph.messageOffset[edge];
+        w.updates ++;
+        for (int s = 0; s < states; s++) {
+            if (Double.isNaN(message[s]))
+                throw new IllegalStateException("A Message contains NaN: a possible numerical underflow occurs. Probably the log-space should be used for computation.");
+            // See LoopyBeliefPropagation.sendMessage() about why the difference is
+            // calculated directly in the log space.
+            double diff = Math.abs(message[s] - current[offset + s]);
+            if (diff > w.maxDiff)
+                w.maxDiff = diff;
+        }
+        if (w.damp) {
+            boolean isVarToFactor = current == varToFactor;
+            double[] change = isVarToFactor ? varToFactorChange : factorToVarChange;
+            int[] reversals = isVarToFactor ? varToFactorReversals : factorToVarReversals;
+            if (Edge.recordChange(message, current, offset, change, offset, states))
+                reversals[edge] ++;
+            double damping = isVarToFactor ? varToFactorDamping[edge] : factorToVarDamping[edge];
+            if (damping > 0.0d)
+                Edge.damp(message, 0, current, offset, states, damping, logSpace);
+        }
+        System.arraycopy(message, 0, target, offset, states);
+    }
+
+    /**
+     * Calculate beliefs in the probability space. Beliefs of variables are packed by
+     * CompiledFactorGraph.varOffset, and beliefs of factors by CompiledFactorGraph.tableOffset.
+     * @param varBeliefs
+     * @param factorBeliefs
+     */
+    public void calculateBeliefs(double[] varBeliefs,
+                                 double[] factorBeliefs) {
+        double[] belief = workspace.messageBuffer;
+        for (int v = 0; v < graph.getNumberOfVariables(); v++) {
+            int states = graph.varStates[v];
+            System.arraycopy(evidence, graph.varOffset[v], belief, 0, states);
+            int end = graph.varEdgeStart[v + 1];
+            for (int i = graph.varEdgeStart[v]; i < end; i++) {
+                int offset = graph.messageOffset[graph.varEdges[i]];
+                for (int s = 0; s < states; s++) {
+                    if (logSpace)
+                        belief[s] += factorToVar[offset + s];
+                    else
+                        belief[s] *= factorToVar[offset + s];
+                }
+            }
+            normalize(belief, states, logSpace, false);
+            System.arraycopy(belief, 0, varBeliefs, graph.varOffset[v], states);
+        }
+        for (int f = 0; f < graph.getNumberOfFactors(); f++) {
+            int size = fillFactorTable(f, -1, workspace.tableBuffer);
+            normalize(workspace.tableBuffer, size, logSpace, false);
+            System.arraycopy(workspace.tableBuffer, 0, factorBeliefs, graph.tableOffset[f], size);
+        }
+    }
+
+    /**
+     * The same as FGNode.normalize() except a length is used.
+     */
+    private void normalize(double[] values,
+                           int length,
+                           boolean logSpace,
+                           boolean needBackToLogSpace) {
+        if (logSpace)
+            convertLogToProb(values, length);
+        double sum = 0.0d;
+        for (int i = 0; i < length; i++)
+            sum += values[i];
+        for (int i = 0; i < length; i++)
+            values[i] /= sum;
+        if (needBackToLogSpace) {
+            for (int i = 0; i < length; i++)
+                values[i] = Math.log(values[i]);
+        }
+    }
+
+    private void convertLogToProb(double[] values, int length) {
+        double max = values[0];
+        for (int i = 1; i < length; i++) {
+            if (values[i] > max)
+                max = values[i];
+        }
+        for (int i = 0; i < length; i++)
+            values[i] = Math.exp(values[i] - max);
+    }
+
+    /**
+     * Buffers used by one thread.
+     */
+    private class Workspace {
+        private double[] tableBuffer;
+        private double[] directTableBuffer;
+        private double[] messageBuffer;
+        private double[] prefixBuffer;
+        private double[] suffixBuffer;
+        // Where new messages are written
+        private double[] varToFactorOut;
+        private double[] factorToVarOut;
+        private double maxDiff;
+        // Apply damping to new messages
+        private boolean damp;
+        // Number of updated messages
+        private long updates;
+
+        public Workspace() {
+            tableBuffer = new double[graph.maxTableSize];
+            directTableBuffer = new double[graph.maxTableSize];
+            messageBuffer = new double[graph.maxStates];
+            prefixBuffer = new double[graph.maxStates];
+            suffixBuffer = new double[(graph.maxDegree + 1) * graph.maxStates];
+        }
+    }
+
+    /**
+     * A task to update a chunk of nodes in the FLOODING schedule. Nodes with indices
+     * less than the number of factors are factors, and the rest are variables.
+     */
+    private class SweepTask extends RecursiveTask<Double> {
+        private static final long serialVersionUID = 1L;
+        private int start;
+        private int end;
+        private Workspace workspace;
+
+        public SweepTask(int start, int end) {
+            this.start = start;
+            this.end = end;
+            this.workspace = new Workspace();
+        }
+
+        @Override
+        protected Double compute() {
+            workspace.maxDiff = 0.0d;
+            int factors = graph.getNumberOfFactors();
+            for (int i = start; i < end; i++) {
+                if (i < factors)
+                    sendFactorMessages(i, workspace);
+                else
+                    sendVariableMessages(i - factors, workspace);
+            }
+            return workspace.maxDiff;
+        }
+    }
+
+}
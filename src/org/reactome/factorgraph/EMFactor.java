@@ -70,12 +70,10 @@ public class EMFactor extends Factor {
      */
     public void updateFactorValues() {
         double[] parentCounts = marginalize(counts, parent);
-        int parentIndex = variables.indexOf(parent);
-        int parentStride = strides.get(parentIndex);
-        for (int i = 0; i < counts.length; i++) {
-            int parentState = (int) Math.floor(i / (double) parentStride) % parent.getStates();
-            values[i] = counts[i] / parentCounts[parentState];
-        }
+        int[] parentStateIndex = getStateIndex(parent);
+        for (int i = 0; i < counts.length; i++)
+            values[i] = counts[i] / parentCounts[parentStateIndex[i]];
+        logValues = null;
     }
     
     public void randomFactorValues() {
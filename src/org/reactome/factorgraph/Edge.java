@@ -16,6 +16,11 @@ public class Edge {
     // Message along this edge
     // Use a double array should be faster than using a double ArrayList
     private double[] message;
+    // Weight of the old message used in damping
+    private double damping;
+    // The last change of message and the number of reversed changes for detecting oscillation
+    private double[] change;
+    private int reversals;
     
     /**
      * Default constructor.
@@ -69,5 +74,95 @@ public class Edge {
         message = new double[state];
         for (int i = 0; i < state; i++)
             message[i] = (logSpace ? Math.log(initialMessage) : initialMessage);
+        change = null;
+        reversals = 0;
+    }
+
+    public double getDamping() {
+        return damping;
+    }
+
+    public void setDamping(double damping) {
+        this.damping = damping;
+    }
+
+    int getReversals() {
+        return reversals;
+    }
+
+    void resetReversals() {
+        reversals = 0;
+    }
+
+    /**
+     * Update this edge with a new message: the change from the current message is recorded for
+     * detecting oscillation if trackChange is true, and damping is applied to the new message
+     * before it is copied.
+     * @param newMessage the new message, which may be changed by damping
+     * @param trackChange
+     * @param logSpace
+     */
+    void updateMessage(double[] newMessage,
+                       boolean trackChange,
+                       boolean logSpace) {
+        if (trackChange) {
+            if (change == null)
+                change = new double[newMessage.length];
+            if (recordChange(newMessage, message, 0, change, 0, message.length))
+                reversals ++;
+        }
+        if (damping > 0.0d)
+            damp(newMessage, 0, message, 0, message.length, damping, logSpace);
+        setMessage(newMessage);
+    }
+
+    /**
+     * Record the change from the old message to the new message and check if the change reverses
+     * the previously recorded one (i.e. the dot product of two changes is negative).
+     */
+    static boolean recordChange(double[] newMessage,
+                                double[] oldMessage,
+                                int oldOffset,
+                                double[] change,
+                                int changeOffset,
+                                int length) {
+        double dot = 0.0d;
+        for (int i = 0; i < length; i++) {
+            double delta = newMessage[i] - oldMessage[oldOffset + i];
+            // Infinity may be generated in the log space
+            if (Double.isNaN(delta) || Double.isInfinite(delta))
+                delta = 0.0d;
+            dot += delta * change[changeOffset + i];
+            change[changeOffset + i] = delta;
+        }
+        return dot < 0.0d;
+    }
+
+    /**
+     * Mix the new message with the old message as described in the PGM book page 408:
+     * new = (1 - damping) * new + damping * old. In the log space, the mix is done in the
+     * probability space.
+     */
+    static void damp(double[] newMessage,
+                     int newOffset,
+                     double[] oldMessage,
+                     int oldOffset,
+                     int length,
+                     double damping,
+                     boolean logSpace) {
+        for (int i = 0; i < length; i++) {
+            double value = newMessage[newOffset + i];
+            double old = oldMessage[oldOffset + i];
+            if (!logSpace) {
+                newMessage[newOffset + i] = (1.0d - damping) * value + damping * old;
+                continue;
+            }
+            // Shift by the max to avoid overflow
+            double max = Math.max(value, old);
+            if (Double.isInfinite(max))
+                continue; // Both are zero or something is wrong already
+            newMessage[newOffset + i] = max + Math.log((1.0d - damping) * Math.exp(value - max) + 
+                                                       damping * Math.exp(old - max));
+        }
     }
 }
@@ -4,9 +4,12 @@
  */
 package org.reactome.factorgraph;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import org.apache.log4j.Logger;
 
@@ -32,6 +35,23 @@ public class ExpectationMaximization {
     // To control if debug is needed: the debug is controled by log4j.
     // So in order to see debugging information, log4j should be enabled
     private boolean debug;
+    // For running the E-step in parallel: 1 (default) for the calling thread only
+    // and 0 for the common ForkJoinPool
+    private int numberOfThreads = 1;
+    private ForkJoinPool pool;
+    // Tasks for the parallel E-step, which are kept across iterations
+    private List<ExpectTask> expectTasks;
+    // Start inference for each evidence from messages converged in the previous iteration
+    private boolean useWarmStart;
+    // Messages kept for each evidence, and for no evidence as the last element
+    private double[][] evidenceMessages;
+    // Kept messages are not used if factor values have changed more than this value
+    private double warmStartThreshold = 0.1d;
+    // The accumulated largest change of factor values between E-steps, the value of valueChange when
+    // messages were kept for each evidence, and factor values used in the last E-step
+    private double valueChange;
+    private double[] evidenceValueChange;
+    private double[] lastValues;
     
     /**
      * Default constructor.
@@ -76,6 +96,77 @@ public class ExpectationMaximization {
     public double getTolerance() {
         return tolerance;
     }
+    
+    /**
+     * Set the number of threads used to run inferences for evidences in the E-step. The default
+     * value 1 means all inferences are run in the calling thread one by one. 0 means the common
+     * ForkJoinPool is used. The parallel E-step is supported when LoopyBeliefPropagation is used as the
+     * inferencer: each thread works on a chunk of evidences with its own InferenceState and count
+     * buffers, which are added into EMFactors before the M-step.
+     * @param numberOfThreads
+     */
+    public void setNumberOfThreads(int numberOfThreads) {
+        if (numberOfThreads < 0)
+            throw new IllegalArgumentException("The number of threads should not be negative: " + numberOfThreads);
+        if (numberOfThreads != this.numberOfThreads) {
+            if (pool != null) {
+                pool.shutdown();
+                pool = null;
+            }
+            expectTasks = null;
+        }
+        this.numberOfThreads = numberOfThreads;
+    }
+    
+    public int getNumberOfThreads() {
+        return this.numberOfThreads;
+    }
+    
+    /**
+     * Set true to keep converged messages for each evidence and start the inference for the same
+     * evidence in the next E-step from these messages instead of the initial message. Since factor values
+     * change a little between two iterations, inferences need fewer iterations after the first several
+     * EM iterations. This is supported when LoopyBeliefPropagation is used as the inferencer. 
+     * Note: Warm start is not equivalent to starting from the initial message: LBP may have more than one
+     * fixed point for an evidence, and messages kept for very different factor values (e.g. before the
+     * first M-step) may converge to another fixed point, which changes learned values. Therefore, kept
+     * messages are used only if factor values have not changed more than the warm start threshold since
+     * they were kept, and the inference is run again from the initial message if it cannot converge from
+     * kept messages. Two copies of all messages in the compiled graph are kept for each evidence.
+     * @param useWarmStart
+     */
+    public void setUseWarmStart(boolean useWarmStart) {
+        this.useWarmStart = useWarmStart;
+        if (!useWarmStart)
+            evidenceMessages = null;
+    }
+    
+    public boolean getUseWarmStart() {
+        return this.useWarmStart;
+    }
+    
+    /**
+     * Set the largest change of factor values allowed for using messages kept for an evidence. The change
+     * is the sum of the largest absolute changes of factor values between E-steps after messages were kept.
+     * @param warmStartThreshold
+     */
+    public void setWarmStartThreshold(double warmStartThreshold) {
+        if (warmStartThreshold < 0.0d)
+            throw new IllegalArgumentException("The warm start threshold should not be negative: " + warmStartThreshold);
+        this.warmStartThreshold = warmStartThreshold;
+    }
+    
+    public double getWarmStartThreshold() {
+        return this.warmStartThreshold;
+    }
+    
+    private synchronized ForkJoinPool getPool() {
+        if (numberOfThreads == 0)
+            return ForkJoinPool.commonPool();
+        if (pool == null)
+            pool = new ForkJoinPool(numberOfThreads);
+        return pool;
+    }
 
     public void setTolerance(double tolerance) {
         this.tolerance = tolerance;
@@ -89,13 +180,11 @@ public class ExpectationMaximization {
      */
     public double learn(FactorGraph factorGraph,
                         List<EMFactor> factors) throws InferenceCannotConvergeException {
-        // Need a target to learn
-        if (factors == null || factors.size() == 0)
-            throw new IllegalArgumentException("No learning factors has been provided.");
-        // Have to make sure evidences have been assigned
-        if (evidences == null || evidences.size() == 0)
-            throw new IllegalStateException("No evidences have been assigned for the EM learning.");
-        inferencer.setFactorGraph(factorGraph);
+        prepareLearning(factorGraph, factors);
+        // All evidences are used in each iteration
+        int[] indices = new int[evidences.size()];
+        for (int i = 0; i < indices.length; i++)
+            indices[i] = i;
         int iteration = 0;
         // Here the change of logZ is used to measure the log likelihood change since
         // log likelihood can be calculated as logZ - logZ0, here logZ is for a factor 
@@ -103,7 +192,9 @@ public class ExpectationMaximization {
         double preLogLikelihood = 0.0d;
         double logLikelihoodDiff = Double.MAX_VALUE;
         while (iteration < maxIteration && logLikelihoodDiff > tolerance) {
-            double logLikelihood = expect(factorGraph, factors);
+            for (EMFactor factor : factors)
+                factor.initCounts();
+            double logLikelihood = expect(factorGraph, factors, indices);
             maximize(factorGraph, factors);
             // At least to run twice in order to compare likelihood
             if (iteration > 0) {
@@ -126,13 +217,37 @@ public class ExpectationMaximization {
     }
     
     /**
-     * The implementation of Procedure Computer-ESS in Algorithm 19.2 in the PGM book.
+     * Check the passed arguments and set up the inferencer before learning.
+     */
+    protected void prepareLearning(FactorGraph factorGraph,
+                                   List<EMFactor> factors) {
+        // Need a target to learn
+        if (factors == null || factors.size() == 0)
+            throw new IllegalArgumentException("No learning factors has been provided.");
+        // Have to make sure evidences have been assigned
+        if (evidences == null || evidences.size() == 0)
+            throw new IllegalStateException("No evidences have been assigned for the EM learning.");
+        inferencer.setFactorGraph(factorGraph);
+        // Messages from the previous call cannot be used
+        evidenceMessages = null;
+        lastValues = null;
+        valueChange = 0.0d;
+    }
+    
+    /**
+     * The implementation of Procedure Computer-ESS in Algorithm 19.2 in the PGM book. Expected
+     * counts are added into counts in the passed factors, which should be initialized before calling
+     * this method. Pass an empty list of factors to calculate the loglikelihood only.
      * @param fg
      * @param factors
+     * @param indices indices of evidences to be used
+     * @return the loglikelihood of evidences at the passed indices
      */
-    private double expect(FactorGraph fg, List<EMFactor> factors) throws InferenceCannotConvergeException {
-        for (EMFactor factor : factors)
-            factor.initCounts();
+    protected double expect(FactorGraph fg, 
+                            List<EMFactor> factors,
+                            int[] indices) throws InferenceCannotConvergeException {
+        if ((numberOfThreads != 1 || useWarmStart) && inferencer instanceof LoopyBeliefPropagation)
+            return expectWithStates((LoopyBeliefPropagation) inferencer, factors, indices);
         // Since we want to get a difference between two runs of EM learning,
         // we don't need to actually calculate the background logZ in order to 
         // calculate loglikelihood to avoid the problem of multiple maximum: two
@@ -145,7 +260,8 @@ public class ExpectationMaximization {
         if (debug)
             logger.info("LogZ: " + logZ);
         double loglikelihood = 0.0d;
-        for (Observation<Integer> obs : evidences) {
+        for (int index : indices) {
+            Observation<Integer> obs = evidences.get(index);
 //            logger.info("Sample " + obs.getName());
             Map<Variable, Integer> varToAssignment = obs.getVariableToAssignment();
             inferencer.setObservation(varToAssignment);
@@ -163,8 +279,231 @@ public class ExpectationMaximization {
         factor.updateCounts();
     }
     
-    private void maximize(FactorGraph fg, List<EMFactor> factors) {
+    /**
+     * Add a factor belief into counts in the parallel E-step. This method is the same as
+     * EMFactor.updateCounts() for one factor, and should be overridden together with
+     * expect(EMFactor). Note: this method is called by multiple threads.
+     * @param beliefs packed beliefs of factors
+     * @param offset the start of the belief in beliefs
+     * @param counts the thread-local counts
+     */
+    protected void expect(double[] beliefs,
+                          int offset,
+                          double[] counts) {
+        for (int i = 0; i < counts.length; i++)
+            counts[i] += beliefs[offset + i];
+    }
+    
+    /**
+     * The E-step with LoopyBeliefPropagation for multiple threads or warm start: inferences are run
+     * on the compiled graph with InferenceState objects so that the FactorGraph is not changed.
+     */
+    private double expectWithStates(LoopyBeliefPropagation lbp,
+                                    List<EMFactor> factors,
+                                    int[] indices) throws InferenceCannotConvergeException {
+        CompiledFactorGraph graph = lbp.getCompiledGraph();
+        // Factor values have been changed by the M-step
+        graph.updateFactorValues();
+        if (expectTasks == null || expectTasks.get(0).state.getCompiledGraph() != graph)
+            expectTasks = createExpectTasks(graph);
+        if (useWarmStart) {
+            if (evidenceMessages == null || evidenceMessages.length != evidences.size() + 1) {
+                evidenceMessages = new double[evidences.size() + 1][];
+                evidenceValueChange = new double[evidences.size() + 1];
+            }
+            updateValueChange(graph);
+        }
+        // Indices of factors in the compiled graph whose beliefs are counted for each EMFactor
+        final int[][] factorIndices = new int[factors.size()][];
+        for (int i = 0; i < factors.size(); i++) {
+            EMFactor factor = factors.get(i);
+            List<EMFactor> countedFactors = null;
+            if (factor instanceof SharedEMFactors)
+                countedFactors = ((SharedEMFactors) factor).getSharedFactors();
+            else
+                countedFactors = Arrays.asList(factor);
+            factorIndices[i] = new int[countedFactors.size()];
+            for (int j = 0; j < countedFactors.size(); j++) {
+                factorIndices[i][j] = graph.getFactorIndex(countedFactors.get(j));
+                if (factorIndices[i][j] < 0)
+                    throw new IllegalArgumentException(countedFactors.get(j) + " is not in the FactorGraph for learning.");
+            }
+        }
+        // The background logZ
+        InferenceState state = expectTasks.get(0).state;
+        state.setObservation(null);
+        runInference(lbp, state, evidences.size());
+        final double logZ = state.calculateLogZ();
+        if (debug)
+            logger.info("LogZ: " + logZ);
+        for (int i = 0; i < expectTasks.size(); i++) {
+            ExpectTask task = expectTasks.get(i);
+            task.reinitialize();
+            // Contiguous chunks of the passed indices
+            int start = (int) ((long) indices.length * i / expectTasks.size());
+            int end = (int) ((long) indices.length * (i + 1) / expectTasks.size());
+            task.prepare(indices, start, end, factors, factorIndices, logZ);
+        }
+        if (numberOfThreads == 1) {
+            for (ExpectTask task : expectTasks)
+                task.invoke();
+        }
+        else {
+            getPool().invoke(new RecursiveAction() {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected void compute() {
+                    invokeAll(expectTasks);
+                }
+            });
+        }
+        // Reduce in the order of tasks so that results don't depend on scheduling
+        double loglikelihood = 0.0d;
+        for (ExpectTask task : expectTasks) {
+            if (task.exception != null)
+                throw task.exception;
+            loglikelihood += task.loglikelihood;
+            for (int i = 0; i < factors.size(); i++) {
+                double[] counts = factors.get(i).getCounts();
+                double[] taskCounts = task.counts[i];
+                for (int j = 0; j < counts.length; j++)
+                    counts[j] += taskCounts[j];
+            }
+        }
+        return loglikelihood;
+    }
+    
+    private List<ExpectTask> createExpectTasks(CompiledFactorGraph graph) {
+        // A few chunks for each thread for load balance
+        int chunks = numberOfThreads == 1 ? 1 : getPool().getParallelism() * 4;
+        List<ExpectTask> tasks = new ArrayList<ExpectTask>(chunks);
+        for (int i = 0; i < chunks; i++)
+            tasks.add(new ExpectTask(new InferenceState(graph)));
+        return tasks;
+    }
+    
+    /**
+     * Add the largest absolute change of factor values since the last E-step into valueChange.
+     */
+    private void updateValueChange(CompiledFactorGraph graph) {
+        double[] values = graph.tables;
+        if (lastValues == null || lastValues.length != values.length) {
+            lastValues = values.clone();
+            return;
+        }
+        double change = 0.0d;
+        for (int i = 0; i < values.length; i++) {
+            change = Math.max(change, Math.abs(values[i] - lastValues[i]));
+            lastValues[i] = values[i];
+        }
+        valueChange += change;
+    }
+    
+    /**
+     * Run inference for the evidence at the passed index, which is set in the passed state already.
+     * The index for no evidence is evidences.size().
+     */
+    private void runInference(LoopyBeliefPropagation lbp,
+                              InferenceState state,
+                              int index) throws InferenceCannotConvergeException {
+        if (!useWarmStart) {
+            state.setWarmStartMessages(null);
+            lbp.runInference(state);
+            return;
+        }
+        double[] messages = evidenceMessages[index];
+        if (messages != null && valueChange - evidenceValueChange[index] > warmStartThreshold)
+            messages = null;
+        state.setWarmStartMessages(messages);
+        try {
+            lbp.runInference(state);
+        }
+        catch(InferenceCannotConvergeException e) {
+            if (messages == null)
+                throw e;
+            // Try again from the initial message
+            state.setWarmStartMessages(null);
+            lbp.runInference(state);
+        }
+        // Each index is used by one thread only
+        evidenceMessages[index] = state.copyMessages(evidenceMessages[index]);
+        evidenceValueChange[index] = valueChange;
+    }
+    
+    protected void maximize(FactorGraph fg, List<EMFactor> factors) {
         for (EMFactor factor : factors)
             factor.updateFactorValues();
     }
+    
+    /**
+     * Run inferences for a chunk of evidences and accumulate thread-local counts.
+     */
+    private class ExpectTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private InferenceState state;
+        // Positions in indices of evidences
+        private int[] indices;
+        private int start;
+        private int end;
+        // Counts for each EMFactor
+        private double[][] counts;
+        private double loglikelihood;
+        private InferenceCannotConvergeException exception;
+        // Set for each E-step
+        private List<EMFactor> factors;
+        private int[][] factorIndices;
+        private double logZ;
+        
+        public ExpectTask(InferenceState state) {
+            this.state = state;
+        }
+        
+        public void prepare(int[] indices,
+                            int start,
+                            int end,
+                            List<EMFactor> factors,
+                            int[][] factorIndices,
+                            double logZ) {
+            this.indices = indices;
+            this.start = start;
+            this.end = end;
+            this.factors = factors;
+            this.factorIndices = factorIndices;
+            this.logZ = logZ;
+            if (counts == null || counts.length != factors.size())
+                counts = new double[factors.size()][];
+            for (int i = 0; i < factors.size(); i++) {
+                int length = factors.get(i).getCounts().length;
+                if (counts[i] == null || counts[i].length != length)
+                    counts[i] = new double[length];
+                else
+                    Arrays.fill(counts[i], 0.0d);
+            }
+            loglikelihood = 0.0d;
+            exception = null;
+        }
+        
+        @Override
+        protected void compute() {
+            LoopyBeliefPropagation lbp = (LoopyBeliefPropagation) inferencer;
+            CompiledFactorGraph graph = state.getCompiledGraph();
+            try {
+                for (int i = start; i < end; i++) {
+                    state.setObservation(evidences.get(indices[i]));
+                    runInference(lbp, state, indices[i]);
+                    double[] beliefs = state.getFactorBeliefs();
+                    for (int j = 0; j < factors.size(); j++) {
+                        for (int f : factorIndices[j])
+                            expect(beliefs, graph.tableOffset[f], counts[j]);
+                    }
+                    loglikelihood += (state.calculateLogZ() - logZ);
+                }
+            }
+            catch(InferenceCannotConvergeException e) {
+                exception = e;
+            }
+        }
+    }
+    
 }
@@ -27,6 +27,14 @@ public class Factor extends FGNode {
     protected List<Variable> variables;
     // Stride is defined as in Page 358 of the PGM book by Holler and Friedman
     protected List<Integer> strides;
+    // The same as strides to avoid auto-unboxing in loops
+    @XmlTransient
+    protected int[] strideArray;
+    // Lazily built maps from the index of a value to the state of a variable, 
+    // indexed by the position of the variable in the variables list. Volatile 
+    // is used since a new array is assigned when a map is built.
+    @XmlTransient
+    private volatile int[][] stateIndices;
     // Cached strides in order to assign values
     // Use double array should be faster than using ArrayList<Double>
     @XmlElement(name="values")
@@ -34,6 +42,13 @@ public class Factor extends FGNode {
     // Kept a set of double array for re-using
     @XmlTransient
     private Map<Integer, double[]> statesToMessage;
+    // Cached logs of values for message passing in the log space. Subclasses changing values
+    // in place should set it to null.
+    @XmlTransient
+    protected double[] logValues;
+    // Buffer for log-sum-exp
+    @XmlTransient
+    private double[] logSums;
     
     /**
      * Default constructor.
@@ -65,6 +80,7 @@ public class Factor extends FGNode {
         validVariableToStateArgument(variableToState);
         int index = getIndexForAssignment(variableToState);
         values[index] = value;
+        logValues = null;
     }
     
     public void setValues(List<Double> values) {
@@ -79,6 +95,35 @@ public class Factor extends FGNode {
             throw new IllegalArgumentException("The passed values has a size that is not consisitent "
                     + "with the total states of variables contained by this Factor object.");
         this.values = values;
+        this.logValues = null;
+    }
+    
+    /**
+     * Re-calculate the cached logs of values used in the log space. This method should be
+     * called if values have been changed in the array returned by getValues() directly (e.g.
+     * during parameter learning). LoopyBeliefPropagation calls this method before inference.
+     */
+    public void updateLogValues() {
+        if (values == null)
+            return;
+        double[] logs = logValues;
+        if (logs == null || logs.length != values.length)
+            logs = new double[values.length];
+        for (int i = 0; i < values.length; i++)
+            logs[i] = Math.log(values[i]);
+        logValues = logs;
+    }
+    
+    /**
+     * Get the cached logs of values. The cache is cleared by setValue(), setValues() and setVariables(),
+     * but not by changes made in the array returned by getValues(). Call updateLogValues() or setValues()
+     * after such changes.
+     * @return
+     */
+    protected double[] getLogValues() {
+        if (logValues == null || logValues.length != values.length)
+            updateLogValues();
+        return logValues;
     }
     
     private int getTotalStates() {
@@ -103,7 +148,7 @@ public class Factor extends FGNode {
             if (state == null) {
                 throw new IllegalArgumentException("The passed argument doesn't contain state for variable " + var);
             }
-            index += state * strides.get(i);
+            index += state * getStrideArray()[i];
         }
         return index;
     }
@@ -148,21 +193,22 @@ public class Factor extends FGNode {
 //            throw new IllegalArgumentException("The passed target, " + target + ", is not contained by this factor object.");
         if (message == null)
             message = new double[values.length];
-        // Reset message
-        for (int i = 0; i < values.length; i++)
-            message[i] = (logSpace ? Math.log(values[i]) : values[i]);
+        // Reset message. Logs of values are cached for the log space.
+        System.arraycopy(logSpace ? getLogValues() : values, 0, message, 0, values.length);
         multiple(target, message, logSpace);
-        // Marginalize variables except target
-        if (logSpace)
-            convertLogToProb(message);
+        // Marginalize variables except target. In the log space, this is done in the log
+        // domain directly.
         double[] rtn = null;
         if (inferenceType == InferenceType.MAX_PRODUCT) {
-            rtn = maximize(message, (Variable)target);
+            rtn = maximize(message, (Variable)target, logSpace);
+        }
+        else if (logSpace) {
+            rtn = logMarginalize(message, (Variable)target);
         }
         else {// Default inference type should be SUM_PRODUCT
             rtn = marginalize(message, (Variable)target);
         }
-        normalize(rtn, false, logSpace);
+        normalize(rtn, logSpace, logSpace);
 //        // The following code should not be used in the production environment
 //        for (int i = 0; i < rtn.length; i++) {
 //            if (Double.isNaN(rtn[i]))
@@ -173,6 +219,85 @@ public class Factor extends FGNode {
         return rtn;
     }
     
+    /**
+     * Get the position of the passed Variable in the variables list. This method
+     * compares references only, which is faster than List.indexOf().
+     * @param var
+     * @return
+     */
+    protected int getVariableIndex(Variable var) {
+        for (int i = 0; i < variables.size(); i++) {
+            if (variables.get(i) == var)
+                return i;
+        }
+        return -1;
+    }
+    
+    /**
+     * Get a map from the index of a value in this Factor to the state of the
+     * Variable at the passed position. The map is built when it is requested
+     * the first time, and then cached.
+     * @param varIndex
+     * @return
+     */
+    protected int[] getStateIndex(int varIndex) {
+        int[][] indices = stateIndices;
+        if (indices != null && indices[varIndex] != null)
+            return indices[varIndex];
+        return buildStateIndex(varIndex);
+    }
+    
+    /**
+     * The same as getStateIndex(int) for the passed Variable object, which should be
+     * contained by this Factor.
+     * @param var
+     * @return
+     */
+    protected int[] getStateIndex(Variable var) {
+        return getStateIndex(getVariableIndex(var));
+    }
+    
+    private synchronized int[] buildStateIndex(int varIndex) {
+        int[][] indices = stateIndices;
+        if (indices != null && indices[varIndex] != null)
+            return indices[varIndex]; // Built by another thread
+        int size = getTotalStates();
+        int stride = getStrideArray()[varIndex];
+        int states = variables.get(varIndex).getStates();
+        int[] map = new int[size];
+        // Walk the values in blocks so that no division is needed
+        int block = stride * states;
+        for (int outer = 0; outer < size; outer += block) {
+            for (int s = 0; s < states; s++) {
+                int start = outer + s * stride;
+                for (int i = start; i < start + stride; i++)
+                    map[i] = s;
+            }
+        }
+        // Publish a new array so that other threads can see a complete map
+        int[][] copy = new int[variables.size()][];
+        if (indices != null)
+            System.arraycopy(indices, 0, copy, 0, indices.length);
+        copy[varIndex] = map;
+        stateIndices = copy;
+        return map;
+    }
+    
+    /**
+     * Get strides as an int array. The array is rebuilt from the strides list
+     * if it is not there (e.g. this Factor is unmarshalled via JAXB).
+     * @return
+     */
+    protected int[] getStrideArray() {
+        if (strideArray == null && strides != null) {
+            int[] array = new int[strides.size()];
+            for (int i = 0; i < array.length; i++)
+                array[i] = strides.get(i);
+            strideArray = array;
+        }
+        return strideArray;
+    }
+    
     private double[] multiple(FGNode target,
                               double[] factorValues,
                               boolean logSpace) {
@@ -191,11 +316,7 @@ public class Factor extends FGNode {
     protected void updateBelief(boolean logSpace) {  
         if (belief == null)
             belief = new double[values.length];
-        System.arraycopy(values, 0, belief, 0, values.length);
-        if (logSpace) {
-            for (int i = 0; i < belief.length; i++)
-                belief[i] = Math.log(belief[i]);
-        }
+        System.arraycopy(logSpace ? getLogValues() : values, 0, belief, 0, values.length);
         for (Edge edge : getInEdges()) {
             Variable var = (Variable) edge.getFromNode();
             multiple(belief,
@@ -228,13 +349,44 @@ public class Factor extends FGNode {
      */
     protected double[] marginalize(double[] factorValues, 
                                    Variable target) {
-        // Get index of the target variable so that we can get its assignment
-        int targetIndex = variables.indexOf(target);
-        int targetStride = strides.get(targetIndex);
+        int[] stateIndex = getStateIndex(target);
         double[] rtn = getDoubleArray(target.getStates());
+        for (int i = 0; i < factorValues.length; i++)
+            rtn[stateIndex[i]] += factorValues[i];
+        return rtn;
+    }
+    
+    /**
+     * Marginalize the passed factorValues in the log domain for the passed target. log-sum-exp
+     * is used for each state of the target so that the factor values don't need to be converted
+     * back to the probability space.
+     * @param factorValues
+     * @param target
+     * @return
+     */
+    private double[] logMarginalize(double[] factorValues,
+                                    Variable target) {
+        int[] stateIndex = getStateIndex(target);
+        int states = target.getStates();
+        double[] rtn = getDoubleArray(states);
+        if (logSums == null || logSums.length < states)
+            logSums = new double[states];
+        for (int s = 0; s < states; s++) {
+            rtn[s] = Double.NEGATIVE_INFINITY;
+            logSums[s] = 0.0d;
+        }
+        for (int i = 0; i < factorValues.length; i++) {
+            if (factorValues[i] > rtn[stateIndex[i]])
+                rtn[stateIndex[i]] = factorValues[i];
+        }
         for (int i = 0; i < factorValues.length; i++) {
-            int targetState = (int) Math.floor(i / (double) targetStride) % target.getStates();
-            rtn[targetState] += factorValues[i];
+            double max = rtn[stateIndex[i]];
+            if (max != Double.NEGATIVE_INFINITY) // Otherwise all values are zero
+                logSums[stateIndex[i]] += Math.exp(factorValues[i] - max);
+        }
+        for (int s = 0; s < states; s++) {
+            if (rtn[s] != Double.NEGATIVE_INFINITY)
+                rtn[s] += Math.log(logSums[s]);
         }
         return rtn;
     }
@@ -247,14 +399,17 @@ public class Factor extends FGNode {
      * @param target
      * @return
      */
-    private double[] maximize(double[] factorValues,
-                              Variable target) {
-        // Get index of the target variable so that we can get its assignment
-        int targetIndex = variables.indexOf(target);
-        int targetStride = strides.get(targetIndex);
+    protected double[] maximize(double[] factorValues,
+                                Variable target,
+                                boolean logSpace) {
+        int[] stateIndex = getStateIndex(target);
         double[] rtn = getDoubleArray(target.getStates());
+        if (logSpace) {
+            for (int i = 0; i < rtn.length; i++)
+                rtn[i] = Double.NEGATIVE_INFINITY;
+        }
         for (int i = 0; i < factorValues.length; i++) {
-            int targetState = (int) Math.floor(i / (double) targetStride) % target.getStates();
+            int targetState = stateIndex[i];
             if (factorValues[i] > rtn[targetState])
                 rtn[targetState] = factorValues[i];
         }
@@ -271,18 +426,17 @@ public class Factor extends FGNode {
         Map<Variable, Integer> varToAssign = new HashMap<Variable, Integer>();
         for (int i = 0; i < variables.size(); i++) {
             Variable var = variables.get(i);
-            int stride = strides.get(i);
-            int assign = (int) Math.floor(valueIndex / (double) stride) % var.getStates();
-            varToAssign.put(var, assign);
+            varToAssign.put(var, getStateIndex(i)[valueIndex]);
         }
         return varToAssign;
     }
     
     /**
-     * The following implementation is based on Algorithm 10.A.1
-     * in the PGM book by Koller and Friedman. The implementation is
-     * simplified since this is a factor graph and the passed variable
-     * should be contained by this Factor object.
+     * Multiply the passed message for a variable into the passed factor values. The 
+     * original implementation was based on Algorithm 10.A.1 in the PGM book by Koller
+     * and Friedman. Since this is a factor graph and the passed variable should be contained
+     * by this Factor object, a cached map from value index to the variable state is used
+     * instead.
      * @param factorValues
      * @param inMessage
      * @param variable
@@ -291,32 +445,14 @@ public class Factor extends FGNode {
                           double[] inMessage,
                           Variable variable,
                           boolean logSpace) {
-        int j = 0; // index for factorValues
-        int k = 0; // index for inMessage
-        int[] assignment = new int[variables.size()]; // picked state for each variable in this Factor object.
-        for (int i = 0; i < factorValues.length; i++) { // Cycle through each value
-            if (logSpace)
-                factorValues[i] += inMessage[k];
-            else
-                factorValues[i] *= inMessage[k]; // Multiple two values from two lists.
-            // The following for-loop is used to reset j and k based on each variable's assignment
-            for (int v = 0; v < variables.size(); v++) {
-                Variable tmpVar = variables.get(v);
-                // The stride is defined as 0 if tmpVar is not the same as variable.
-                // Since inMessage is for one variable only, its stride is 1 always.
-                int inMessageStride = (tmpVar == variable ? 1 : 0);
-                assignment[v] ++;
-                if (assignment[v] == tmpVar.getStates()) { // Need to reset assignment for tmpVar
-                    assignment[v] = 0; // Reset back to the first state
-                    j -= (tmpVar.getStates() - 1) * strides.get(v);
-                    k -= (tmpVar.getStates() - 1) * inMessageStride; 
-                }
-                else {
-                    j += strides.get(v);
-                    k += inMessageStride;
-                    break;
-                }
-            }
+        int[] stateIndex = getStateIndex(variable);
+        if (logSpace) {
+            for (int i = 0; i < factorValues.length; i++)
+                factorValues[i] += inMessage[stateIndex[i]];
+        }
+        else {
+            for (int i = 0; i < factorValues.length; i++)
+                factorValues[i] *= inMessage[stateIndex[i]];
         }
     }
     
@@ -336,11 +472,15 @@ public class Factor extends FGNode {
         this.values = new double[totalState];
         // Strides
         strides = new ArrayList<Integer>(variables.size());
+        strideArray = new int[variables.size()];
         int stride = 1;
         for (int i = 0; i < variables.size(); i++) {
             strides.add(stride); // The first stride is 1 always
+            strideArray[i] = stride;
             stride *= variables.get(i).getStates();
         }
+        stateIndices = null; // Have to rebuild
+        logValues = null;
     }
     
     @Override
@@ -0,0 +1,152 @@
+/*
+ * Created on Oct 18, 2026
+ *
+ */
+package org.reactome.factorgraph;
+
+import java.util.Arrays;
+
+/**
+ * Online convergence monitoring for Gibbs sampling chains. Monitored marginals are the probabilities of
+ * all variable states. Since a sample of a marginal is an indicator, the mean and the variance in a chain are
+ * both derived from counts accumulated by CompiledGibbsSampler so that no sample is kept. The potential scale
+ * reduction (R-hat) is calculated across chains (PGM book: page 523), and the effective sample size (ESS) is
+ * estimated from batch means: counts between two checks form a batch, whose means are kept as running means
+ * and variances per chain. Memory is bounded by the number of chains multiplied by the number of variable
+ * states.
+ */
+class GibbsConvergenceMonitor {
+    private CompiledGibbsSampler[] samplers;
+    // Counts of each chain at the last check
+    private int[][] lastCounts;
+    private int[] lastSamples;
+    // Running means and sums of squared differences (Welford) of batch means for each chain
+    private double[][] batchMeans;
+    private double[][] batchSquares;
+    private int batches;
+    // Results of the last call to calculate()
+    private double maxRHat;
+    private double minEffectiveSampleSize;
+
+    public GibbsConvergenceMonitor(CompiledGibbsSampler[] samplers) {
+        this.samplers = samplers;
+        int size = samplers[0].getVariableCounts().length;
+        lastCounts = new int[samplers.length][size];
+        lastSamples = new int[samplers.length];
+        batchMeans = new double[samplers.length][size];
+        batchSquares = new double[samplers.length][size];
+    }
+
+    /**
+     * Clear all batches. Counts in samplers should be reset too.
+     */
+    public void reset() {
+        for (int i = 0; i < samplers.length; i++) {
+            Arrays.fill(lastCounts[i], 0);
+            Arrays.fill(batchMeans[i], 0.0d);
+            Arrays.fill(batchSquares[i], 0.0d);
+            lastSamples[i] = 0;
+        }
+        batches = 0;
+    }
+
+    /**
+     * Take samples accumulated since the last call as a new batch for each chain.
+     */
+    public void addBatch() {
+        batches ++;
+        for (int i = 0; i < samplers.length; i++) {
+            int[] counts = samplers[i].getVariableCounts();
+            int samples = samplers[i].getSamples() - lastSamples[i];
+            if (samples == 0)
+                continue;
+            for (int j = 0; j < counts.length; j++) {
+                double mean = (double) (counts[j] - lastCounts[i][j]) / samples;
+                double diff = mean - batchMeans[i][j];
+                batchMeans[i][j] += diff / batches;
+                batchSquares[i][j] += diff * (mean - batchMeans[i][j]);
+                lastCounts[i][j] = counts[j];
+            }
+            lastSamples[i] = samplers[i].getSamples();
+        }
+    }
+
+    public CompiledGibbsSampler[] getSamplers() {
+        return samplers;
+    }
+
+    public int getNumberOfBatches() {
+        return batches;
+    }
+
+    /**
+     * Calculate the largest R-hat and the smallest ESS among all monitored marginals. R-hat is 1.0 if
+     * there is one chain only. ESS is the total number of samples if there is fewer than two batches.
+     */
+    public void calculate() {
+        maxRHat = 1.0d;
+        minEffectiveSampleSize = Double.POSITIVE_INFINITY;
+        int chains = samplers.length;
+        int size = lastCounts[0].length;
+        for (int j = 0; j < size; j++) {
+            double rHat = calculateRHat(j);
+            if (rHat > maxRHat)
+                maxRHat = rHat;
+            double ess = 0.0d;
+            for (int i = 0; i < chains; i++)
+                ess += calculateEffectiveSampleSize(i, j);
+            if (ess < minEffectiveSampleSize)
+                minEffectiveSampleSize = ess;
+        }
+    }
+
+    private double calculateRHat(int index) {
+        int chains = samplers.length;
+        if (chains < 2)
+            return 1.0d;
+        // All chains have the same number of samples
+        double n = samplers[0].getSamples();
+        if (n < 2)
+            return Double.POSITIVE_INFINITY;
+        double mean = 0.0d;
+        double W = 0.0d;
+        for (int i = 0; i < chains; i++) {
+            double p = samplers[i].getVariableCounts()[index] / n;
+            mean += p;
+            W += n / (n - 1) * p * (1.0d - p);
+        }
+        mean /= chains;
+        W /= chains;
+        double B = 0.0d;
+        for (int i = 0; i < chains; i++) {
+            double p = samplers[i].getVariableCounts()[index] / n;
+            B += (p - mean) * (p - mean);
+        }
+        B *= n / (chains - 1);
+        if (W == 0.0d)
+            return B == 0.0d ? 1.0d : Double.POSITIVE_INFINITY;
+        double V = (n - 1) / n * W + B / n;
+        return Math.sqrt(V / W);
+    }
+
+    private double calculateEffectiveSampleSize(int chain, int index) {
+        double n = samplers[chain].getSamples();
+        if (batches < 2)
+            return n;
+        double p = samplers[chain].getVariableCounts()[index] / n;
+        // The variance of the mean estimated from batch means
+        double varOfMean = batchSquares[chain][index] / (batches - 1) / batches;
+        if (varOfMean == 0.0d)
+            return n;
+        return Math.min(n, p * (1.0d - p) / varOfMean);
+    }
+
+    public double getMaxRHat() {
+        return maxRHat;
+    }
+
+    public double getMinEffectiveSampleSize() {
+        return minEffectiveSampleSize;
+    }
+
+}
@@ -7,14 +7,18 @@ package org.reactome.factorgraph;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import org.apache.commons.math3.random.RandomDataGenerator;
 import org.apache.log4j.Logger;
+import org.junit.Assert;
 import org.junit.Test;
+import org.reactome.factorgraph.InferenceMetrics.Outcome;
+import org.reactome.factorgraph.InferenceMetrics.Phase;
+import org.reactome.factorgraph.common.SyntheticFactorGraphGenerator;
 import org.reactome.r3.util.FileUtility;
 
 /**
@@ -23,6 +27,9 @@ import org.reactome.r3.util.FileUtility;
  * from libdai (https://staff.fnwi.uva.nl/j.m.mooij/libDAI/).
  * The current implementation supports discrete variables only so all Observation objects used should
  * be parameterized by Integer.
+ * Sampling is performed by a CompiledGibbsSampler on the compiled FactorGraph: observations are applied as
+ * evidence without changing the FactorGraph, and counts of variable and factor states are accumulated during
+ * sampling so that memory doesn't grow with the number of samples.
  * @author gwu
  *
  */
@@ -37,10 +44,20 @@ public class GibbsSampling extends AbstractInferencer {
     // A random object for randomization. Using the
     // Apache math package to get better performance.
     private RandomDataGenerator randomizer;
-    // Cache calculate probabilitities
-    private Map<Variable, Factor> varToMBFactor;
-    // Cache variables and their neighbors including itself for fast access
-    private Map<Variable, Set<Variable>> varToMbVars;
+    // One sampler for each restart
+    private CompiledGibbsSampler[] samplers;
+    // Restarts are run in parallel as independent chains
+    private int numberOfThreads;
+    private ForkJoinPool pool;
+    private SamplingSchedule schedule = SamplingSchedule.SEQUENTIAL;
+    // For online convergence monitoring: sampling stops early when all marginals pass
+    // the thresholds. 0 for no check.
+    private double rHatThreshold;
+    private double minEffectiveSampleSize;
+    private int checkInterval = 100;
+    private GibbsConvergenceMonitor monitor;
+    // Used by burn() and sample(), which generate samples as Observation objects
+    private CompiledGibbsSampler observationSampler;
     
     /**
      * Default constructor.
@@ -73,390 +90,424 @@ public class GibbsSampling extends AbstractInferencer {
     public int getRestart() {
         return this.restart;
     }
+    
+    /**
+     * Set the number of threads used to run restarts as parallel chains. The default
+     * value 0 means the common ForkJoinPool is used. Each chain has its own random
+     * generator seeded from the random generator of this object so that results are
+     * reproducible regardless of the number of threads.
+     * @param numberOfThreads
+     */
+    public void setNumberOfThreads(int numberOfThreads) {
+        if (numberOfThreads < 0)
+            throw new IllegalArgumentException("The number of threads should not be negative: " + numberOfThreads);
+        if (numberOfThreads != this.numberOfThreads && pool != null) {
+            pool.shutdown();
+            pool = null;
+        }
+        this.numberOfThreads = numberOfThreads;
+    }
+    
+    public int getNumberOfThreads() {
+        return this.numberOfThreads;
+    }
+    
+    /**
+     * Set the order to update variables in a sweep. The CHROMATIC schedule samples variables
+     * of one color in parallel using the same threads as parallel chains.
+     * @param schedule
+     */
+    public void setSchedule(SamplingSchedule schedule) {
+        this.schedule = schedule;
+    }
+    
+    public SamplingSchedule getSchedule() {
+        return this.schedule;
+    }
+    
+    /**
+     * Set the threshold of the potential scale reduction (R-hat) across chains. If this value is
+     * greater than 0, sampling stops early once R-hat of every variable state is below it. More than
+     * one restart is needed for R-hat. The default value is 0 for no check.
+     * @param rHatThreshold e.g. 1.01
+     */
+    public void setRHatThreshold(double rHatThreshold) {
+        this.rHatThreshold = rHatThreshold;
+    }
+    
+    public double getRHatThreshold() {
+        return this.rHatThreshold;
+    }
+    
+    /**
+     * Set the minimum effective sample size summed over chains. If this value is greater than 0,
+     * sampling stops early once the effective sample size of every variable state reaches it. The
+     * default value is 0 for no check. If both this value and the R-hat threshold are set, both
+     * should be met. In any case, no more than maxIteration samples are drawn for each chain.
+     * @param minEffectiveSampleSize
+     */
+    public void setMinEffectiveSampleSize(double minEffectiveSampleSize) {
+        this.minEffectiveSampleSize = minEffectiveSampleSize;
+    }
+    
+    public double getMinEffectiveSampleSize() {
+        return this.minEffectiveSampleSize;
+    }
+    
+    /**
+     * Set the number of sweeps between two convergence checks. Samples between two checks
+     * are used as a batch to estimate the effective sample size.
+     * @param checkInterval
+     */
+    public void setCheckInterval(int checkInterval) {
+        if (checkInterval <= 0)
+            throw new IllegalArgumentException("The check interval should be positive: " + checkInterval);
+        this.checkInterval = checkInterval;
+    }
+    
+    public int getCheckInterval() {
+        return this.checkInterval;
+    }
 
     @Override
     public synchronized void runInference() throws InferenceCannotConvergeException {
         super.runInference();
 //        if (maxIteration < DEFAULT_MAX_ITERATION)
 //            throw new IllegalStateException("MaxIteration should be greater than 500");
-        resetCache();
-        truncateContinuousFactors();
-        attachObservation();
-        // Get the list of samples
-        List<List<Observation<Integer>>> allSamples = new ArrayList<List<Observation<Integer>>>();
-        iteration = 0;
-        for (int i = 0; i < restart; i++) {
-            Observation<Integer> sample = initializeAssignment();
-            // This sample is not the same one passed to the burn method
-            sample = burn(sample);
-            // Hold samples
-            List<Observation<Integer>> samples = new ArrayList<Observation<Integer>>();
-            sample(sample, samples);
-            allSamples.add(samples);
+        InferenceMetrics metrics = startMetrics(getObservation());
+        Outcome outcome = Outcome.FAILED;
+        try {
+            outcome = runSampling(metrics);
+        }
+        finally {
+            finishInference(metrics, outcome);
         }
-        double measure = calculateConvergence(allSamples);
-        if (debug)
-            logger.info("Measurement of Gibbs Sampling: " + measure);
-        calculateMarginals(allSamples);
-        detachObservation();
-        addBackContinuosFactors();
-    }
-
-    protected void resetCache() {
-        if (varToMBFactor == null)
-            varToMBFactor = new HashMap<Variable, Factor>();
-        else
-            varToMBFactor.clear();
-        if (varToMbVars == null)
-            varToMbVars = new HashMap<Variable, Set<Variable>>();
-        else
-            varToMbVars.clear();
     }
     
-    /**
-     * This method implements a measure to check the quality of MCMC described in the
-     * PGM book: page 523.
-     * @param allSamples
-     * @return
-     */
-    private double calculateConvergence(List<List<Observation<Integer>>> allSamples) {
-        // Get the required average beliefs
-        List<List<Double>> valuesList = new ArrayList<List<Double>>();
-        int count = 0;
-        // Pick up a Variable randomly
-        Variable var = null;
-        for (List<Observation<Integer>> samples : allSamples) {
-            List<Double> values = new ArrayList<Double>();
-            count = 0;
-            for (int i = 0; i < samples.size(); i++) {
-                Observation<Integer> sample = samples.get(i);
-                if (var == null)
-                    var = sample.getVariableToAssignment().keySet().iterator().next();
-                Integer state = sample.getVariableToAssignment().get(var);
-                if (state == 0)
-                    count ++;
-                if ((i + 1) % 100 == 0) {
-                    values.add((double)count/(i + 1));
-                }
-            }
-            valuesList.add(values);
+    private Outcome runSampling(InferenceMetrics metrics) {
+        CompiledFactorGraph graph = getCompiledGraph();
+        // Factor values may be changed by parameter learning
+        graph.updateFactorValues();
+        int chains = Math.max(restart, 1);
+        if (samplers == null || samplers.length != chains || samplers[0].getCompiledGraph() != graph) {
+            samplers = new CompiledGibbsSampler[chains];
+            for (int i = 0; i < chains; i++)
+                samplers[i] = new CompiledGibbsSampler(graph);
         }
-        // We use the counts of the first state in each sample
-        List<Double> fkList = new ArrayList<Double>();
-        double fkTotal = 0.0d;
-        for (List<Double> values : valuesList) {
-            double value = 0.0d;
-            for (Double tmp : values) 
-                value += tmp;
-            fkList.add(value / values.size());
-            fkTotal += fkList.get(fkList.size() - 1);
+        // Seeds are drawn in the order of chains so that results don't depend
+        // on how chains are scheduled
+        for (int i = 0; i < chains; i++) {
+            RandomDataGenerator chainRandomizer = new RandomDataGenerator();
+            chainRandomizer.reSeed(randomizer.nextLong(0L, Long.MAX_VALUE - 1));
+            samplers[i].setRandomGenerator(chainRandomizer);
         }
-        double f = fkTotal / valuesList.size();
-        double B = 0.0d;
-        for (int i = 0; i < fkList.size(); i++) {
-            B += (fkList.get(i) - f) * (fkList.get(i) - f);
+        // Observation is applied as evidence: the FactorGraph is not changed
+        long phaseTime = System.nanoTime();
+        for (CompiledGibbsSampler sampler : samplers)
+            sampler.setEvidence(getObservation());
+        finishPhase(metrics, Phase.ATTACH_OBSERVATION, phaseTime);
+        phaseTime = System.nanoTime();
+        if (monitor == null || monitor.getSamplers() != samplers)
+            monitor = new GibbsConvergenceMonitor(samplers);
+        monitor.reset();
+        for (CompiledGibbsSampler sampler : samplers) {
+            sampler.resetCounts();
+            sampler.initializeStates();
         }
-        int M = valuesList.get(0).size();
-        int k = valuesList.size();
-        B *= M / (k == 1 ? 2 : k  - 1); // To avoid dividing by 0.
-        double W = 0.0d;
-        for (int i = 0; i < valuesList.size(); i++) {
-            List<Double> values = valuesList.get(i);
-            double fk = fkList.get(i);
-            for (Double value : values) {
-                W += (value - fk) * (value - fk);
+        // The pool is resolved here: getPool() cannot be called from chain tasks in pool threads
+        // since the lock of this object is held by the calling thread
+        ForkJoinPool pool = getPool();
+        runChains(pool, burnin, false);
+        boolean monitored = isConvergenceMonitored();
+        boolean converged = !monitored;
+        int samples = 0;
+        int checks = 0;
+        while (samples < maxIteration) {
+            int sweeps = Math.min(checkInterval, maxIteration - samples);
+            runChains(pool, sweeps, true);
+            samples += sweeps;
+            if (!monitored && !debug)
+                continue;
+            monitor.addBatch();
+            if (!monitored)
+                continue;
+            monitor.calculate();
+            finishIteration(metrics, ++checks, monitor.getMaxRHat() - 1.0d);
+            if (isConverged()) {
+                converged = true;
+                break;
             }
         }
-        W /= (valuesList.size() * (M - 1));
-        double V = (M - 1) / M * W + B / M;
-        double R = Math.sqrt(V / W);
-        return R;
+        iteration = samplers.length * samples;
+        if (debug) {
+            monitor.calculate();
+            logger.info("Gibbs sampling: " + samples + " samples for each of " + samplers.length + " chains, " + 
+                        "max R-hat: " + monitor.getMaxRHat() + ", min ESS: " + monitor.getMinEffectiveSampleSize());
+        }
+        // Merge counts into the first chain
+        for (int i = 1; i < samplers.length; i++)
+            samplers[0].addCounts(samplers[i]);
+        finishPhase(metrics, Phase.MESSAGE_PASSING, phaseTime);
+        phaseTime = System.nanoTime();
+        calculateMarginals(samplers[0]);
+        finishPhase(metrics, Phase.BELIEFS, phaseTime);
+        return converged ? Outcome.CONVERGED : Outcome.MAX_ITERATION;
     }
     
     /**
-     * Initialize the first sample.
+     * Prepare the sampler used by burn() and sample() for the FactorGraph and the observation set in
+     * this object. Call this method again if the FactorGraph, its factor values or the observation
+     * has been changed.
      */
-    private Observation<Integer> initializeAssignment() {
-        // The first assignment
-        Observation<Integer> observation = new Observation<Integer>();
-        Map<Variable, Integer> varToAssign = new HashMap<Variable, Integer>();
-        for (Variable var : factorGraph.getVariables()) {
-            int state = randomizer.nextInt(0, var.getStates() - 1);
-            varToAssign.put(var, state);
-        }
-        observation.setVariableToAssignment(varToAssign);
-        return observation;
+    protected void resetCache() {
+        CompiledFactorGraph graph = getCompiledGraph();
+        graph.updateFactorValues();
+        if (observationSampler == null || observationSampler.getCompiledGraph() != graph)
+            observationSampler = new CompiledGibbsSampler(graph);
+        observationSampler.setRandomGenerator(randomizer);
+        observationSampler.setEvidence(getObservation());
+    }
+    
+    private CompiledGibbsSampler getObservationSampler() {
+        if (observationSampler == null)
+            resetCache();
+        return observationSampler;
     }
     
     /**
-     * Perform the burnin phase.
+     * Perform the burnin phase starting from the passed assignment. Variables not assigned
+     * in the passed Observation start from random states.
+     * @return the last sample
      */
     protected Observation<Integer> burn(Observation<Integer> observation) {
-        // Repeat sampling
-        for (int i = 0; i < burnin; i++) {
-            observation = sampleOnce(observation);
-        }
-        return observation;
+        CompiledGibbsSampler sampler = getObservationSampler();
+        setStates(sampler, observation);
+        ForkJoinPool pool = getPool();
+        for (int i = 0; i < burnin; i++)
+            sweep(pool, sampler);
+        return createSample(sampler);
     }
     
     /**
-     * Generate samples after burn-in.
+     * Generate maxIteration samples after burn-in starting from the passed sample.
      */
     protected void sample(Observation<Integer> sample, List<Observation<Integer>> samples) {
+        CompiledGibbsSampler sampler = getObservationSampler();
+        setStates(sampler, sample);
+        ForkJoinPool pool = getPool();
         for (int i = 0; i < maxIteration; i++) {
-            sample = sampleOnce(sample);
+            sweep(pool, sampler);
+            sample = createSample(sampler);
             sample.setName("Sample" + iteration);
             samples.add(sample);
             iteration++;
         }
     }
     
-    /**
-     * If the user set the restart, this maxIteration is used for each restart. The total iteration
-     * should be got from getIteration(). At least 500 iterations is needed.
-     */
-    @Override
-    public void setMaxIteration(int iteration) {
-//        if (iteration < DEFAULT_MAX_ITERATION)
-//            throw new IllegalArgumentException("Iteration should be greater than " + DEFAULT_MAX_ITERATION + ".");
-        this.maxIteration = iteration;
+    private void setStates(CompiledGibbsSampler sampler,
+                           Observation<Integer> observation) {
+        sampler.initializeStates();
+        if (observation == null || observation.getVariableToAssignment() == null)
+            return;
+        Map<Variable, Integer> varToAssign = observation.getVariableToAssignment();
+        for (Variable var : varToAssign.keySet()) {
+            int v = sampler.getCompiledGraph().getVariableIndex(var);
+            if (v >= 0)
+                sampler.setState(v, varToAssign.get(var));
+        }
+    }
+    
+    private Observation<Integer> createSample(CompiledGibbsSampler sampler) {
+        CompiledFactorGraph graph = sampler.getCompiledGraph();
+        Map<Variable, Integer> varToAssign = new HashMap<Variable, Integer>();
+        for (int v = 0; v < graph.getNumberOfVariables(); v++)
+            varToAssign.put(graph.getVariable(v), sampler.getState(v));
+        Observation<Integer> sample = new Observation<Integer>();
+        sample.setVariableToAssignment(varToAssign);
+        return sample;
+    }
+    
+    private boolean isConvergenceMonitored() {
+        return rHatThreshold > 0.0d || minEffectiveSampleSize > 0.0d;
+    }
+    
+    private boolean isConverged() {
+        // At least two batches are needed for ESS
+        if (monitor.getNumberOfBatches() < 2)
+            return false;
+        // R-hat cannot be checked with one chain
+        if (rHatThreshold > 0.0d && (samplers.length < 2 || monitor.getMaxRHat() > rHatThreshold))
+            return false;
+        if (minEffectiveSampleSize > 0.0d && monitor.getMinEffectiveSampleSize() < minEffectiveSampleSize)
+            return false;
+        return true;
     }
     
     /**
-     * Calculate marginals for variables inside the FactorGraph object.
+     * Run the passed number of sweeps for all chains. Chains are run in parallel if there are
+     * more than one chain.
+     * @param pool used for chains and the CHROMATIC schedule
+     * @param sweeps
+     * @param accumulate true to accumulate counts after each sweep
      */
-    private void calculateMarginals(List<List<Observation<Integer>>> allSamples) {
-        List<Observation<Integer>> samples = new ArrayList<Observation<Integer>>();
-        for (List<Observation<Integer>> samples1 : allSamples)
-            samples.addAll(samples1);
-        // Marginals for variables
-        // counts
-        Map<Variable, int[]> varToCounts = new HashMap<Variable, int[]>();
-        Map<Factor, int[]> factorToCounts = new HashMap<Factor, int[]>();
-        for (Observation<Integer> sample : samples) {
-            Map<Variable, Integer> varToAssgn = sample.getVariableToAssignment();
-            countVariables(varToCounts, varToAssgn);
-            countFactors(factorToCounts, varToAssgn);
+    private void runChains(final ForkJoinPool pool,
+                           final int sweeps, 
+                           final boolean accumulate) {
+        if (sweeps <= 0)
+            return;
+        if (samplers.length == 1) {
+            runChain(pool, samplers[0], sweeps, accumulate);
+            return;
         }
-        boolean needNormalize = false;
-        // Calculate beliefs for variables
-        for (Variable var : varToCounts.keySet()) {
-            needNormalize = false;
-            double[] belief = new double[var.getStates()];
-            int[] counts = varToCounts.get(var);
-            for (int i = 0; i < counts.length; i++) {
-                // To avoid belief is 0 that causes downstream analysis error,
-                // 1 is used as a minimum.
-                if (counts[i] == 0) {
-                    belief[i] = 1.0d / samples.size();
-                    needNormalize = true;
+        final List<RecursiveAction> tasks = new ArrayList<RecursiveAction>(samplers.length);
+        for (final CompiledGibbsSampler sampler : samplers) {
+            tasks.add(new RecursiveAction() {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected void compute() {
+                    runChain(pool, sampler, sweeps, accumulate);
                 }
-                else
-                    belief[i] = (double) counts[i] / samples.size();
-            }
-            if (needNormalize)
-                var.normalize(belief, false, false);
-            var.setBelief(belief);
+            });
         }
-        // Calculate beliefs for factors
-        for (Factor factor : factorToCounts.keySet()) {
-            needNormalize = false;
-            int[] counts = factorToCounts.get(factor);
-            double[] belief = new double[counts.length];
-            for (int i = 0; i < counts.length; i++) {
-                if (counts[i] == 0) {
-                    belief[i] = 1.0d / samples.size();
-                    needNormalize = true;
-                }
-                else
-                    belief[i] = (double) counts[i] / samples.size();
+        pool.invoke(new RecursiveAction() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected void compute() {
+                invokeAll(tasks);
             }
-            if (needNormalize)
-                factor.normalize(belief, false, false);
-            factor.setBelief(belief);
-        }
+        });
     }
     
-    
-    
-    private void countFactors(Map<Factor, int[]> factorToCounts,
-                              Map<Variable, Integer> varToAssign) {
-        Map<Variable, Integer> factorVarToAssign = new HashMap<Variable, Integer>();
-        for (Factor factor : factorGraph.getFactors()) {
-            int[] counts = factorToCounts.get(factor);
-            if (counts == null) {
-                counts = new int[factor.getValues().length]; // Get the number of state from the values
-                factorToCounts.put(factor, counts);
-            }
-            factorVarToAssign.clear();
-            for (Variable var : factor.getVariables()) {
-                factorVarToAssign.put(var, varToAssign.get(var));
-            }
-            int index = factor.getIndexForAssignment(factorVarToAssign);
-            counts[index] ++;
+    private void runChain(ForkJoinPool pool,
+                          CompiledGibbsSampler sampler, 
+                          int sweeps,
+                          boolean accumulate) {
+        for (int i = 0; i < sweeps; i++) {
+            sweep(pool, sampler);
+            if (accumulate)
+                sampler.accumulate();
         }
     }
-
-    private void countVariables(Map<Variable, int[]> varToCounts,
-                               Map<Variable, Integer> varToAssgn) {
-        for (Variable var : varToAssgn.keySet()) {
-            int[] states = varToCounts.get(var);
-            if (states == null) {
-                states = new int[var.getStates()];
-                varToCounts.put(var, states);
-            }
-            int assgn = varToAssgn.get(var);
-            states[assgn] ++;
-        }
-    }
-
-    /**
-     * Perform one sampling.
-     * @param obs
-     */
-    private Observation<Integer> sampleOnce(Observation<Integer> obs) {
-        Observation<Integer> newSample = new Observation<Integer>();
-        Map<Variable, Integer> obsVarToAssign = obs.getVariableToAssignment();
-        Map<Variable, Integer> newVarToAssign = new HashMap<Variable, Integer>(obsVarToAssign);
-        newSample.setVariableToAssignment(newVarToAssign);
-        // Start sampling
-        for (Variable var : factorGraph.getVariables()) {
-            double[] probs = calculateProbabilities(var,
-                                                    newVarToAssign);
-            int assign = sampleOnce(probs);
-            newVarToAssign.put(var, assign);
-        }
-        return newSample;
+    
+    private synchronized ForkJoinPool getPool() {
+        if (numberOfThreads == 0)
+            return ForkJoinPool.commonPool();
+        if (pool == null)
+            pool = new ForkJoinPool(numberOfThreads);
+        return pool;
     }
     
-    private int sampleOnce(double[] probs) {
-        double sampled = randomizer.nextUniform(0.0d, 1.0d, true); // Include the lower point
-        double cum = 0.0d;
-        for (int i = 0; i < probs.length; i++) {
-            cum += probs[i];
-            if (sampled <= cum)
-                return i;
-        }
-        // Otherwise, we need to throw an exception
-        throw new IllegalStateException("Cannot find a legal state: " + Arrays.toString(probs));
-    }
-    
-    private double[] calculateProbabilities(Variable var,
-                                            Map<Variable, Integer> obsVarToAssign) {
-        double[] rtn = getProbabilities(var, obsVarToAssign);
-        if (rtn != null)
-            return rtn;
-        rtn = new double[var.getStates()];
-        Map<Variable, Integer> assignment = new HashMap<Variable, Integer>();
-        // Use log space for small values
-        for (int i = 0; i < var.getStates(); i++) {
-            double prob = 0.0d;
-            for (Factor factor : var.getFactors()) {
-                assignment.clear();
-                // Other variables
-                for (Variable var1 : factor.getVariables()) {
-                    assignment.put(var1, obsVarToAssign.get(var1));
-                }
-                // This variable
-                assignment.put(var, i);
-                // Use log-space to avoid possible underflow.
-                prob += Math.log(factor.getValue(assignment));
-            }
-            rtn[i] = Math.exp(prob);
-        }
-        // Normalize
-        normalize(rtn);
-        cacheProbabilities(rtn, var, obsVarToAssign);
-        return rtn;
+    private void sweep(ForkJoinPool pool,
+                       CompiledGibbsSampler sampler) {
+        if (schedule == SamplingSchedule.CHROMATIC)
+            sampler.sweepByColor(pool);
+        else if (schedule == SamplingSchedule.BLOCKED)
+            sampler.sweepByBlock();
+        else
+            sampler.sweep();
     }
     
     /**
-     * Cache a calculated probability to save time.
-     * @param var
-     * @param varState
-     * @param obsVarToAssgn
+     * If the user set the restart, this maxIteration is used for each restart. The total iteration
+     * should be got from getIteration(). At least 500 iterations is needed.
      */
-    private void cacheProbabilities(double[] probs,
-                                    Variable var,
-                                    Map<Variable, Integer> obsVarToAssgn) {
-        Set<Variable> mbVars = getMBVars(var);
-        // If there are too many variables, don't cache it to comsume memory
-        if (mbVars.size() > 6)
-            return;
-        // Check if the MB factor has been created
-        Factor mbFactor = varToMBFactor.get(var);
-        if (mbFactor == null) {
-            mbFactor = new Factor();
-            mbFactor.setVariables(new ArrayList<Variable>(mbVars));
-            // Need to mark values as null
-            double[] values = mbFactor.getValues();
-            for (int i = 0; i < values.length; i++)
-                values[i] = -1.0d; // Negative as not assigned
-            varToMBFactor.put(var, mbFactor);
-        }
-        for (int i = 0; i< probs.length; i++) {
-            obsVarToAssgn.put(var, i);
-            mbFactor.setValue(probs[i], obsVarToAssgn);
-        }
+    @Override
+    public void setMaxIteration(int iteration) {
+//        if (iteration < DEFAULT_MAX_ITERATION)
+//            throw new IllegalArgumentException("Iteration should be greater than " + DEFAULT_MAX_ITERATION + ".");
+        this.maxIteration = iteration;
     }
     
     /**
-     * Get a cache probability value to avoid re-calculation.
-     * @param var
-     * @param varState
-     * @param obsVarToAssgn
-     * @return
+     * Calculate marginals for variables and factors inside the FactorGraph object from counts
+     * accumulated in the sampler.
      */
-    private double[] getProbabilities(Variable var,
-                                      Map<Variable, Integer> obsVarToAssgn) {
-        Factor mbFactor = varToMBFactor.get(var);
-        if (mbFactor == null)
-            return null;
-//        Set<Variable> mbVars = getMBVars(var);
-//        Map<Variable, Integer> mbAssgn = createMbAssgn(obsVarToAssgn, mbVars);
-        double[] probs = new double[var.getStates()];
-        for (int i = 0; i < var.getStates(); i++) {
-//            mbAssgn.put(var, i);
-            obsVarToAssgn.put(var, i);
-            double prob = mbFactor.getValue(obsVarToAssgn);
-            if (prob < 0.0d) // Not assigned yet
-                return null;
-            probs[i] = prob;
+    private void calculateMarginals(CompiledGibbsSampler sampler) {
+        CompiledFactorGraph graph = sampler.getCompiledGraph();
+        int samples = sampler.getSamples();
+        int[] varCounts = sampler.getVariableCounts();
+        // Calculate beliefs for variables
+        for (int v = 0; v < graph.getNumberOfVariables(); v++) {
+            Variable var = graph.getVariable(v);
+            var.setBelief(calculateBelief(var, varCounts, graph.varOffset[v], graph.varStates[v], samples));
+        }
+        // Calculate beliefs for factors
+        int[] factorCounts = sampler.getFactorCounts();
+        for (int f = 0; f < graph.getNumberOfFactors(); f++) {
+            Factor factor = graph.getFactor(f);
+            int offset = graph.tableOffset[f];
+            factor.setBelief(calculateBelief(factor, factorCounts, offset, graph.tableOffset[f + 1] - offset, samples));
         }
-        return probs;
     }
-
-    private Set<Variable> getMBVars(Variable var) {
-        Set<Variable> mbVars = varToMbVars.get(var);
-        if (mbVars != null)
-            return mbVars;
-        // Query if there is a value for the combined state
-        mbVars = new HashSet<Variable>();
-        for (Factor factor : var.getFactors())
-            mbVars.addAll(factor.getVariables());
-        varToMbVars.put(var, mbVars);
-        return mbVars;
-    }
-    
-    private void normalize(double[] probs) {
-        double sum = 0.0d;
-        for (double d : probs)
-            sum += d;
-        for (int i = 0; i < probs.length; i++)
-            probs[i] /= sum;
+    
+    private double[] calculateBelief(FGNode node,
+                                     int[] counts,
+                                     int offset,
+                                     int length,
+                                     int samples) {
+        boolean needNormalize = false;
+        double[] belief = new double[length];
+        for (int i = 0; i < length; i++) {
+            // To avoid belief is 0 that causes downstream analysis error,
+            // 1 is used as a minimum.
+            if (counts[offset + i] == 0) {
+                belief[i] = 1.0d / samples;
+                needNormalize = true;
+            }
+            else
+                belief[i] = (double) counts[offset + i] / samples;
+        }
+        if (needNormalize)
+            node.normalize(belief, false, false);
+        return belief;
     }
     
     @Test
     public void testInitializeAssignment() {
         FactorGraph fg = TestUtilities.createSimpleFG();
         setFactorGraph(fg);
-        Observation<Integer> obs = initializeAssignment();
-        Map<Variable, Integer> varToAssign = obs.getVariableToAssignment();
-        for (Variable var : varToAssign.keySet()) {
-            System.out.println(var + ": " + varToAssign.get(var));
+        CompiledGibbsSampler sampler = new CompiledGibbsSampler(getCompiledGraph());
+        sampler.setRandomGenerator(randomizer);
+        sampler.initializeStates();
+        for (int v = 0; v < getCompiledGraph().getNumberOfVariables(); v++) {
+            System.out.println(getCompiledGraph().getVariable(v) + ": " + sampler.getState(v));
         }
     }
-    
+
+    /**
+     * Generate samples via burn() and sample() as subclasses do, and compare frequencies of states
+     * in samples with the exact beliefs from JunctionTreeInference.
+     */
+    @Test
+    public void testGenerateSamples() throws Exception {
+        SyntheticFactorGraphGenerator generator = new SyntheticFactorGraphGenerator(1234L);
+        FactorGraph fg = generator.createPairwiseGraph(20);
+        Observation<Integer> observation = generator.createObservations(fg, 1, 0.2d).get(0);
+        Map<Variable, double[]> varToBelief = getExactBeliefs(fg, observation);
+        setFactorGraph(fg);
+        setObservation(observation);
+        setBurnin(1000);
+        setMaxIteration(100000);
+        randomizer.reSeed(1234L);
+        resetCache();
+        List<Observation<Integer>> samples = new ArrayList<Observation<Integer>>();
+        Observation<Integer> sample = burn(new Observation<Integer>());
+        sample(sample, samples);
+        Assert.assertEquals(100000, samples.size());
+        double diff = 0.0d;
+        for (Variable var : fg.getVariables()) {
+            double[] frequencies = new double[var.getStates()];
+            for (Observation<Integer> tmp : samples)
+                frequencies[tmp.getVariableToAssignment().get(var)] += 1.0d / samples.size();
+            for (int i = 0; i < frequencies.length; i++)
+                diff = Math.max(diff, Math.abs(frequencies[i] - varToBelief.get(var)[i]));
+        }
+        System.out.println("Max difference from JunctionTreeInference: " + diff);
+        Assert.assertTrue("Samples are different from JunctionTreeInference: " + diff, diff < 0.01d);
+    }
+
     @Test
     public void testInference() throws Exception {
         FileUtility.initializeLogging();
@@ -500,4 +551,195 @@ public class GibbsSampling extends AbstractInferencer {
         System.out.println("LogZ: " + logZ);
     }
     
+    /**
+     * Restarts are run as parallel chains. Beliefs should be the same for different numbers
+     * of threads when the same seed is used.
+     */
+    @Test
+    public void testParallelChains() throws Exception {
+        FactorGraph fg = TestUtilities.createSimpleFG();
+        Variable variable = TestUtilities.getVariable(fg, "protein");
+        Map<Variable, Integer> observation = new HashMap<Variable, Integer>();
+        observation.put(variable, 2);
+        setObservation(observation);
+        setFactorGraph(fg);
+        setBurnin(1000);
+        setMaxIteration(10000);
+        setRestart(8);
+        Map<Variable, double[]> varToBelief = null;
+        for (int threads : new int[]{1, 4}) {
+            setNumberOfThreads(threads);
+            randomizer.reSeed(1234L);
+            long time1 = System.currentTimeMillis();
+            runInference();
+            long time2 = System.currentTimeMillis();
+            System.out.println("Threads: " + threads + ", time: " + (time2 - time1) + 
+                               ", iterations: " + getIteration());
+            for (Variable var : fg.getVariables()) {
+                System.out.println(var + ": " + Arrays.toString(var.getBelief()));
+            }
+            if (varToBelief == null) {
+                varToBelief = new HashMap<Variable, double[]>();
+                for (Variable var : fg.getVariables())
+                    varToBelief.put(var, Arrays.copyOf(var.getBelief(), var.getStates()));
+                continue;
+            }
+            // Chains are seeded from the randomizer so that results don't depend on threads
+            for (Variable var : fg.getVariables())
+                Assert.assertTrue("Different beliefs for " + var + " with " + threads + " threads",
+                                  Arrays.equals(varToBelief.get(var), var.getBelief()));
+        }
+        setNumberOfThreads(0);
+    }
+    
+    /**
+     * Compare all schedules with the exact beliefs from JunctionTreeInference on a small synthetic
+     * pairwise graph. Use GibbsBenchmark to compare the performance of schedules on large graphs.
+     */
+    @Test
+    public void testChromaticSampling() throws Exception {
+        SyntheticFactorGraphGenerator generator = new SyntheticFactorGraphGenerator(1234L);
+        FactorGraph fg = generator.createPairwiseGraph(20);
+        Observation<Integer> observation = generator.createObservations(fg, 1, 0.2d).get(0);
+        Map<Variable, double[]> varToBelief = getExactBeliefs(fg, observation);
+        setObservation(observation);
+        setFactorGraph(fg);
+        setBurnin(1000);
+        setMaxIteration(200000);
+        setRestart(1);
+        System.out.println("Colors: " + getCompiledGraph().buildVariableColors());
+        for (SamplingSchedule schedule : SamplingSchedule.values()) {
+            setSchedule(schedule);
+            randomizer.reSeed(1234L);
+            runInference();
+            double diff = calculateMaxDiff(fg, varToBelief);
+            System.out.println(schedule + ": max difference from JunctionTreeInference: " + diff);
+            Assert.assertTrue(schedule + ": beliefs are different from JunctionTreeInference: " + diff, diff < 0.01d);
+        }
+        setSchedule(SamplingSchedule.SEQUENTIAL);
+    }
+    
+    /**
+     * Run the CHROMATIC schedule with parallel chains, which share one ForkJoinPool, and compare
+     * with the exact beliefs from JunctionTreeInference.
+     */
+    @Test(timeout = 60000L)
+    public void testChromaticChains() throws Exception {
+        SyntheticFactorGraphGenerator generator = new SyntheticFactorGraphGenerator(1234L);
+        FactorGraph fg = generator.createPairwiseGraph(14);
+        Observation<Integer> observation = generator.createObservations(fg, 1, 0.3d).get(0);
+        Map<Variable, double[]> varToBelief = getExactBeliefs(fg, observation);
+        setObservation(observation);
+        setFactorGraph(fg);
+        setBurnin(1000);
+        setMaxIteration(50000);
+        setRestart(2);
+        setSchedule(SamplingSchedule.CHROMATIC);
+        randomizer.reSeed(1234L);
+        runInference();
+        setSchedule(SamplingSchedule.SEQUENTIAL);
+        double diff = calculateMaxDiff(fg, varToBelief);
+        System.out.println("CHROMATIC with 2 chains: max difference from JunctionTreeInference: " + diff);
+        Assert.assertTrue("Beliefs are different from JunctionTreeInference: " + diff, diff < 0.01d);
+    }
+    
+    private Map<Variable, double[]> getExactBeliefs(FactorGraph fg,
+                                                    Observation<Integer> observation) throws InferenceCannotConvergeException {
+        JunctionTreeInference jt = new JunctionTreeInference();
+        jt.setFactorGraph(fg);
+        jt.setObservation(observation);
+        jt.runInference();
+        Map<Variable, double[]> varToBelief = new HashMap<Variable, double[]>();
+        for (Variable var : fg.getVariables())
+            varToBelief.put(var, var.getBelief().clone());
+        return varToBelief;
+    }
+    
+    private double calculateMaxDiff(FactorGraph fg, Map<Variable, double[]> varToBelief) {
+        double diff = 0.0d;
+        for (Variable var : fg.getVariables()) {
+            double[] belief = var.getBelief();
+            for (int i = 0; i < belief.length; i++)
+                diff = Math.max(diff, Math.abs(belief[i] - varToBelief.get(var)[i]));
+        }
+        return diff;
+    }
+    
+    /**
+     * The simple FG has a near-deterministic chain between mRNA and protein, which mixes slowly
+     * under single-site updates. Compare schedules with the exact beliefs from JunctionTreeInference.
+     */
+    @Test
+    public void testBlockedSampling() throws Exception {
+        FactorGraph fg = TestUtilities.createSimpleFG();
+        Variable variable = TestUtilities.getVariable(fg, "mRNA.tab");
+        Map<Variable, Integer> observation = new HashMap<Variable, Integer>();
+        observation.put(variable, 2);
+        JunctionTreeInference jt = new JunctionTreeInference();
+        jt.setFactorGraph(fg);
+        jt.setObservation(observation);
+        jt.runInference();
+        System.out.println("JunctionTreeInference:");
+        Map<Variable, double[]> varToBelief = new HashMap<Variable, double[]>();
+        for (Variable var : fg.getVariables()) {
+            varToBelief.put(var, var.getBelief());
+            System.out.println(var + ": " + Arrays.toString(var.getBelief()));
+        }
+        setObservation(observation);
+        setFactorGraph(fg);
+        setBurnin(1000);
+        setMaxIteration(20000);
+        setRestart(1);
+        Map<SamplingSchedule, Double> scheduleToDiff = new HashMap<SamplingSchedule, Double>();
+        for (SamplingSchedule schedule : new SamplingSchedule[]{SamplingSchedule.SEQUENTIAL, SamplingSchedule.BLOCKED}) {
+            setSchedule(schedule);
+            randomizer.reSeed(1234L);
+            runInference();
+            double diff = 0.0d;
+            System.out.println(schedule + ":");
+            for (Variable var : fg.getVariables()) {
+                double[] belief = var.getBelief();
+                for (int i = 0; i < belief.length; i++)
+                    diff = Math.max(diff, Math.abs(belief[i] - varToBelief.get(var)[i]));
+                System.out.println(var + ": " + Arrays.toString(belief));
+            }
+            System.out.println("Max difference from JunctionTreeInference: " + diff);
+            scheduleToDiff.put(schedule, diff);
+        }
+        setSchedule(SamplingSchedule.SEQUENTIAL);
+        // Strongly coupled variables mix slowly when they are sampled one at a time
+        Assert.assertTrue("BLOCKED doesn't improve on SEQUENTIAL: " + scheduleToDiff,
+                          scheduleToDiff.get(SamplingSchedule.BLOCKED) < scheduleToDiff.get(SamplingSchedule.SEQUENTIAL));
+    }
+    
+    @Test
+    public void testConvergenceMonitor() throws Exception {
+        FactorGraph fg = TestUtilities.createSimpleFG();
+        Variable variable = TestUtilities.getVariable(fg, "mRNA.tab");
+        Map<Variable, Integer> observation = new HashMap<Variable, Integer>();
+        observation.put(variable, 2);
+        setObservation(observation);
+        setFactorGraph(fg);
+        setBurnin(1000);
+        setMaxIteration(100000);
+        setRestart(4);
+        setRHatThreshold(1.01d);
+        setMinEffectiveSampleSize(1000.0d);
+        for (SamplingSchedule schedule : new SamplingSchedule[]{SamplingSchedule.SEQUENTIAL, SamplingSchedule.BLOCKED}) {
+            setSchedule(schedule);
+            randomizer.reSeed(1234L);
+            runInference();
+            System.out.println(schedule + ": " + getIteration() + " samples in total");
+            for (Variable var : fg.getVariables()) {
+                System.out.println(var + ": " + Arrays.toString(var.getBelief()));
+            }
+            // Chains should stop once the diagnostics pass, well before maxIteration
+            Assert.assertTrue(schedule + " didn't stop early: " + getIteration(),
+                              getIteration() < getMaxIteration() * getRestart());
+        }
+        setSchedule(SamplingSchedule.SEQUENTIAL);
+        setRHatThreshold(0.0d);
+        setMinEffectiveSampleSize(0.0d);
+    }
+    
 }
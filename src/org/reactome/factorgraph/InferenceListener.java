@@ -0,0 +1,53 @@
+/*
+ * Created on Oct 18, 2026
+ *
+ */
+package org.reactome.factorgraph;
+
+import org.reactome.factorgraph.InferenceMetrics.Phase;
+
+/**
+ * A listener to get InferenceMetrics from an AbstractInferencer. An InferenceListener may be
+ * registered to several inferencers running in different threads, so implementations should
+ * be thread-safe.
+ */
+public interface InferenceListener {
+
+    /**
+     * Called after each iteration of an iterative algorithm (e.g. LBP).
+     * @param metrics
+     * @param iteration starting from 1
+     * @param maxDiff
+     */
+    public void iterationFinished(InferenceMetrics metrics,
+                                  int iteration,
+                                  double maxDiff);
+
+    /**
+     * Called after a phase of an inference run is finished. The LOGZ phase is not reported
+     * here. See logZCalculated().
+     * @param metrics
+     * @param phase
+     * @param nanos wall time of the phase
+     */
+    public void phaseFinished(InferenceMetrics metrics,
+                              Phase phase,
+                              long nanos);
+
+    /**
+     * Called when an inference run is finished whatever the outcome is.
+     * @param metrics
+     */
+    public void inferenceFinished(InferenceMetrics metrics);
+
+    /**
+     * Called after logZ is calculated. Since logZ is calculated by the client after an inference
+     * run is finished, it is reported by its own InferenceMetrics object, which has the LOGZ phase
+     * time only and is not passed to inferenceFinished().
+     * @param metrics
+     * @param nanos wall time of the calculation
+     */
+    public void logZCalculated(InferenceMetrics metrics,
+                               long nanos);
+
+}
@@ -0,0 +1,198 @@
+/*
+ * Created on Oct 18, 2026
+ *
+ */
+package org.reactome.factorgraph;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+
+/**
+ * Metrics collected for one inference run: maxDiff for each iteration, the number of message updates,
+ * wall time for each phase, bytes allocated by the calling thread and the convergence outcome. An object
+ * of this class is created by an AbstractInferencer only if an InferenceListener has been registered, and
+ * passed to listeners during and after the run.
+ */
+public class InferenceMetrics {
+
+    public static enum Phase {
+        TRUNCATE_CONTINUOUS_FACTORS,
+        ATTACH_OBSERVATION,
+        // Message passing or sampling
+        MESSAGE_PASSING,
+        BELIEFS,
+        // Reported via InferenceListener.logZCalculated() only
+        LOGZ
+    }
+
+    public static enum Outcome {
+        CONVERGED,
+        // Stopped at the max iteration without converging
+        MAX_ITERATION,
+        // InferenceCannotConvergeException is thrown
+        NOT_CONVERGED,
+        // Other errors (e.g. NaN in messages)
+        FAILED
+    }
+
+    private String inferencer;
+    private String factorGraphName;
+    private String observationName;
+    private long startTime;
+    private int iteration;
+    private double[] maxDiffs;
+    private long messageUpdates;
+    private long[] phaseTimes;
+    private long allocationStart;
+    private long allocatedBytes = -1;
+    private Outcome outcome;
+
+    InferenceMetrics(String inferencer,
+                     FactorGraph fg,
+                     Observation<? extends Number> observation) {
+        this.inferencer = inferencer;
+        this.factorGraphName = fg == null ? null : fg.getName();
+        this.observationName = observation == null ? null : observation.getName();
+        this.startTime = System.currentTimeMillis();
+        this.maxDiffs = new double[16];
+        this.phaseTimes = new long[Phase.values().length];
+        this.allocationStart = currentAllocatedBytes();
+    }
+
+    /**
+     * Bytes allocated by the current thread so far, or -1 if the JVM doesn't support it.
+     */
+    private static long currentAllocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean))
+            return -1;
+        com.sun.management.ThreadMXBean sunBean = (com.sun.management.ThreadMXBean) bean;
+        if (!sunBean.isThreadAllocatedMemorySupported() || !sunBean.isThreadAllocatedMemoryEnabled())
+            return -1;
+        return sunBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /**
+     * The simple class name of the inferencer.
+     * @return
+     */
+    public String getInferencer() {
+        return inferencer;
+    }
+
+    /**
+     * The name of the FactorGraph, which is usually the pathway name.
+     * @return
+     */
+    public String getFactorGraphName() {
+        return factorGraphName;
+    }
+
+    /**
+     * The name of the Observation, which is usually the sample name. Null is
+     * returned for inference without observation (i.e. prior).
+     * @return
+     */
+    public String getObservationName() {
+        return observationName;
+    }
+
+    /**
+     * The start time in milliseconds.
+     * @return
+     */
+    public long getStartTime() {
+        return startTime;
+    }
+
+    public int getIteration() {
+        return iteration;
+    }
+
+    /**
+     * Get maxDiff for each iteration. A new array is returned.
+     * @return
+     */
+    public double[] getMaxDiffs() {
+        return Arrays.copyOf(maxDiffs, iteration);
+    }
+
+    /**
+     * The maxDiff of the last iteration.
+     * @return
+     */
+    public double getMaxDiff() {
+        if (iteration == 0)
+            return Double.NaN;
+        return maxDiffs[iteration - 1];
+    }
+
+    void addIteration(double maxDiff) {
+        if (iteration == maxDiffs.length)
+            maxDiffs = Arrays.copyOf(maxDiffs, maxDiffs.length * 2);
+        maxDiffs[iteration ++] = maxDiff;
+    }
+
+    public long getMessageUpdates() {
+        return messageUpdates;
+    }
+
+    void addMessageUpdates(long updates) {
+        messageUpdates += updates;
+    }
+
+    /**
+     * Get the wall time of the passed phase in nanoseconds.
+     * @param phase
+     * @return
+     */
+    public long getPhaseTime(Phase phase) {
+        return phaseTimes[phase.ordinal()];
+    }
+
+    void addPhaseTime(Phase phase, long nanos) {
+        phaseTimes[phase.ordinal()] += nanos;
+    }
+
+    /**
+     * The total wall time of all phases in nanoseconds.
+     * @return
+     */
+    public long getTotalTime() {
+        long total = 0;
+        for (long time : phaseTimes)
+            total += time;
+        return total;
+    }
+
+    /**
+     * Bytes allocated by the thread calling the inference, or -1 if not supported by the JVM.
+     * Allocations in worker threads (e.g. the FLOODING schedule) are not counted.
+     * @return
+     */
+    public long getAllocatedBytes() {
+        return allocatedBytes;
+    }
+
+    public Outcome getOutcome() {
+        return outcome;
+    }
+
+    void finish(Outcome outcome) {
+        this.outcome = outcome;
+        if (allocationStart >= 0) {
+            long current = currentAllocatedBytes();
+            if (current >= 0)
+                allocatedBytes = current - allocationStart;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return inferencer + " for " + factorGraphName + " (" + observationName + "): " + outcome +
+               " after " + iteration + " iterations with maxDiff " + getMaxDiff() +
+               ", using " + getTotalTime() / 1.0e9d + " seconds";
+    }
+
+}
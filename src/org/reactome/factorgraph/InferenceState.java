@@ -0,0 +1,245 @@
+/*
+ * Created on Oct 18, 2026
+ *
+ */
+package org.reactome.factorgraph;
+
+/**
+ * All mutable data used by one inference on a CompiledFactorGraph: the observation, evidence,
+ * messages, scratch buffers and results. The CompiledFactorGraph is shared and not changed
+ * during inference, so that multiple threads can run inference on the same FactorGraph at the
+ * same time, each with its own InferenceState object. An InferenceState object should not be
+ * used by more than one thread at the same time.
+ * Note: If values in Factor objects are changed (e.g. during parameter learning), the client should
+ * call CompiledFactorGraph.updateFactorValues() when no inference is running on the compiled graph.
+ */
+public class InferenceState {
+    private CompiledFactorGraph graph;
+    private Observation<? extends Number> observation;
+    // Used by LoopyBeliefPropagation
+    private CompiledMessagePassing messagePassing;
+    // Packed messages used to start the next inference
+    private double[] warmStartMessages;
+    // Results in the probability space
+    private double[] variableBeliefs;
+    private double[] factorBeliefs;
+    private boolean hasBeliefs;
+    private int iteration;
+    private double maxDiff;
+
+    public InferenceState(CompiledFactorGraph graph) {
+        if (graph == null)
+            throw new IllegalArgumentException("The passed CompiledFactorGraph is null.");
+        this.graph = graph;
+        variableBeliefs = new double[graph.varOffset[graph.getNumberOfVariables()]];
+        factorBeliefs = new double[graph.tableOffset[graph.getNumberOfFactors()]];
+    }
+
+    public CompiledFactorGraph getCompiledGraph() {
+        return graph;
+    }
+
+    public Observation<? extends Number> getObservation() {
+        return observation;
+    }
+
+    /**
+     * Set the observation used for the next inference. Set null for no observation.
+     * @param observation
+     */
+    public void setObservation(Observation<? extends Number> observation) {
+        this.observation = observation;
+    }
+
+    /**
+     * Get the CompiledMessagePassing using the passed settings. A new object is created
+     * if the settings are different from the one used previously.
+     */
+    CompiledMessagePassing getMessagePassing(InferenceType inferenceType,
+                                             boolean logSpace) {
+        if (messagePassing == null ||
+            messagePassing.getInferenceType() != inferenceType ||
+            messagePassing.isLogSpace() != logSpace)
+            messagePassing = new CompiledMessagePassing(graph, inferenceType, logSpace);
+        return messagePassing;
+    }
+
+    /**
+     * Start a new inference: all results from the previous inference are cleared.
+     */
+    void reset() {
+        hasBeliefs = false;
+        iteration = 0;
+        maxDiff = Double.MAX_VALUE;
+    }
+
+    void setIteration(int iteration) {
+        this.iteration = iteration;
+    }
+
+    public int getIteration() {
+        return iteration;
+    }
+
+    void setMaxDiff(double maxDiff) {
+        this.maxDiff = maxDiff;
+    }
+
+    public double getMaxDiff() {
+        return maxDiff;
+    }
+
+    /**
+     * Calculate beliefs from messages after a LoopyBeliefPropagation inference.
+     */
+    void updateBeliefs() {
+        messagePassing.calculateBeliefs(variableBeliefs, factorBeliefs);
+        hasBeliefs = true;
+    }
+
+    /**
+     * Calculate beliefs for a sample in a batch inference.
+     */
+    void updateBeliefs(BatchMessagePassing batch, int sample) {
+        batch.calculateBeliefs(sample, variableBeliefs, factorBeliefs);
+        hasBeliefs = true;
+    }
+
+    /**
+     * Beliefs of factors packed by CompiledFactorGraph.tableOffset. The returned array is
+     * reused by this object.
+     */
+    double[] getFactorBeliefs() {
+        return factorBeliefs;
+    }
+
+    public boolean hasBeliefs() {
+        return hasBeliefs;
+    }
+
+    /**
+     * Get the belief of the passed Variable. A new array is returned.
+     * @param var
+     * @return null if the variable is not in the compiled graph or no inference has been done.
+     */
+    public double[] getBelief(Variable var) {
+        int index = graph.getVariableIndex(var);
+        if (index < 0 || !hasBeliefs)
+            return null;
+        double[] belief = new double[graph.varStates[index]];
+        System.arraycopy(variableBeliefs, graph.varOffset[index], belief, 0, belief.length);
+        return belief;
+    }
+
+    /**
+     * Get the belief of the passed Factor. A new array is returned.
+     * @param factor
+     * @return null if the factor is not in the compiled graph or no inference has been done.
+     */
+    public double[] getBelief(Factor factor) {
+        int index = graph.getFactorIndex(factor);
+        if (index < 0 || !hasBeliefs)
+            return null;
+        double[] belief = new double[graph.tableOffset[index + 1] - graph.tableOffset[index]];
+        System.arraycopy(factorBeliefs, graph.tableOffset[index], belief, 0, belief.length);
+        return belief;
+    }
+
+    /**
+     * Assign beliefs to Variable and Factor objects in the compiled FactorGraph. This method
+     * changes the FactorGraph and should not be called when other threads are using the same FactorGraph.
+     */
+    public void exportBeliefs() {
+        if (!hasBeliefs)
+            throw new IllegalStateException("No beliefs available: inference has not been performed successfully.");
+        for (int v = 0; v < graph.getNumberOfVariables(); v++) {
+            Variable var = graph.getVariable(v);
+            int states = graph.varStates[v];
+            double[] belief = var.getBelief();
+            if (belief == null || belief.length != states)
+                belief = new double[states];
+            System.arraycopy(variableBeliefs, graph.varOffset[v], belief, 0, states);
+            var.setBelief(belief);
+        }
+        for (int f = 0; f < graph.getNumberOfFactors(); f++) {
+            Factor factor = graph.getFactor(f);
+            int size = graph.tableOffset[f + 1] - graph.tableOffset[f];
+            double[] belief = factor.getBelief();
+            if (belief == null || belief.length != size)
+                belief = new double[size];
+            System.arraycopy(factorBeliefs, graph.tableOffset[f], belief, 0, size);
+            factor.setBelief(belief);
+        }
+    }
+
+    /**
+     * Create a MessageSnapshot for messages from the last LoopyBeliefPropagation inference.
+     * @return null if no message is available.
+     */
+    public MessageSnapshot createMessageSnapshot() {
+        if (!hasBeliefs || messagePassing == null)
+            return null;
+        return messagePassing.createSnapshot(graph.getFactorGraph());
+    }
+
+    /**
+     * Copy messages from the last LoopyBeliefPropagation inference into a packed array, which can
+     * be passed to setWarmStartMessages() to start a later inference from these messages (e.g. for the
+     * same observation after factor values are changed a little during parameter learning).
+     * @param dest reused if it is in the correct size
+     * @return null if no message is available.
+     */
+    public double[] copyMessages(double[] dest) {
+        if (!hasBeliefs || messagePassing == null)
+            return null;
+        return messagePassing.copyMessages(dest);
+    }
+
+    /**
+     * Set packed messages returned by copyMessages() to start the next LoopyBeliefPropagation
+     * inference instead of the initial message. Messages should be generated using the same
+     * LoopyBeliefPropagation settings. Set null to start from the initial message.
+     * @param messages
+     */
+    public void setWarmStartMessages(double[] messages) {
+        this.warmStartMessages = messages;
+    }
+
+    public double[] getWarmStartMessages() {
+        return warmStartMessages;
+    }
+
+    /**
+     * Calculate the Bethe approximation of the partition function using beliefs in this
+     * object. See AbstractInferencer.calculateLogZ() for details.
+     * @return
+     */
+    public double calculateLogZ() {
+        if (!hasBeliefs)
+            throw new IllegalStateException("No beliefs available: inference has not been performed successfully.");
+        double logZ = 0.0d;
+        for (int v = 0; v < graph.getNumberOfVariables(); v++) {
+            double tmp = 0.0d;
+            for (int i = graph.varOffset[v]; i < graph.varOffset[v + 1]; i++) {
+                double value = variableBeliefs[i];
+                if (value == 0.0d)
+                    continue;
+                tmp += value * Math.log(value);
+            }
+            logZ += (graph.getDegree(v) - 1) * tmp;
+        }
+        for (int f = 0; f < graph.getNumberOfFactors(); f++) {
+            for (int i = graph.tableOffset[f]; i < graph.tableOffset[f + 1]; i++) {
+                double belief = factorBeliefs[i];
+                double value = graph.tables[i];
+                if (belief == 0.0d || value == 0.0d)
+                    continue;
+                logZ += belief * (Math.log(value) - Math.log(belief));
+            }
+        }
+        if (Double.isNaN(logZ))
+            throw new IllegalStateException("NaN encountered in calculateLogZ().");
+        return logZ;
+    }
+
+}
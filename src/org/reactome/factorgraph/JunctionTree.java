@@ -0,0 +1,279 @@
+/*
+ * Created on Oct 18, 2026
+ *
+ */
+package org.reactome.factorgraph;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A clique tree built from a CompiledFactorGraph by triangulating its moral graph using the min-fill
+ * heuristic. Cliques are the elimination cliques and indexed by the elimination order, so that the parent
+ * of a clique always has a larger index than the clique itself: an upward pass can simply walk cliques in
+ * increasing order and a downward pass in decreasing order. Maps from clique cells to separator, variable and
+ * factor cells are pre-computed so that message passing needs no index arithmetic. Variables in a clique are
+ * laid out as in Factor with the first variable having stride 1.
+ * Note: This class is built once per CompiledFactorGraph and not changed during inference.
+ */
+class JunctionTree {
+    private CompiledFactorGraph graph;
+    // Variables in cliques
+    int[][] cliqueVars;
+    int[] cliqueSize;
+    // -1 for a root
+    int[] parent;
+    // CSR index for children
+    int[] childStart;
+    int[] children;
+    // Cell in a clique to cell in the separator to its parent
+    int[][] upMap;
+    // Cell in the parent clique to cell in the separator to a child
+    int[][] downMap;
+    int[] separatorSize;
+    // Each variable is handled in the clique where it is eliminated
+    int[] varClique;
+    int[][] varMap;
+    // Each factor is assigned to the clique of its first eliminated variable
+    int[] factorClique;
+    int[][] factorMap;
+    // Size of the largest clique
+    int maxCliqueSize;
+
+    private JunctionTree(CompiledFactorGraph graph) {
+        this.graph = graph;
+    }
+
+    /**
+     * Build a JunctionTree for the passed CompiledFactorGraph.
+     * @param graph
+     * @param maxCliqueSize the largest number of cells allowed in a clique
+     * @return null if a clique having more cells than maxCliqueSize is needed.
+     */
+    public static JunctionTree build(CompiledFactorGraph graph,
+                                     int maxCliqueSize) {
+        JunctionTree tree = new JunctionTree(graph);
+        int[] order = tree.triangulate(maxCliqueSize);
+        if (order == null)
+            return null;
+        tree.buildTree(order);
+        return tree;
+    }
+
+    public CompiledFactorGraph getCompiledGraph() {
+        return graph;
+    }
+
+    public int getNumberOfCliques() {
+        return cliqueVars.length;
+    }
+
+    /**
+     * Eliminate variables one by one using the min-fill heuristic: the variable whose elimination
+     * adds the smallest number of fill-in edges is picked, and ties are broken by the size of the
+     * elimination clique. Elimination cliques are kept in cliqueVars with the eliminated variable first.
+     * @return the elimination order or null if the size of a clique is over the passed limit.
+     */
+    private int[] triangulate(int maxSize) {
+        int n = graph.getNumberOfVariables();
+        // Moral graph: variables in a factor are connected
+        List<Set<Integer>> neighbors = new ArrayList<Set<Integer>>(n);
+        for (int v = 0; v < n; v++)
+            neighbors.add(new HashSet<Integer>());
+        for (int f = 0; f < graph.getNumberOfFactors(); f++) {
+            int start = graph.factorEdgeStart[f];
+            int end = graph.factorEdgeStart[f + 1];
+            for (int e1 = start; e1 < end; e1++) {
+                for (int e2 = e1 + 1; e2 < end; e2++) {
+                    int v1 = graph.edgeVariable[e1];
+                    int v2 = graph.edgeVariable[e2];
+                    neighbors.get(v1).add(v2);
+                    neighbors.get(v2).add(v1);
+                }
+            }
+        }
+        int[] fill = new int[n];
+        double[] weight = new double[n];
+        for (int v = 0; v < n; v++)
+            updateScore(v, neighbors, fill, weight);
+        boolean[] eliminated = new boolean[n];
+        int[] order = new int[n];
+        cliqueVars = new int[n][];
+        maxCliqueSize = 0;
+        Set<Integer> affected = new HashSet<Integer>();
+        for (int i = 0; i < n; i++) {
+            int picked = -1;
+            for (int v = 0; v < n; v++) {
+                if (eliminated[v])
+                    continue;
+                if (picked < 0 ||
+                    fill[v] < fill[picked] ||
+                    (fill[v] == fill[picked] && weight[v] < weight[picked]))
+                    picked = v;
+            }
+            if (weight[picked] > maxSize)
+                return null;
+            if (weight[picked] > maxCliqueSize)
+                maxCliqueSize = (int) weight[picked];
+            Set<Integer> pickedNeighbors = neighbors.get(picked);
+            int[] clique = new int[pickedNeighbors.size() + 1];
+            clique[0] = picked;
+            int index = 1;
+            for (Integer neighbor : pickedNeighbors)
+                clique[index ++] = neighbor;
+            cliqueVars[i] = clique;
+            order[i] = picked;
+            eliminated[picked] = true;
+            // Add fill-in edges and remove the eliminated variable
+            affected.clear();
+            for (int j = 1; j < clique.length; j++) {
+                Set<Integer> set = neighbors.get(clique[j]);
+                set.remove(picked);
+                for (int k = 1; k < clique.length; k++) {
+                    if (k != j)
+                        set.add(clique[k]);
+                }
+            }
+            for (int j = 1; j < clique.length; j++) {
+                affected.add(clique[j]);
+                affected.addAll(neighbors.get(clique[j]));
+            }
+            for (Integer v : affected)
+                updateScore(v, neighbors, fill, weight);
+        }
+        return order;
+    }
+
+    private void updateScore(int v,
+                             List<Set<Integer>> neighbors,
+                             int[] fill,
+                             double[] weight) {
+        Set<Integer> set = neighbors.get(v);
+        double size = graph.varStates[v];
+        int count = 0;
+        for (Integer v1 : set) {
+            size *= graph.varStates[v1];
+            Set<Integer> set1 = neighbors.get(v1);
+            for (Integer v2 : set) {
+                if (v1 < v2 && !set1.contains(v2))
+                    count ++;
+            }
+        }
+        fill[v] = count;
+        weight[v] = size;
+    }
+
+    /**
+     * Link elimination cliques into a tree: the parent of a clique is the clique of the first eliminated
+     * variable in the separator (i.e. the clique without the eliminated variable), which contains the
+     * whole separator.
+     */
+    private void buildTree(int[] order) {
+        int n = order.length;
+        int[] position = new int[n];
+        for (int i = 0; i < n; i++)
+            position[order[i]] = i;
+        varClique = position;
+        parent = new int[n];
+        cliqueSize = new int[n];
+        separatorSize = new int[n];
+        int[] childCounts = new int[n];
+        for (int c = 0; c < n; c++) {
+            int[] vars = cliqueVars[c];
+            int size = 1;
+            for (int v : vars)
+                size *= graph.varStates[v];
+            cliqueSize[c] = size;
+            separatorSize[c] = size / graph.varStates[vars[0]];
+            int p = -1;
+            for (int j = 1; j < vars.length; j++) {
+                if (p < 0 || position[vars[j]] < p)
+                    p = position[vars[j]];
+            }
+            parent[c] = p;
+            if (p >= 0)
+                childCounts[p] ++;
+        }
+        childStart = new int[n + 1];
+        for (int c = 0; c < n; c++)
+            childStart[c + 1] = childStart[c] + childCounts[c];
+        children = new int[childStart[n]];
+        int[] filled = new int[n];
+        for (int c = 0; c < n; c++) {
+            int p = parent[c];
+            if (p >= 0)
+                children[childStart[p] + filled[p]++] = c;
+        }
+        // Separators: variables are laid out as in the child clique without its first variable
+        upMap = new int[n][];
+        downMap = new int[n][];
+        int[] strides = new int[graph.getNumberOfVariables()];
+        for (int c = 0; c < n; c++) {
+            if (parent[c] < 0)
+                continue;
+            int[] vars = cliqueVars[c];
+            int stride = 1;
+            for (int j = 1; j < vars.length; j++) {
+                strides[vars[j]] = stride;
+                stride *= graph.varStates[vars[j]];
+            }
+            strides[vars[0]] = 0;
+            upMap[c] = mapCells(c, strides);
+            downMap[c] = mapCells(parent[c], strides);
+            for (int v : vars)
+                strides[v] = 0;
+            for (int v : cliqueVars[parent[c]])
+                strides[v] = 0;
+        }
+        varMap = new int[n][];
+        for (int v = 0; v < n; v++) {
+            strides[v] = 1;
+            varMap[v] = mapCells(varClique[v], strides);
+            strides[v] = 0;
+        }
+        factorClique = new int[graph.getNumberOfFactors()];
+        factorMap = new int[graph.getNumberOfFactors()][];
+        for (int f = 0; f < graph.getNumberOfFactors(); f++) {
+            int c = -1;
+            for (int e = graph.factorEdgeStart[f]; e < graph.factorEdgeStart[f + 1]; e++) {
+                int v = graph.edgeVariable[e];
+                strides[v] = graph.edgeStride[e];
+                if (c < 0 || position[v] < c)
+                    c = position[v];
+            }
+            factorClique[f] = c;
+            factorMap[f] = mapCells(c, strides);
+            for (int e = graph.factorEdgeStart[f]; e < graph.factorEdgeStart[f + 1]; e++)
+                strides[graph.edgeVariable[e]] = 0;
+        }
+    }
+
+    /**
+     * Map each cell in a clique to a cell in a table whose variables have the passed strides. Variables
+     * in the clique but not in the table should have stride 0.
+     */
+    private int[] mapCells(int clique,
+                           int[] strides) {
+        int[] vars = cliqueVars[clique];
+        int[] map = new int[cliqueSize[clique]];
+        int[] states = new int[vars.length];
+        int index = 0;
+        for (int i = 0; i < map.length; i++) {
+            map[i] = index;
+            // Increase the clique assignment like an odometer with the first variable fastest
+            for (int j = 0; j < vars.length; j++) {
+                int stride = strides[vars[j]];
+                if (++states[j] < graph.varStates[vars[j]]) {
+                    index += stride;
+                    break;
+                }
+                index -= stride * (states[j] - 1);
+                states[j] = 0;
+            }
+        }
+        return map;
+    }
+
+}
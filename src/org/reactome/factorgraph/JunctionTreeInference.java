@@ -0,0 +1,430 @@
+/*
+ * Created on Oct 18, 2026
+ *
+ */
+package org.reactome.factorgraph;
+
+import java.util.Arrays;
+
+import org.apache.log4j.Logger;
+import org.reactome.factorgraph.InferenceMetrics.Outcome;
+import org.reactome.factorgraph.InferenceMetrics.Phase;
+
+/**
+ * Exact inference using a junction tree (the Hugin architecture). The FactorGraph is compiled into a
+ * CompiledFactorGraph and triangulated with the min-fill heuristic once. The product of factors in each clique
+ * and the upward messages without any evidence are calculated once too (and again only when factor values
+ * are changed). For an observation, only cliques having evidence and their ancestors send new upward messages,
+ * followed by a full downward pass. Observations are applied as evidence vectors as in the compiled
+ * LoopyBeliefPropagation, so that the FactorGraph is not changed.
+ * Graphs whose cliques are too large (i.e. having more cells than maxCliqueSize) are refused: an IllegalStateException
+ * is thrown by runInference(). Use isTractable() to check a FactorGraph first.
+ */
+public class JunctionTreeInference extends AbstractInferencer {
+    private static final Logger logger = Logger.getLogger(JunctionTreeInference.class);
+    private InferenceType inferenceType = InferenceType.SUM_PRODUCT;
+    // The largest number of cells in a clique
+    private int maxCliqueSize = 1 << 18;
+    // The CompiledFactorGraph used to build the junction tree
+    private CompiledFactorGraph treeGraph;
+    private JunctionTree junctionTree;
+    // True if no JunctionTree can be built under maxCliqueSize for the compiled graph
+    private boolean refused;
+    // Product of factors in each clique
+    private double[][] potentials;
+    // Upward pass without evidence: normalized clique tables, messages and the logs of normalizers
+    private double[][] priorTables;
+    private double[][] priorMessages;
+    private double[] priorLogNorms;
+    // The InferenceType used by the upward pass without evidence. null if calibration is needed.
+    private InferenceType calibratedType;
+    // Buffers for one inference
+    private double[][] tables;
+    private double[][] messages;
+    private double[][] upMessages;
+    private double[] separatorBuffer;
+    private double[] stateBuffer;
+    private boolean[] dirty;
+    // Evidence packed by CompiledFactorGraph.varOffset
+    private double[] evidence;
+    private int[] evidenceVariables;
+    private int evidenceVariableCount;
+    private double logZ;
+    private boolean hasResult;
+
+    public JunctionTreeInference() {
+    }
+
+    public void setInferenceType(InferenceType type) {
+        this.inferenceType = type;
+    }
+
+    public InferenceType getInferenceType() {
+        return this.inferenceType;
+    }
+
+    /**
+     * Set the largest number of cells (i.e. the product of variable states) allowed in a clique.
+     * @param maxCliqueSize
+     */
+    public void setMaxCliqueSize(int maxCliqueSize) {
+        if (maxCliqueSize <= 0)
+            throw new IllegalArgumentException("maxCliqueSize should be positive: " + maxCliqueSize);
+        if (maxCliqueSize != this.maxCliqueSize) {
+            junctionTree = null;
+            refused = false;
+        }
+        this.maxCliqueSize = maxCliqueSize;
+    }
+
+    public int getMaxCliqueSize() {
+        return this.maxCliqueSize;
+    }
+
+    /**
+     * Check if a junction tree can be built for the FactorGraph under the maxCliqueSize.
+     * The built junction tree is cached.
+     * @return
+     */
+    public synchronized boolean isTractable() {
+        return getJunctionTree() != null;
+    }
+
+    /**
+     * Get the size of the largest clique in the junction tree.
+     * @return -1 if no junction tree can be built under maxCliqueSize.
+     */
+    public synchronized int getLargestCliqueSize() {
+        JunctionTree tree = getJunctionTree();
+        if (tree == null)
+            return -1;
+        return tree.maxCliqueSize;
+    }
+
+    private JunctionTree getJunctionTree() {
+        CompiledFactorGraph graph = getCompiledGraph();
+        if (graph != treeGraph) {
+            treeGraph = graph;
+            junctionTree = null;
+            refused = false;
+        }
+        if (junctionTree == null && !refused) {
+            long time1 = System.currentTimeMillis();
+            junctionTree = JunctionTree.build(graph, maxCliqueSize);
+            long time2 = System.currentTimeMillis();
+            if (junctionTree == null) {
+                refused = true;
+                if (debug)
+                    logger.info("Cannot build a junction tree for " + factorGraph + " with max clique size " + maxCliqueSize);
+                return null;
+            }
+            if (debug)
+                logger.info("Junction tree for " + factorGraph + ": " + junctionTree.getNumberOfCliques() + " cliques, largest clique size " +
+                            junctionTree.maxCliqueSize + ", using " + (time2 - time1) / 1000.0d + " seconds.");
+            allocate(junctionTree);
+        }
+        return junctionTree;
+    }
+
+    private void allocate(JunctionTree tree) {
+        int n = tree.getNumberOfCliques();
+        potentials = new double[n][];
+        priorTables = new double[n][];
+        priorMessages = new double[n][];
+        priorLogNorms = new double[n];
+        tables = new double[n][];
+        messages = new double[n][];
+        upMessages = new double[n][];
+        int maxSeparator = 1;
+        for (int c = 0; c < n; c++) {
+            potentials[c] = new double[tree.cliqueSize[c]];
+            priorTables[c] = new double[tree.cliqueSize[c]];
+            tables[c] = new double[tree.cliqueSize[c]];
+            if (tree.parent[c] >= 0) {
+                priorMessages[c] = new double[tree.separatorSize[c]];
+                messages[c] = new double[tree.separatorSize[c]];
+                maxSeparator = Math.max(maxSeparator, tree.separatorSize[c]);
+            }
+        }
+        separatorBuffer = new double[maxSeparator];
+        CompiledFactorGraph graph = tree.getCompiledGraph();
+        stateBuffer = new double[graph.maxStates];
+        dirty = new boolean[n];
+        evidence = new double[graph.varOffset[graph.getNumberOfVariables()]];
+        Arrays.fill(evidence, 1.0d);
+        evidenceVariables = new int[graph.getNumberOfVariables()];
+        evidenceVariableCount = 0;
+        calibratedType = null;
+    }
+
+    /**
+     * Perform exact inference and assign beliefs to Variable and Factor objects. This method is synchronized
+     * so that only one thread can run inference using this object.
+     */
+    @Override
+    public synchronized void runInference() throws InferenceCannotConvergeException {
+        super.runInference();
+        hasResult = false;
+        InferenceMetrics metrics = startMetrics(getObservation());
+        Outcome outcome = Outcome.FAILED;
+        try {
+            JunctionTree tree = getJunctionTree();
+            if (tree == null)
+                throw new IllegalStateException("Cannot perform junction tree inference for " + factorGraph +
+                                                ": a clique would have more than " + maxCliqueSize + " cells.");
+            long time1 = System.currentTimeMillis();
+            long phaseTime = System.nanoTime();
+            // Factor values may be changed by parameter learning
+            if (tree.getCompiledGraph().updateFactorValues() || calibratedType != inferenceType)
+                calibrate(tree);
+            finishPhase(metrics, Phase.MESSAGE_PASSING, phaseTime);
+            phaseTime = System.nanoTime();
+            setEvidence(tree, getObservation());
+            finishPhase(metrics, Phase.ATTACH_OBSERVATION, phaseTime);
+            phaseTime = System.nanoTime();
+            propagate(tree);
+            finishIteration(metrics, 1, 0.0d);
+            finishPhase(metrics, Phase.MESSAGE_PASSING, phaseTime);
+            phaseTime = System.nanoTime();
+            exportBeliefs(tree);
+            finishPhase(metrics, Phase.BELIEFS, phaseTime);
+            iteration = 1;
+            maxDiff = 0.0d;
+            hasResult = true;
+            outcome = Outcome.CONVERGED;
+            long time2 = System.currentTimeMillis();
+            if (debug)
+                logger.info("Junction tree inference is done using " + (time2 - time1) / 1000.0d + " seconds.");
+        }
+        finally {
+            finishInference(metrics, outcome);
+        }
+    }
+
+    /**
+     * Multiply factors into their cliques and perform an upward pass without evidence.
+     */
+    private void calibrate(JunctionTree tree) {
+        CompiledFactorGraph graph = tree.getCompiledGraph();
+        for (double[] potential : potentials)
+            Arrays.fill(potential, 1.0d);
+        for (int f = 0; f < graph.getNumberOfFactors(); f++) {
+            double[] potential = potentials[tree.factorClique[f]];
+            int[] map = tree.factorMap[f];
+            int tableStart = graph.tableOffset[f];
+            for (int i = 0; i < potential.length; i++)
+                potential[i] *= graph.tables[tableStart + map[i]];
+        }
+        for (int c = 0; c < tree.getNumberOfCliques(); c++) {
+            System.arraycopy(potentials[c], 0, priorTables[c], 0, potentials[c].length);
+            multiplyChildMessages(tree, c, priorTables[c], priorMessages);
+            priorLogNorms[c] = Math.log(normalize(priorTables[c], priorTables[c].length));
+            if (tree.parent[c] >= 0)
+                marginalize(priorTables[c], tree.upMap[c], priorMessages[c], tree.separatorSize[c]);
+        }
+        calibratedType = inferenceType;
+    }
+
+    private void setEvidence(JunctionTree tree,
+                             Observation<? extends Number> observation) {
+        CompiledFactorGraph graph = tree.getCompiledGraph();
+        for (int i = 0; i < evidenceVariableCount; i++) {
+            int v = evidenceVariables[i];
+            Arrays.fill(evidence, graph.varOffset[v], graph.varOffset[v + 1], 1.0d);
+        }
+        evidenceVariableCount = 0;
+        if (observation != null && observation.getVariableAssignments() != null) {
+            for (VariableAssignment<? extends Number> varAssgn : observation.getVariableAssignments()) {
+                int v = graph.getVariableIndex(varAssgn.getVariable());
+                if (v < 0 || varAssgn.getAssignment() == null) // e.g. ContinuousVariable
+                    continue;
+                AbstractInferencer.fillObservedValues(varAssgn.getVariable(),
+                                                      varAssgn.getAssignment(),
+                                                      stateBuffer,
+                                                      0);
+                multiplyEvidence(graph, v, stateBuffer);
+            }
+        }
+        for (int i = 0; i < graph.getNumberOfContinuousFactors(); i++) {
+            ContinuousFactor factor = graph.getContinuousFactor(i);
+            VariableAssignment<? extends Number> varAssgn = null;
+            if (observation != null)
+                varAssgn = observation.getVariableAssignment(factor.getContinuousVariable());
+            // The returned array is reused by the factor
+            synchronized (factor) {
+                multiplyEvidence(graph, graph.continuousFactorVariable[i], factor.marginalizeForDiscrete(varAssgn));
+            }
+        }
+    }
+
+    private void multiplyEvidence(CompiledFactorGraph graph,
+                                  int v,
+                                  double[] values) {
+        boolean found = false;
+        for (int i = 0; i < evidenceVariableCount; i++) {
+            if (evidenceVariables[i] == v) {
+                found = true;
+                break;
+            }
+        }
+        if (!found)
+            evidenceVariables[evidenceVariableCount ++] = v;
+        int offset = graph.varOffset[v];
+        for (int s = 0; s < graph.varStates[v]; s++)
+            evidence[offset + s] *= values[s];
+    }
+
+    /**
+     * Send upward messages from cliques affected by evidence and then downward messages to all cliques.
+     */
+    private void propagate(JunctionTree tree) {
+        CompiledFactorGraph graph = tree.getCompiledGraph();
+        int n = tree.getNumberOfCliques();
+        Arrays.fill(dirty, false);
+        for (int i = 0; i < evidenceVariableCount; i++) {
+            int c = tree.varClique[evidenceVariables[i]];
+            while (c >= 0 && !dirty[c]) {
+                dirty[c] = true;
+                c = tree.parent[c];
+            }
+        }
+        // Upward
+        for (int c = 0; c < n; c++) {
+            if (!dirty[c]) {
+                System.arraycopy(priorTables[c], 0, tables[c], 0, tables[c].length);
+                upMessages[c] = priorMessages[c];
+                continue;
+            }
+            System.arraycopy(potentials[c], 0, tables[c], 0, tables[c].length);
+        }
+        for (int i = 0; i < evidenceVariableCount; i++) {
+            int v = evidenceVariables[i];
+            double[] table = tables[tree.varClique[v]];
+            int[] map = tree.varMap[v];
+            int offset = graph.varOffset[v];
+            for (int j = 0; j < table.length; j++)
+                table[j] *= evidence[offset + map[j]];
+        }
+        logZ = 0.0d;
+        for (int c = 0; c < n; c++) {
+            if (!dirty[c]) {
+                logZ += priorLogNorms[c];
+                continue;
+            }
+            multiplyChildMessages(tree, c, tables[c], upMessages);
+            double sum = normalize(tables[c], tables[c].length);
+            if (sum == 0.0d || Double.isNaN(sum))
+                throw new IllegalStateException("Cannot perform junction tree inference for " + factorGraph + ": the observation has zero probability.");
+            logZ += Math.log(sum);
+            if (tree.parent[c] >= 0) {
+                marginalize(tables[c], tree.upMap[c], messages[c], tree.separatorSize[c]);
+                upMessages[c] = messages[c];
+            }
+        }
+        // Downward: the new separator table divided by the upward message is multiplied into the child
+        for (int c = n - 1; c >= 0; c--) {
+            int p = tree.parent[c];
+            if (p < 0)
+                continue;
+            int size = tree.separatorSize[c];
+            double[] separator = separatorBuffer;
+            marginalize(tables[p], tree.downMap[c], separator, size);
+            double[] upMessage = upMessages[c];
+            for (int s = 0; s < size; s++) {
+                if (upMessage[s] == 0.0d)
+                    separator[s] = 0.0d; // Use 0/0 = 0
+                else
+                    separator[s] /= upMessage[s];
+            }
+            double[] table = tables[c];
+            int[] map = tree.upMap[c];
+            for (int i = 0; i < table.length; i++)
+                table[i] *= separator[map[i]];
+            normalize(table, table.length);
+        }
+    }
+
+    private void multiplyChildMessages(JunctionTree tree,
+                                       int c,
+                                       double[] table,
+                                       double[][] childMessages) {
+        for (int i = tree.childStart[c]; i < tree.childStart[c + 1]; i++) {
+            int child = tree.children[i];
+            double[] message = childMessages[child];
+            int[] map = tree.downMap[child];
+            for (int j = 0; j < table.length; j++)
+                table[j] *= message[map[j]];
+        }
+    }
+
+    /**
+     * Marginalize (or maximize for MAX_PRODUCT) the passed table into the target via the passed cell map.
+     */
+    private void marginalize(double[] table,
+                             int[] map,
+                             double[] target,
+                             int size) {
+        Arrays.fill(target, 0, size, 0.0d);
+        if (inferenceType == InferenceType.MAX_PRODUCT) {
+            for (int i = 0; i < table.length; i++) {
+                if (table[i] > target[map[i]])
+                    target[map[i]] = table[i];
+            }
+        }
+        else {
+            for (int i = 0; i < table.length; i++)
+                target[map[i]] += table[i];
+        }
+    }
+
+    /**
+     * Normalize the passed values so that the sum is 1.0.
+     * @return the sum before normalization
+     */
+    private double normalize(double[] values, int length) {
+        double sum = 0.0d;
+        for (int i = 0; i < length; i++)
+            sum += values[i];
+        if (sum == 0.0d)
+            return sum;
+        for (int i = 0; i < length; i++)
+            values[i] /= sum;
+        return sum;
+    }
+
+    private void exportBeliefs(JunctionTree tree) {
+        CompiledFactorGraph graph = tree.getCompiledGraph();
+        for (int v = 0; v < graph.getNumberOfVariables(); v++) {
+            Variable var = graph.getVariable(v);
+            int states = graph.varStates[v];
+            double[] belief = var.getBelief();
+            if (belief == null || belief.length != states)
+                belief = new double[states];
+            marginalize(tables[tree.varClique[v]], tree.varMap[v], belief, states);
+            normalize(belief, states);
+            var.setBelief(belief);
+        }
+        for (int f = 0; f < graph.getNumberOfFactors(); f++) {
+            Factor factor = graph.getFactor(f);
+            int size = graph.tableOffset[f + 1] - graph.tableOffset[f];
+            double[] belief = factor.getBelief();
+            if (belief == null || belief.length != size)
+                belief = new double[size];
+            marginalize(tables[tree.factorClique[f]], tree.factorMap[f], belief, size);
+            normalize(belief, size);
+            factor.setBelief(belief);
+        }
+    }
+
+    /**
+     * Get the exact log partition function (i.e. the log probability of evidence plus the log normalizer
+     * of the FactorGraph) calculated in the last runInference() for SUM_PRODUCT.
+     */
+    @Override
+    public double calculateLogZ() {
+        if (!hasResult || inferenceType != InferenceType.SUM_PRODUCT)
+            return super.calculateLogZ();
+        return logZ;
+    }
+
+}
@@ -4,6 +4,7 @@
  */
 package org.reactome.factorgraph;
 
+import java.io.StringWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -13,13 +14,20 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.commons.math3.distribution.NormalDistribution;
 import org.apache.commons.math3.random.EmpiricalDistribution;
 import org.apache.log4j.PropertyConfigurator;
+import org.junit.Assert;
 import org.junit.Test;
 import org.reactome.factorgraph.CLGFactor.CLGFactorDistribution;
 import org.reactome.factorgraph.ContinuousVariable.DistributionType;
+import org.reactome.factorgraph.common.InferenceMetricsAggregator;
+import org.reactome.factorgraph.common.InferenceMetricsWriter;
+import org.reactome.factorgraph.common.SyntheticFactorGraphGenerator;
 import org.reactome.r3.util.FileUtility;
 
 /**
@@ -631,6 +639,507 @@ public class LBPTester {
         outputBelief(fg);
     }
 
+    @Test
+    public void testCompiledInference() throws Exception {
+        FileUtility.initializeLogging();
+        FactorGraph fg = TestUtilities.createFeedbackLoopFG();
+        Variable a = TestUtilities.getVariable(fg, "A");
+        Map<Variable, Integer> observation = new HashMap<Variable, Integer>();
+        observation.put(a, 2);
+        for (boolean logSpace : new boolean[]{false, true}) {
+            lbp.setUseLogSpace(logSpace);
+            lbp.setUseCompiledGraph(false);
+            performLBP(fg, observation);
+            Map<Variable, double[]> varToBelief = new HashMap<Variable, double[]>();
+            for (Variable var : fg.getVariables())
+                varToBelief.put(var, Arrays.copyOf(var.getBelief(), var.getStates()));
+            double logZ = lbp.calculateLogZ();
+            System.out.println("\nCompiled (logSpace: " + logSpace + "):");
+            lbp.setUseCompiledGraph(true);
+            performLBP(fg, observation);
+            double maxDiff = calculateMaxDiff(fg, varToBelief);
+            double logZDiff = Math.abs(logZ - lbp.calculateLogZ());
+            System.out.println("Max belief diff: " + maxDiff);
+            System.out.println("LogZ diff: " + logZDiff + "\n");
+            Assert.assertTrue("Compiled beliefs differ: " + maxDiff, maxDiff < 1.0e-8);
+            Assert.assertTrue("Compiled logZ differs: " + logZDiff, logZDiff < 1.0e-8);
+            System.out.println("ALL_OUTGOING (logSpace: " + logSpace + "):");
+            lbp.setSchedule(MessageSchedule.ALL_OUTGOING);
+            performLBP(fg, observation);
+            maxDiff = calculateMaxDiff(fg, varToBelief);
+            System.out.println("Max belief diff: " + maxDiff + "\n");
+            Assert.assertTrue("ALL_OUTGOING beliefs differ: " + maxDiff, maxDiff < 1.0e-8);
+            System.out.println("FLOODING with 2 threads (logSpace: " + logSpace + "):");
+            lbp.setSchedule(MessageSchedule.FLOODING);
+            lbp.setNumberOfThreads(2);
+            performLBP(fg, observation);
+            maxDiff = calculateMaxDiff(fg, varToBelief);
+            System.out.println("Max belief diff: " + maxDiff + "\n");
+            Assert.assertTrue("FLOODING beliefs differ: " + maxDiff, maxDiff < 1.0e-8);
+            lbp.setNumberOfThreads(0);
+            System.out.println("RESIDUAL (logSpace: " + logSpace + "):");
+            lbp.setSchedule(MessageSchedule.RESIDUAL);
+            performLBP(fg, observation);
+            maxDiff = calculateMaxDiff(fg, varToBelief);
+            System.out.println("Max belief diff: " + maxDiff + "\n");
+            Assert.assertTrue("RESIDUAL beliefs differ: " + maxDiff, maxDiff < 1.0e-8);
+            lbp.setSchedule(MessageSchedule.SEQUENTIAL);
+        }
+        lbp.setUseCompiledGraph(false);
+        lbp.setUseLogSpace(false);
+    }
+
+    @Test
+    public void testCompiledGraphCache() throws Exception {
+        FactorGraph fg = TestUtilities.createFeedbackLoopFG();
+        Variable a = TestUtilities.getVariable(fg, "A");
+        Map<Variable, Integer> observation = new HashMap<Variable, Integer>();
+        observation.put(a, 2);
+        lbp.setFactorGraph(fg);
+        CompiledFactorGraph graph = lbp.getCompiledGraph();
+        // Observation factors are added and removed by inference without the compiled graph
+        lbp.setUseCompiledGraph(false);
+        performLBP(fg, observation);
+        Assert.assertTrue("The compiled graph is re-created for an unchanged FactorGraph",
+                          graph == lbp.getCompiledGraph());
+        // Replace a factor with a new one having different values so that the number of factors is the same
+        Factor factor = fg.getFactors().iterator().next();
+        Factor copy = new Factor();
+        copy.setVariables(new ArrayList<Variable>(factor.getVariables()));
+        double[] values = factor.getValues().clone();
+        for (int i = 0; i < values.length; i++)
+            values[i] = 1.0d + (i % 3);
+        copy.setValues(values);
+        fg.getFactors().remove(factor);
+        for (Variable var : factor.getVariables())
+            var.removeFactor(factor);
+        fg.addFactor(copy);
+        fg.validatVariables();
+        Assert.assertTrue("The compiled graph is stale", graph != lbp.getCompiledGraph());
+        Assert.assertTrue(lbp.getCompiledGraph().getFactorIndex(copy) >= 0);
+        performLBP(fg, observation);
+        Map<Variable, double[]> varToBelief = new HashMap<Variable, double[]>();
+        for (Variable var : fg.getVariables())
+            varToBelief.put(var, Arrays.copyOf(var.getBelief(), var.getStates()));
+        lbp.setUseCompiledGraph(true);
+        performLBP(fg, observation);
+        double diff = calculateMaxDiff(fg, varToBelief);
+        System.out.println("Max belief diff after replacing a factor: " + diff);
+        Assert.assertTrue("Compiled inference is different: " + diff, diff < 1.0e-6);
+        lbp.setUseCompiledGraph(false);
+    }
+
+    @Test
+    public void testWarmStart() throws Exception {
+        FileUtility.initializeLogging();
+        // A loopy graph large enough that messages need many iterations from the uniform start
+        SyntheticFactorGraphGenerator generator = new SyntheticFactorGraphGenerator(1234L);
+        FactorGraph fg = generator.createPairwiseGraph(200);
+        Observation<Integer> base = generator.createObservations(fg, 1, 0.05d).get(0);
+        // Change a single assignment so that most messages from the base are still close
+        Map<Variable, Integer> sample = new HashMap<Variable, Integer>(base.getVariableToAssignment());
+        Variable changed = sample.keySet().iterator().next();
+        sample.put(changed, (sample.get(changed) + 1) % changed.getStates());
+        lbp.setFactorGraph(fg);
+        for (boolean useCompiledGraph : new boolean[]{false, true}) {
+            lbp.setUseCompiledGraph(useCompiledGraph);
+            System.out.println("\nCompiled: " + useCompiledGraph);
+            lbp.setObservation(sample);
+            lbp.runInference();
+            int coldIteration = lbp.getIteration();
+            Map<Variable, double[]> varToBelief = new HashMap<Variable, double[]>();
+            for (Variable var : fg.getVariables())
+                varToBelief.put(var, Arrays.copyOf(var.getBelief(), var.getStates()));
+            lbp.setObservation(base);
+            lbp.runInference();
+            lbp.setWarmStartMessages(lbp.createMessageSnapshot());
+            lbp.setObservation(sample);
+            lbp.runInference();
+            int warmIteration = lbp.getIteration();
+            double maxDiff = calculateMaxDiff(fg, varToBelief);
+            System.out.println("Iterations: " + coldIteration + " (cold) vs " + warmIteration + " (warm)");
+            System.out.println("Max belief diff: " + maxDiff);
+            lbp.setWarmStartMessages(null);
+            Assert.assertTrue("Warm start doesn't reduce iterations: " + coldIteration + " vs " + warmIteration,
+                              warmIteration < coldIteration);
+            // Both runs stop when messages change less than the tolerance
+            Assert.assertTrue("Beliefs differ: " + maxDiff, maxDiff < 1.0e-4);
+        }
+        lbp.setUseCompiledGraph(false);
+    }
+    
+    @Test
+    public void testEvidence() throws Exception {
+        FactorGraph fg = TestUtilities.createFeedbackLoopFG();
+        Variable a = TestUtilities.getVariable(fg, "A");
+        Set<Factor> factors = new HashSet<Factor>(fg.getFactors());
+        Set<Variable> variables = new HashSet<Variable>(fg.getVariables());
+        List<Factor> aFactors = new ArrayList<Factor>(a.getFactors());
+        lbp.setFactorGraph(fg);
+        for (int state = 0; state < a.getStates(); state++) {
+            Map<Variable, Integer> observation = new HashMap<Variable, Integer>();
+            observation.put(a, state);
+            lbp.setObservation(observation);
+            lbp.setUseCompiledGraph(false);
+            lbp.runInference();
+            Map<Variable, double[]> varToBelief = new HashMap<Variable, double[]>();
+            for (Variable var : fg.getVariables())
+                varToBelief.put(var, Arrays.copyOf(var.getBelief(), var.getStates()));
+            lbp.setUseCompiledGraph(true);
+            lbp.runInference();
+            // Observations should not change the FactorGraph
+            Assert.assertEquals(factors, new HashSet<Factor>(fg.getFactors()));
+            Assert.assertEquals(variables, new HashSet<Variable>(fg.getVariables()));
+            Assert.assertEquals(aFactors, new ArrayList<Factor>(a.getFactors()));
+            double maxDiff = calculateMaxDiff(fg, varToBelief);
+            System.out.println("A = " + state + ", max belief diff: " + maxDiff);
+            System.out.println("Belief of A: " + Arrays.toString(a.getBelief()));
+            Assert.assertTrue("Beliefs differ from the object path: " + maxDiff, maxDiff < 1.0e-8);
+        }
+        lbp.setUseCompiledGraph(false);
+        lbp.clearObservation();
+    }
+    
+    @Test
+    public void testConcurrentInference() throws Exception {
+        FactorGraph fg = TestUtilities.createFeedbackLoopFG();
+        final Variable a = TestUtilities.getVariable(fg, "A");
+        lbp.setFactorGraph(fg);
+        lbp.setUseCompiledGraph(true);
+        // Results from the synchronized method
+        List<Map<Variable, double[]>> expected = new ArrayList<Map<Variable, double[]>>();
+        for (int state = 0; state < a.getStates(); state++) {
+            Map<Variable, Integer> observation = new HashMap<Variable, Integer>();
+            observation.put(a, state);
+            lbp.setObservation(observation);
+            lbp.runInference();
+            Map<Variable, double[]> varToBelief = new HashMap<Variable, double[]>();
+            for (Variable var : fg.getVariables())
+                varToBelief.put(var, Arrays.copyOf(var.getBelief(), var.getStates()));
+            expected.add(varToBelief);
+        }
+        lbp.setUseCompiledGraph(false);
+        lbp.clearObservation();
+        // Run all observations many times in parallel on the same FactorGraph
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<Future<InferenceState>> futures = new ArrayList<Future<InferenceState>>();
+        for (int i = 0; i < 30; i++) {
+            final int state = i % a.getStates();
+            futures.add(executor.submit(() -> {
+                InferenceState inferenceState = lbp.createInferenceState();
+                Observation<Integer> observation = new Observation<Integer>();
+                observation.addAssignment(a, state);
+                inferenceState.setObservation(observation);
+                lbp.runInference(inferenceState);
+                return inferenceState;
+            }));
+        }
+        double maxDiff = 0.0d;
+        for (int i = 0; i < futures.size(); i++) {
+            InferenceState inferenceState = futures.get(i).get();
+            Map<Variable, double[]> varToBelief = expected.get(i % a.getStates());
+            for (Variable var : varToBelief.keySet()) {
+                double[] belief = inferenceState.getBelief(var);
+                for (int j = 0; j < belief.length; j++)
+                    maxDiff = Math.max(maxDiff, Math.abs(belief[j] - varToBelief.get(var)[j]));
+            }
+        }
+        executor.shutdown();
+        System.out.println("Max belief diff between concurrent and sequential runs: " + maxDiff);
+        Assert.assertTrue("Concurrent beliefs differ: " + maxDiff, maxDiff < 1.0e-10);
+    }
+    
+    @Test
+    public void testBatchInference() throws Exception {
+        FactorGraph fg = TestUtilities.createFeedbackLoopFG();
+        Variable a = TestUtilities.getVariable(fg, "A");
+        lbp.setFactorGraph(fg);
+        lbp.setUseCompiledGraph(true);
+        lbp.setSchedule(MessageSchedule.ALL_OUTGOING);
+        List<Observation<Integer>> observations = new ArrayList<Observation<Integer>>();
+        for (int i = 0; i < 10; i++) {
+            Observation<Integer> observation = new Observation<Integer>();
+            observation.setName("Sample" + i);
+            observation.addAssignment(a, i % a.getStates());
+            observations.add(observation);
+        }
+        lbp.setBatchSize(4);
+        List<InferenceState> states = lbp.runInference(observations);
+        double maxDiff = 0.0d;
+        for (int i = 0; i < observations.size(); i++) {
+            InferenceState expected = lbp.createInferenceState();
+            expected.setObservation(observations.get(i));
+            lbp.runInference(expected);
+            InferenceState actual = states.get(i);
+            for (Variable var : fg.getVariables()) {
+                double[] belief = actual.getBelief(var);
+                double[] expectedBelief = expected.getBelief(var);
+                for (int j = 0; j < belief.length; j++)
+                    maxDiff = Math.max(maxDiff, Math.abs(belief[j] - expectedBelief[j]));
+            }
+            System.out.println(observations.get(i).getName() + ": " + actual.getIteration() + " iterations (" + 
+                               expected.getIteration() + " in a single run)");
+        }
+        System.out.println("Max belief diff between batch and single runs: " + maxDiff);
+        Assert.assertTrue("Batch beliefs differ: " + maxDiff, maxDiff < 1.0e-10);
+        lbp.setSchedule(MessageSchedule.SEQUENTIAL);
+        lbp.setUseCompiledGraph(false);
+    }
+    
+    @Test
+    public void testTreeInference() throws Exception {
+        FactorGraph fg = TestUtilities.createSimpleFG();
+        System.out.println("FG is a tree: " + fg.isTree());
+        Variable mRNATab = TestUtilities.getVariable(fg, "mRNA.tab");
+        lbp.setFactorGraph(fg);
+        for (InferenceType type : InferenceType.values()) {
+            lbp.setInferenceType(type);
+            for (int state = 0; state < mRNATab.getStates(); state++) {
+                Map<Variable, Integer> observation = new HashMap<Variable, Integer>();
+                observation.put(mRNATab, state);
+                lbp.setObservation(observation);
+                // The tree schedule is not used without the compiled graph
+                lbp.setUseCompiledGraph(false);
+                lbp.runInference();
+                int iteration = lbp.getIteration();
+                Assert.assertTrue("Object mode is not used", iteration > 1);
+                Map<Variable, double[]> varToBelief = new HashMap<Variable, double[]>();
+                for (Variable var : fg.getVariables())
+                    varToBelief.put(var, Arrays.copyOf(var.getBelief(), var.getStates()));
+                lbp.setUseCompiledGraph(true);
+                lbp.runInference();
+                double diff = calculateMaxDiff(fg, varToBelief);
+                System.out.println(type + ", mRNA.tab = " + state + ", iterations: " + iteration + 
+                                   ", max belief diff: " + diff);
+                Assert.assertEquals(1, lbp.getIteration());
+                Assert.assertTrue("Tree beliefs are different from object mode: " + diff, diff < 1.0e-10);
+            }
+        }
+        lbp.setUseCompiledGraph(false);
+        lbp.setInferenceType(InferenceType.SUM_PRODUCT);
+        lbp.clearObservation();
+    }
+    
+    @Test
+    public void testJunctionTreeInference() throws Exception {
+        FactorGraph fg = TestUtilities.createFeedbackLoopFG();
+        System.out.println("FG is a tree: " + fg.isTree());
+        Variable a = TestUtilities.getVariable(fg, "A");
+        JunctionTreeInference jt = new JunctionTreeInference();
+        jt.setFactorGraph(fg);
+        System.out.println("Largest clique size: " + jt.getLargestCliqueSize());
+        lbp.setFactorGraph(fg);
+        lbp.setTolerance(1.0e-10);
+        for (int state = 0; state < a.getStates(); state++) {
+            Map<Variable, Integer> observation = new HashMap<Variable, Integer>();
+            observation.put(a, state);
+            lbp.setObservation(observation);
+            lbp.runInference();
+            Map<Variable, double[]> varToBelief = new HashMap<Variable, double[]>();
+            for (Variable var : fg.getVariables())
+                varToBelief.put(var, Arrays.copyOf(var.getBelief(), var.getStates()));
+            double lbpLogZ = lbp.calculateLogZ();
+            jt.setObservation(observation);
+            jt.runInference();
+            System.out.println("A = " + state + ", max belief diff to LBP: " + calculateMaxDiff(fg, varToBelief) + 
+                               ", logZ: " + jt.calculateLogZ() + " (LBP: " + lbpLogZ + ")");
+            for (Variable var : fg.getVariables())
+                System.out.println(var.getName() + ": " + Arrays.toString(var.getBelief()));
+            // Junction tree results should be exact
+            Map<Variable, double[]> exactBeliefs = new HashMap<Variable, double[]>();
+            double exactLogZ = enumerateBeliefs(fg, observation, exactBeliefs);
+            double maxDiff = calculateMaxDiff(fg, exactBeliefs);
+            System.out.println("Max belief diff to enumeration: " + maxDiff + ", logZ: " + exactLogZ);
+            Assert.assertTrue("Beliefs are not exact: " + maxDiff, maxDiff < 1.0e-10);
+            Assert.assertEquals(exactLogZ, jt.calculateLogZ(), 1.0e-10);
+        }
+        lbp.setTolerance(1.0e-6);
+        lbp.clearObservation();
+        // A budget that is too small should be refused
+        jt.setMaxCliqueSize(2);
+        System.out.println("Tractable with max clique size 2: " + jt.isTractable());
+        Assert.assertTrue(!jt.isTractable());
+        Assert.assertEquals(-1, jt.getLargestCliqueSize());
+    }
+    
+    /**
+     * Calculate marginals by enumerating all assignments of a small FactorGraph.
+     * @param fg
+     * @param observation
+     * @param varToBelief marginals are added to this map
+     * @return the log partition function with the observation
+     */
+    private double enumerateBeliefs(FactorGraph fg,
+                                    Map<Variable, Integer> observation,
+                                    Map<Variable, double[]> varToBelief) {
+        List<Variable> variables = new ArrayList<Variable>(fg.getVariables());
+        for (Variable var : variables)
+            varToBelief.put(var, new double[var.getStates()]);
+        Map<Variable, Integer> assignment = new HashMap<Variable, Integer>();
+        for (Variable var : variables)
+            assignment.put(var, 0);
+        double z = 0.0d;
+        while (true) {
+            boolean isConsistent = true;
+            for (Variable var : observation.keySet()) {
+                if (!observation.get(var).equals(assignment.get(var))) {
+                    isConsistent = false;
+                    break;
+                }
+            }
+            if (isConsistent) {
+                double value = 1.0d;
+                for (Factor factor : fg.getFactors())
+                    value *= factor.getValue(assignment);
+                z += value;
+                for (Variable var : variables)
+                    varToBelief.get(var)[assignment.get(var)] += value;
+            }
+            // Move to the next assignment
+            int i = 0;
+            for (; i < variables.size(); i++) {
+                Variable var = variables.get(i);
+                int state = assignment.get(var) + 1;
+                if (state < var.getStates()) {
+                    assignment.put(var, state);
+                    break;
+                }
+                assignment.put(var, 0);
+            }
+            if (i == variables.size())
+                break;
+        }
+        for (double[] belief : varToBelief.values()) {
+            for (int i = 0; i < belief.length; i++)
+                belief[i] /= z;
+        }
+        return Math.log(z);
+    }
+    
+    @Test
+    public void testAdaptiveDamping() throws Exception {
+        // A frustrated triangle: neighbors prefer different states
+        List<Variable> variables = new ArrayList<Variable>();
+        for (int i = 0; i < 3; i++) {
+            Variable var = new Variable(2);
+            var.setName("V" + i);
+            variables.add(var);
+        }
+        FactorGraph fg = new FactorGraph();
+        for (int i = 0; i < variables.size(); i++) {
+            for (int j = i + 1; j < variables.size(); j++) {
+                Factor factor = new Factor();
+                factor.setVariables(Arrays.asList(variables.get(i), variables.get(j)));
+                factor.setValues(new double[]{0.01d, 1.0d, 1.0d, 0.01d});
+                fg.addFactor(factor);
+            }
+        }
+        Factor factor = new Factor();
+        factor.setVariables(Arrays.asList(variables.get(0)));
+        factor.setValues(new double[]{0.6d, 0.4d});
+        fg.addFactor(factor);
+        fg.validatVariables();
+        JunctionTreeInference jt = new JunctionTreeInference();
+        jt.setFactorGraph(fg);
+        jt.runInference();
+        Map<Variable, double[]> varToBelief = new HashMap<Variable, double[]>();
+        for (Variable var : fg.getVariables())
+            varToBelief.put(var, Arrays.copyOf(var.getBelief(), var.getStates()));
+        lbp.setFactorGraph(fg);
+        for (boolean compiled : new boolean[]{false, true}) {
+            lbp.setUseCompiledGraph(compiled);
+            // Messages oscillate without adaptive damping
+            lbp.setAdaptiveDamping(false);
+            boolean converged = true;
+            try {
+                lbp.runInference();
+            }
+            catch(InferenceCannotConvergeException e) {
+                converged = false;
+                System.out.println("Compiled: " + compiled + ", adaptive damping: false: cannot converge.");
+            }
+            Assert.assertTrue("Converged without adaptive damping", !converged);
+            // An InferenceCannotConvergeException fails the test
+            lbp.setAdaptiveDamping(true);
+            lbp.runInference();
+            double maxDiff = calculateMaxDiff(fg, varToBelief);
+            System.out.println("Compiled: " + compiled + ", adaptive damping: true" + 
+                               ", iterations: " + lbp.getIteration() + 
+                               ", max belief diff to exact: " + maxDiff);
+            Assert.assertTrue(lbp.getMaxDiff() <= lbp.getTolerance());
+            // Loopy BP is only approximate on the triangle (about 0.097 from the exact beliefs)
+            Assert.assertTrue("Beliefs too far from exact: " + maxDiff, maxDiff < 0.15d);
+        }
+        lbp.setUseCompiledGraph(false);
+        lbp.setAdaptiveDamping(true);
+    }
+    
+    @Test
+    public void testInferenceMetrics() throws Exception {
+        FactorGraph fg = TestUtilities.createFeedbackLoopFG();
+        fg.setName("FeedbackLoop");
+        Variable a = TestUtilities.getVariable(fg, "A");
+        List<Observation<Integer>> observations = new ArrayList<Observation<Integer>>();
+        for (int state = 0; state < a.getStates(); state++) {
+            Observation<Integer> observation = new Observation<Integer>();
+            observation.setName("Sample" + state);
+            Map<Variable, Integer> varToState = new HashMap<Variable, Integer>();
+            varToState.put(a, state);
+            observation.setVariableToAssignment(varToState);
+            observations.add(observation);
+        }
+        StringWriter csv = new StringWriter();
+        StringWriter json = new StringWriter();
+        InferenceMetricsAggregator aggregator = new InferenceMetricsAggregator();
+        aggregator.register("org.reactome.factorgraph:type=InferenceMetrics");
+        lbp.addInferenceListener(new InferenceMetricsWriter(csv, InferenceMetricsWriter.Format.CSV));
+        lbp.addInferenceListener(new InferenceMetricsWriter(json, InferenceMetricsWriter.Format.JSON_LINES));
+        lbp.addInferenceListener(aggregator);
+        lbp.setFactorGraph(fg);
+        for (boolean compiled : new boolean[]{false, true}) {
+            lbp.setUseCompiledGraph(compiled);
+            for (Observation<Integer> observation : observations) {
+                lbp.setObservation(observation);
+                lbp.runInference();
+                lbp.calculateLogZ();
+            }
+        }
+        // logZ calculations should not be counted as runs
+        Assert.assertEquals(2 * observations.size(), aggregator.getRuns());
+        Assert.assertTrue("LOGZ is not reported",
+                          aggregator.getSampleSummary("Sample0").getPhaseTime(InferenceMetrics.Phase.LOGZ) > 0L);
+        lbp.setUseCompiledGraph(false);
+        lbp.clearObservation();
+        InferenceState state = lbp.createInferenceState();
+        state.setObservation(observations.get(0));
+        lbp.runInference(state);
+        lbp.runInference(observations);
+        JunctionTreeInference jt = new JunctionTreeInference();
+        jt.addInferenceListener(aggregator);
+        jt.setFactorGraph(fg);
+        jt.setObservation(observations.get(1));
+        jt.runInference();
+        for (InferenceListener listener : lbp.getInferenceListeners())
+            lbp.removeInferenceListener(listener);
+        System.out.println("CSV:\n" + csv);
+        System.out.println("JSON lines:\n" + json);
+        System.out.println("Total: " + aggregator.getTotalSummary());
+        for (String pathway : aggregator.getPathwayNames())
+            System.out.println(pathway + ": " + aggregator.describePathway(pathway));
+        for (String sample : aggregator.getSampleNames())
+            System.out.println(sample + ": " + aggregator.describeSample(sample));
+    }
+    
+    private double calculateMaxDiff(FactorGraph fg, Map<Variable, double[]> varToBelief) {
+        double maxDiff = 0.0d;
+        for (Variable var : fg.getVariables()) {
+            double[] belief = varToBelief.get(var);
+            for (int i = 0; i < belief.length; i++)
+                maxDiff = Math.max(maxDiff, Math.abs(belief[i] - var.getBelief()[i]));
+        }
+        return maxDiff;
+    }
+
     private void performLBP(FactorGraph fg, Map<Variable, Integer> observation) throws InferenceCannotConvergeException {
         lbp.setObservation(observation);
         
@@ -662,4 +1171,197 @@ public class LBPTester {
         }
     }
     
+    /**
+     * Compare EM learning with the E-step running in the calling thread and in the common
+     * ForkJoinPool. Learned values should be the same except for rounding errors.
+     */
+    @Test
+    public void testParallelEM() throws Exception {
+        SyntheticFactorGraphGenerator generator = new SyntheticFactorGraphGenerator(1234L);
+        List<EMFactor> emFactors = new ArrayList<EMFactor>();
+        FactorGraph fg = createEMFactorGraph(generator, emFactors);
+        List<double[]> initialValues = new ArrayList<double[]>();
+        for (EMFactor factor : emFactors)
+            initialValues.add(factor.getValues().clone());
+        List<Observation<Integer>> observations = generator.createObservations(fg, 100, 0.3d);
+        List<double[]> sequentialValues = new ArrayList<double[]>();
+        for (int threads : new int[]{1, 0}) {
+            for (int i = 0; i < emFactors.size(); i++)
+                emFactors.get(i).setValues(initialValues.get(i).clone());
+            ExpectationMaximization em = new ExpectationMaximization();
+            LoopyBeliefPropagation lbp = new LoopyBeliefPropagation();
+            lbp.setUseCompiledGraph(true);
+            // Nodes are not shuffled in ALL_OUTGOING so that runs are reproducible
+            lbp.setSchedule(MessageSchedule.ALL_OUTGOING);
+            em.setInferenser(lbp);
+            em.setEvidences(observations);
+            em.setMaxIteration(10);
+            em.setNumberOfThreads(threads);
+            long time1 = System.currentTimeMillis();
+            double logLikelihood = em.learn(fg, emFactors);
+            long time2 = System.currentTimeMillis();
+            double diff = 0.0d;
+            for (int i = 0; i < emFactors.size(); i++) {
+                double[] values = emFactors.get(i).getValues();
+                if (threads == 1)
+                    sequentialValues.add(values.clone());
+                else {
+                    for (int j = 0; j < values.length; j++)
+                        diff = Math.max(diff, Math.abs(values[j] - sequentialValues.get(i)[j]));
+                }
+            }
+            System.out.println("Threads: " + threads + ", time: " + (time2 - time1) + 
+                               ", loglikelihood: " + logLikelihood + ", max diff from sequential: " + diff);
+            Assert.assertTrue("Parallel EM differs from sequential: " + diff, diff < 1.0e-6);
+        }
+    }
+    
+    /**
+     * Compare the full-batch EM and the online EM by the loglikelihood of all evidences. Learned
+     * parameters are not compared since most variables are hidden.
+     */
+    @Test
+    public void testOnlineEM() throws Exception {
+        SyntheticFactorGraphGenerator generator = new SyntheticFactorGraphGenerator(1234L);
+        List<EMFactor> emFactors = new ArrayList<EMFactor>();
+        FactorGraph fg = createEMFactorGraph(generator, emFactors);
+        List<double[]> initialValues = new ArrayList<double[]>();
+        for (EMFactor factor : emFactors) {
+            // Start from conditional probabilities
+            factor.setCounts(factor.getValues().clone());
+            factor.updateFactorValues();
+            initialValues.add(factor.getValues().clone());
+        }
+        List<Observation<Integer>> observations = generator.createObservations(fg, 500, 0.3d);
+        // To calculate the loglikelihood of all evidences for learned values
+        int[] indices = new int[observations.size()];
+        for (int i = 0; i < indices.length; i++)
+            indices[i] = i;
+        double fullLogLikelihood = 0.0d;
+        for (boolean online : new boolean[]{false, true}) {
+            for (int i = 0; i < emFactors.size(); i++)
+                emFactors.get(i).setValues(initialValues.get(i).clone());
+            ExpectationMaximization em = null;
+            if (online) {
+                OnlineEM onlineEM = new OnlineEM();
+                onlineEM.getRandomGenerator().reSeed(1234L);
+                onlineEM.setBatchSize(50);
+                onlineEM.setMaxIteration(5);
+                em = onlineEM;
+            }
+            else {
+                em = new ExpectationMaximization();
+                em.setMaxIteration(20);
+            }
+            LoopyBeliefPropagation lbp = new LoopyBeliefPropagation();
+            lbp.setUseCompiledGraph(true);
+            lbp.setSchedule(MessageSchedule.ALL_OUTGOING);
+            em.setInferenser(lbp);
+            em.setEvidences(observations);
+            em.setUseWarmStart(true);
+            long time1 = System.currentTimeMillis();
+            em.learn(fg, emFactors);
+            long time2 = System.currentTimeMillis();
+            double logLikelihood = em.expect(fg, new ArrayList<EMFactor>(), indices);
+            System.out.println("Online: " + online + ", time: " + (time2 - time1) + 
+                               ", loglikelihood of all evidences: " + logLikelihood);
+            if (!online) {
+                fullLogLikelihood = logLikelihood;
+                continue;
+            }
+            // Online EM uses a fraction of evidences in each step, and should be within 0.5% of the full-batch EM
+            double tolerance = 0.005d * Math.abs(fullLogLikelihood);
+            Assert.assertTrue("Online EM loglikelihood " + logLikelihood + " is too far from " + fullLogLikelihood,
+                              Math.abs(logLikelihood - fullLogLikelihood) < tolerance);
+        }
+    }
+    
+    /**
+     * Create a FactorGraph having EMFactors converted from a pairwise synthetic graph.
+     */
+    private FactorGraph createEMFactorGraph(SyntheticFactorGraphGenerator generator,
+                                           List<EMFactor> emFactors) {
+        FactorGraph pairwise = generator.createPairwiseGraph(200);
+        Set<Factor> factors = new HashSet<Factor>();
+        // New variables are needed: variables in the generated graph are linked to its own factors
+        Map<Variable, Variable> oldToNew = new HashMap<Variable, Variable>();
+        for (Variable var : pairwise.getVariables()) {
+            Variable newVar = new Variable(var.getStates());
+            newVar.setId(var.getId());
+            newVar.setName(var.getName());
+            oldToNew.put(var, newVar);
+        }
+        for (Factor factor : pairwise.getFactors()) {
+            if (factor.getVariables().size() != 2)
+                continue;
+            EMFactor emFactor = new EMFactor(oldToNew.get(factor.getVariables().get(0)),
+                                             oldToNew.get(factor.getVariables().get(1)),
+                                             factor.getValues().clone());
+            factors.add(emFactor);
+            emFactors.add(emFactor);
+        }
+        FactorGraph fg = new FactorGraph();
+        fg.setFactors(factors);
+        fg.validatVariables();
+        return fg;
+    }
+    
+    /**
+     * Compare EM learning with and without warm-started inferences. Learned values should be the same
+     * except for differences within the LBP tolerance, and fewer LBP iterations are needed with warm start.
+     * The default adaptive damping is used: without damping, LBP sweeping in shuffled orders may reach a
+     * different fixed point or fail to converge on this graph even from the initial messages.
+     */
+    @Test
+    public void testWarmStartEM() throws Exception {
+        SyntheticFactorGraphGenerator generator = new SyntheticFactorGraphGenerator(1234L);
+        List<EMFactor> emFactors = new ArrayList<EMFactor>();
+        FactorGraph fg = createEMFactorGraph(generator, emFactors);
+        List<double[]> initialValues = new ArrayList<double[]>();
+        for (EMFactor factor : emFactors)
+            initialValues.add(factor.getValues().clone());
+        List<Observation<Integer>> observations = generator.createObservations(fg, 100, 0.3d);
+        List<double[]> coldValues = new ArrayList<double[]>();
+        long coldIterations = 0;
+        for (boolean warmStart : new boolean[]{false, true}) {
+            for (int i = 0; i < emFactors.size(); i++)
+                emFactors.get(i).setValues(initialValues.get(i).clone());
+            ExpectationMaximization em = new ExpectationMaximization();
+            LoopyBeliefPropagation lbp = new LoopyBeliefPropagation();
+            lbp.setUseCompiledGraph(true);
+            InferenceMetricsAggregator aggregator = new InferenceMetricsAggregator();
+            lbp.addInferenceListener(aggregator);
+            em.setInferenser(lbp);
+            em.setEvidences(observations);
+            // Run a fixed number of iterations including many where parameters change a little
+            em.setMaxIteration(30);
+            em.setTolerance(0.0d);
+            em.setUseWarmStart(warmStart);
+            long time1 = System.currentTimeMillis();
+            double logLikelihood = em.learn(fg, emFactors);
+            long time2 = System.currentTimeMillis();
+            double diff = 0.0d;
+            for (int i = 0; i < emFactors.size(); i++) {
+                double[] values = emFactors.get(i).getValues();
+                if (!warmStart)
+                    coldValues.add(values.clone());
+                else {
+                    for (int j = 0; j < values.length; j++)
+                        diff = Math.max(diff, Math.abs(values[j] - coldValues.get(i)[j]));
+                }
+            }
+            System.out.println("Warm start: " + warmStart + 
+                               ", time: " + (time2 - time1) + 
+                               ", LBP iterations: " + aggregator.getTotalIterations() +
+                               ", loglikelihood: " + logLikelihood + ", max diff from cold start: " + diff);
+            if (!warmStart)
+                coldIterations = aggregator.getTotalIterations();
+            else {
+                Assert.assertTrue("Learned values are different from cold start: " + diff, diff < 1.0e-4);
+                Assert.assertTrue("LBP iterations are not reduced by warm start", 
+                                  aggregator.getTotalIterations() < 0.9d * coldIterations);
+            }
+        }
+    }
+    
 }
@@ -12,8 +12,11 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
 
 import org.apache.log4j.Logger;
+import org.reactome.factorgraph.InferenceMetrics.Outcome;
+import org.reactome.factorgraph.InferenceMetrics.Phase;
 
 /**
  * This class implements the algorithm of loopy belief propagation.
@@ -22,6 +25,8 @@ import org.apache.log4j.Logger;
  */
 public class LoopyBeliefPropagation extends AbstractInferencer {
     private static final Logger logger = Logger.getLogger(LoopyBeliefPropagation.class);
+    // The number of reversed message changes for an edge to be regarded as oscillating
+    private static final int MIN_REVERSALS = 10;
     // Type of inference: default is sum-product
     private InferenceType inferenceType = InferenceType.SUM_PRODUCT;
     // Flag if logspace should be used
@@ -36,8 +41,28 @@ public class LoopyBeliefPropagation extends AbstractInferencer {
     // Set dumping constant as described in the PGM book: page 408
     // As described at that page, the following is (1.0 - ramda)
     private double dumping = 0.0d; // Default there is no dumping
+    // Increase dumping for oscillating edges when the inference cannot converge
+    private boolean adaptiveDamping = true;
+    private double maxDamping = 0.9d;
     // Enable convergence checking
     private boolean enableConvergenceCheck = true;
+    // Use a CompiledFactorGraph to perform message passing on packed arrays
+    private boolean useCompiledGraph;
+    // Message schedule
+    private MessageSchedule schedule = MessageSchedule.SEQUENTIAL;
+    // Number of threads used by the FLOODING schedule: 0 for the common pool
+    private int numberOfThreads;
+    private ForkJoinPool pool;
+    // Messages used to start inference instead of initialMessage
+    private MessageSnapshot warmStartMessages;
+    private InferenceState inferenceState;
+    // Flag to indicate messages from the last run can be used to create a MessageSnapshot
+    private boolean hasMessages;
+    private boolean lastRunCompiled;
+    // The maximum number of observations run together by runInference(List)
+    private int batchSize = 64;
+    // Use the exact two-pass schedule for graphs without loop
+    private boolean useTreeSchedule = true;
     
     /**
      * Default constructor.
@@ -53,6 +78,132 @@ public class LoopyBeliefPropagation extends AbstractInferencer {
         this.enableConvergenceCheck = enableConvergenceCheck;
     }
 
+    /**
+     * Set true to freeze the FactorGraph into a CompiledFactorGraph and perform message
+     * passing on primitive arrays. This mode avoids creating Edge objects and should be much
+     * faster for large FactorGraphs. Beliefs are assigned to Variable and Factor objects as in
+     * the default mode.
+     * @param useCompiledGraph
+     */
+    public void setUseCompiledGraph(boolean useCompiledGraph) {
+        this.useCompiledGraph = useCompiledGraph;
+    }
+    
+    public boolean getUseCompiledGraph() {
+        return this.useCompiledGraph;
+    }
+
+    /**
+     * Set the message schedule. Any schedule other than SEQUENTIAL is performed on a
+     * CompiledFactorGraph regardless of the value set by setUseCompiledGraph().
+     * @param schedule
+     */
+    public void setSchedule(MessageSchedule schedule) {
+        this.schedule = schedule;
+    }
+    
+    public MessageSchedule getSchedule() {
+        return this.schedule;
+    }
+    
+    /**
+     * Set the number of threads used by the FLOODING schedule. The default value 0
+     * means the common ForkJoinPool is used.
+     * @param numberOfThreads
+     */
+    public void setNumberOfThreads(int numberOfThreads) {
+        if (numberOfThreads < 0)
+            throw new IllegalArgumentException("The number of threads should not be negative: " + numberOfThreads);
+        if (numberOfThreads != this.numberOfThreads && pool != null) {
+            pool.shutdown();
+            pool = null;
+        }
+        this.numberOfThreads = numberOfThreads;
+    }
+    
+    public int getNumberOfThreads() {
+        return this.numberOfThreads;
+    }
+    
+    /**
+     * Set a MessageSnapshot so that messages kept in the snapshot are used to start
+     * inference instead of the initial message. This should be used for the same FactorGraph
+     * from which the snapshot was created. Set null to start from the initial message.
+     * @param snapshot
+     */
+    public void setWarmStartMessages(MessageSnapshot snapshot) {
+        this.warmStartMessages = snapshot;
+    }
+    
+    public MessageSnapshot getWarmStartMessages() {
+        return this.warmStartMessages;
+    }
+    
+    /**
+     * Create a MessageSnapshot for messages generated by the last call to runInference(),
+     * which can be used by setWarmStartMessages() for other runs.
+     * @return null if the last call to runInference() failed or no inference has been performed.
+     */
+    public MessageSnapshot createMessageSnapshot() {
+        if (!hasMessages)
+            return null;
+        if (lastRunCompiled)
+            return inferenceState.createMessageSnapshot();
+        MessageSnapshot snapshot = new MessageSnapshot(logSpace);
+        for (Factor factor : factorGraph.getFactors()) {
+            if (factor.getInEdges() == null)
+                continue;
+            // Edges are added following the order of variables. See initializeMessages(Factor).
+            for (int i = 0; i < factor.getInEdges().size(); i++) {
+                snapshot.setMessages(factor,
+                                     i,
+                                     factor.getInEdges().get(i).getMessage(),
+                                     0,
+                                     factor.getOutEdges().get(i).getMessage(),
+                                     0);
+            }
+        }
+        return snapshot;
+    }
+    
+    /**
+     * Set the maximum number of observations that are run together in a batch by
+     * runInference(List). A larger batch needs more memory for messages.
+     * @param batchSize
+     */
+    public void setBatchSize(int batchSize) {
+        if (batchSize < 1)
+            throw new IllegalArgumentException("The batch size should be positive: " + batchSize);
+        this.batchSize = batchSize;
+    }
+    
+    public int getBatchSize() {
+        return this.batchSize;
+    }
+    
+    /**
+     * Set true (the default) to pass messages in two passes (from leaves to a root and then back)
+     * if the FactorGraph has no loop and inference is performed on the CompiledFactorGraph (i.e.
+     * setUseCompiledGraph(true), a schedule other than SEQUENTIAL, or runInference(InferenceState)).
+     * Beliefs are exact and no iteration is needed. The schedule is ignored in this case.
+     * @param useTreeSchedule
+     */
+    public void setUseTreeSchedule(boolean useTreeSchedule) {
+        this.useTreeSchedule = useTreeSchedule;
+    }
+    
+    public boolean getUseTreeSchedule() {
+        return this.useTreeSchedule;
+    }
+    
+    private synchronized ForkJoinPool getPool() {
+        if (numberOfThreads == 0)
+            return ForkJoinPool.commonPool();
+        if (pool == null)
+            pool = new ForkJoinPool(numberOfThreads);
+        return pool;
+    }
+
     public boolean isUpdateViaFactors() {
         return updateViaFactors;
     }
@@ -65,6 +216,34 @@ public class LoopyBeliefPropagation extends AbstractInferencer {
         return this.dumping;
     }
     
+    /**
+     * Set whether damping should be increased for edges whose messages oscillate when the inference
+     * cannot converge, instead of throwing an InferenceCannotConvergeException directly. Edges having the
+     * most reversed message changes get the weight of the new message halved until maxDamping is reached.
+     * The exception is thrown only if no damping can be increased. The default is true. Adaptive damping is
+     * not used by the RESIDUAL schedule and runInference(List).
+     * @param adaptiveDamping
+     */
+    public void setAdaptiveDamping(boolean adaptiveDamping) {
+        this.adaptiveDamping = adaptiveDamping;
+    }
+    
+    public boolean isAdaptiveDamping() {
+        return this.adaptiveDamping;
+    }
+    
+    /**
+     * Set the largest damping that can be reached by adaptive damping. The default is 0.9.
+     * @param maxDamping
+     */
+    public void setMaxDamping(double maxDamping) {
+        this.maxDamping = maxDamping;
+    }
+    
+    public double getMaxDamping() {
+        return this.maxDamping;
+    }
+    
     /**
      * Set the message update via the factors. The default is via the variables.
      * Updating via factors may yield a different result because of multiple
@@ -115,10 +294,43 @@ public class LoopyBeliefPropagation extends AbstractInferencer {
      */
     public synchronized void runInference() throws InferenceCannotConvergeException {
         super.runInference(); // Do whatever the super class wants.
+        hasMessages = false;
+        // The tree schedule is applied on the compiled graph only so that the FactorGraph
+        // doesn't need to be compiled for the default object mode
+        lastRunCompiled = useCompiledGraph || schedule != MessageSchedule.SEQUENTIAL;
+        InferenceMetrics metrics = startMetrics(getObservation());
+        Outcome outcome = Outcome.FAILED;
+        try {
+            if (lastRunCompiled)
+                outcome = runCompiledInference(metrics);
+            else
+                outcome = runObjectInference(metrics);
+        }
+        catch(InferenceCannotConvergeException e) {
+            outcome = Outcome.NOT_CONVERGED;
+            throw e;
+        }
+        finally {
+            finishInference(metrics, outcome);
+        }
+    }
+    
+    /**
+     * Perform inference using Variable, Factor and Edge objects in the FactorGraph.
+     */
+    private Outcome runObjectInference(InferenceMetrics metrics) throws InferenceCannotConvergeException {
+        long phaseTime = System.nanoTime();
         truncateContinuousFactors();
+        finishPhase(metrics, Phase.TRUNCATE_CONTINUOUS_FACTORS, phaseTime);
+        phaseTime = System.nanoTime();
         attachObservation();
+        finishPhase(metrics, Phase.ATTACH_OBSERVATION, phaseTime);
+        phaseTime = System.nanoTime();
         // Initialize messages
         initializeMessages(factorGraph);
+        int edges = 0;
+        for (Factor factor : factorGraph.getFactors())
+            edges += factor.getVariables().size();
         // Make a copy to avoid changing the original orders in the
         // passed factor graph object.
         List<Factor> factors = new ArrayList<Factor>(factorGraph.getFactors());
@@ -157,11 +369,28 @@ public class LoopyBeliefPropagation extends AbstractInferencer {
             iteration ++;
             if (debug)
                 logger.info("Iteration: " + iteration + ", maxDiff: " + maxDiff);
+            if (metrics != null) {
+                // Messages along both directions of each edge are updated once
+                metrics.addMessageUpdates(2L * edges);
+                finishIteration(metrics, iteration, maxDiff);
+            }
             maxDiffList.add(maxDiff);
+            if (!validateConverge(maxDiffList) && adaptiveDamping) {
+                int count = increaseDamping(factorGraph);
+                if (count > 0) {
+                    if (debug)
+                        logger.info("Iteration: " + iteration + ", increase damping for " + count + " edges.");
+                    maxDiffList.clear();
+                }
+                // Messages may still converge though not monotonically (e.g. a shuffled order)
+                else if (maxDiff < maxDiffList.get(0) / 2.0d)
+                    maxDiffList.clear();
+            }
             if(!validateConverge(maxDiffList)) {
 //                logger.error("Cannot converg...");
                 // Don't forget remove observation. Otherwise, we will keep a modified FactorGraph.
                 detachObservation();
+                finishPhase(metrics, Phase.MESSAGE_PASSING, phaseTime);
                 throw new InferenceCannotConvergeException("Inference for " + factorGraph + ": cannot converge.");
             }
         }
@@ -170,12 +399,285 @@ public class LoopyBeliefPropagation extends AbstractInferencer {
             logger.info("Inference is done: " + iteration + ", maxDiff: " + maxDiff + ", using " + (time2 - time1) / 1000.0d + " seconds.");
         if (iteration > maxIteration) // No convergence. The client should be warned!
             logger.warn("Inferece for " + factorGraph + ": reach max iterations " + iteration + " with maxDiff " + maxDiff);
+        finishPhase(metrics, Phase.MESSAGE_PASSING, phaseTime);
+        phaseTime = System.nanoTime();
         calculateBeliefs(factorGraph);
+        finishPhase(metrics, Phase.BELIEFS, phaseTime);
         detachObservation();
         addBackContinuosFactors();
+        hasMessages = true;
+        return maxDiff > tolerance ? Outcome.MAX_ITERATION : Outcome.CONVERGED;
     }
     
-    private boolean validateConverge(List<Double> maxDiffList) throws InferenceCannotConvergeException {
+    /**
+     * Perform inference using a CompiledFactorGraph and assign beliefs to Variable and Factor objects.
+     * @throws InferenceCannotConvergeException
+     */
+    private Outcome runCompiledInference(InferenceMetrics metrics) throws InferenceCannotConvergeException {
+        CompiledFactorGraph graph = getCompiledGraph();
+        // Factor values may be changed by parameter learning
+        graph.updateFactorValues();
+        if (inferenceState == null || inferenceState.getCompiledGraph() != graph)
+            inferenceState = new InferenceState(graph);
+        inferenceState.setObservation(getObservation());
+        Outcome outcome = null;
+        try {
+            outcome = runInference(inferenceState, metrics);
+        }
+        finally {
+            iteration = inferenceState.getIteration();
+            maxDiff = inferenceState.getMaxDiff();
+        }
+        long phaseTime = System.nanoTime();
+        inferenceState.exportBeliefs();
+        finishPhase(metrics, Phase.BELIEFS, phaseTime);
+        hasMessages = true;
+        return outcome;
+    }
+    
+    /**
+     * Create a new InferenceState object for the FactorGraph set in this object, which can be
+     * used by runInference(InferenceState).
+     * @return
+     */
+    public InferenceState createInferenceState() {
+        return new InferenceState(getCompiledGraph());
+    }
+    
+    /**
+     * Perform inference using the passed InferenceState object. Different from runInference(), this
+     * method is not synchronized and doesn't change this object and the FactorGraph: the observation
+     * is taken from the passed state, and results are kept in the passed state. Multiple threads can
+     * call this method at the same time with different InferenceState objects for the same FactorGraph.
+     * @param state
+     * @throws InferenceCannotConvergeException
+     */
+    public void runInference(InferenceState state) throws InferenceCannotConvergeException {
+        InferenceMetrics metrics = startMetrics(state.getObservation());
+        Outcome outcome = Outcome.FAILED;
+        try {
+            outcome = runInference(state, metrics);
+        }
+        catch(InferenceCannotConvergeException e) {
+            outcome = Outcome.NOT_CONVERGED;
+            throw e;
+        }
+        finally {
+            finishInference(metrics, outcome);
+        }
+    }
+    
+    private Outcome runInference(InferenceState state,
+                                 InferenceMetrics metrics) throws InferenceCannotConvergeException {
+        CompiledMessagePassing engine = state.getMessagePassing(inferenceType, logSpace);
+        if (schedule == MessageSchedule.FLOODING)
+            engine.setPool(getPool());
+        engine.setTolerance(tolerance);
+        // Observation is applied as evidence: the FactorGraph is not changed
+        long phaseTime = System.nanoTime();
+        engine.setEvidence(state.getObservation());
+        finishPhase(metrics, Phase.ATTACH_OBSERVATION, phaseTime);
+        phaseTime = System.nanoTime();
+        engine.setDamping(dumping, adaptiveDamping);
+        engine.initializeMessages(initialMessage);
+        state.reset();
+        if (useTreeSchedule && state.getCompiledGraph().isTree()) {
+            long time1 = System.currentTimeMillis();
+            engine.passTreeMessages();
+            // Exact: count the two passes as one iteration
+            state.setIteration(1);
+            state.setMaxDiff(0.0d);
+            long time2 = System.currentTimeMillis();
+            if (debug)
+                logger.info("Two-pass inference for tree is done using " + (time2 - time1) / 1000.0d + " seconds.");
+            if (metrics != null) {
+                metrics.addMessageUpdates(engine.getMessageUpdates());
+                finishIteration(metrics, 1, 0.0d);
+            }
+            finishPhase(metrics, Phase.MESSAGE_PASSING, phaseTime);
+            phaseTime = System.nanoTime();
+            state.updateBeliefs();
+            finishPhase(metrics, Phase.BELIEFS, phaseTime);
+            return Outcome.CONVERGED;
+        }
+        if (warmStartMessages != null)
+            engine.restoreMessages(warmStartMessages);
+        if (state.getWarmStartMessages() != null)
+            engine.restoreMessages(state.getWarmStartMessages());
+        double maxDiff = Double.MAX_VALUE;
+        int iteration = 0;
+        long time1 = System.currentTimeMillis();
+        List<Double> maxDiffList = new ArrayList<Double>();
+        while (iteration <= maxIteration && maxDiff > tolerance) {
+            long updates = engine.getMessageUpdates();
+            maxDiff = engine.sweep(schedule, updateViaFactors);
+            iteration ++;
+            state.setIteration(iteration);
+            state.setMaxDiff(maxDiff);
+            if (debug)
+                logger.info("Iteration: " + iteration + ", maxDiff: " + maxDiff);
+            if (metrics != null) {
+                metrics.addMessageUpdates(engine.getMessageUpdates() - updates);
+                finishIteration(metrics, iteration, maxDiff);
+            }
+            maxDiffList.add(maxDiff);
+            if (!validateConverge(maxDiffList) && adaptiveDamping) {
+                int count = engine.increaseDamping(maxDamping, MIN_REVERSALS);
+                if (count > 0) {
+                    if (debug)
+                        logger.info("Iteration: " + iteration + ", increase damping for " + count + " edges.");
+                    maxDiffList.clear();
+                }
+                // Messages may still converge though not monotonically (e.g. a shuffled order)
+                else if (maxDiff < maxDiffList.get(0) / 2.0d)
+                    maxDiffList.clear();
+            }
+            if(!validateConverge(maxDiffList)) {
+                finishPhase(metrics, Phase.MESSAGE_PASSING, phaseTime);
+                throw new InferenceCannotConvergeException("Inference for " + state.getCompiledGraph().getFactorGraph() + ": cannot converge.");
+            }
+        }
+        long time2 = System.currentTimeMillis();
+        if (debug)
+            logger.info("Inference is done: " + iteration + ", maxDiff: " + maxDiff + ", using " + (time2 - time1) / 1000.0d + " seconds.");
+        if (iteration > maxIteration) // No convergence. The client should be warned!
+            logger.warn("Inferece for " + state.getCompiledGraph().getFactorGraph() + ": reach max iterations " + iteration + " with maxDiff " + maxDiff);
+        finishPhase(metrics, Phase.MESSAGE_PASSING, phaseTime);
+        phaseTime = System.nanoTime();
+        state.updateBeliefs();
+        finishPhase(metrics, Phase.BELIEFS, phaseTime);
+        return maxDiff > tolerance ? Outcome.MAX_ITERATION : Outcome.CONVERGED;
+    }
+    
+    /**
+     * Perform inference for a list of observations together on the compiled graph. Observations are
+     * split into batches of the batch size. In a batch, a factor table is walked once for all samples,
+     * and samples are retired individually once they converge. The ALL_OUTGOING order is used regardless
+     * of the schedule set in this object. Like runInference(InferenceState), this method doesn't change this
+     * object and the FactorGraph.
+     * @param observations
+     * @return a list of InferenceState objects in the same order as the passed observations. A sample
+     * that cannot converge or generates NaN has no beliefs (i.e. InferenceState.hasBeliefs() returns false).
+     */
+    public List<InferenceState> runInference(List<? extends Observation<? extends Number>> observations) {
+        CompiledFactorGraph graph = getCompiledGraph();
+        List<InferenceState> rtn = new ArrayList<InferenceState>(observations.size());
+        if (observations.size() == 0)
+            return rtn;
+        BatchMessagePassing batch = new BatchMessagePassing(graph,
+                                                            inferenceType,
+                                                            logSpace,
+                                                            Math.min(batchSize, observations.size()));
+        int capacity = batch.getCapacity();
+        boolean[] retired = new boolean[capacity];
+        int[] iterations = new int[capacity];
+        List<List<Double>> maxDiffLists = new ArrayList<List<Double>>(capacity);
+        for (int i = 0; i < capacity; i++)
+            maxDiffLists.add(new ArrayList<Double>());
+        // Metrics are collected for each sample. The time of a sweep is shared by active samples.
+        InferenceMetrics[] metrics = new InferenceMetrics[capacity];
+        long[] passingTimes = new long[capacity];
+        long edgeUpdates = 2L * graph.getNumberOfEdges();
+        long time1 = System.currentTimeMillis();
+        for (int from = 0; from < observations.size(); from += capacity) {
+            List<? extends Observation<? extends Number>> subList = observations.subList(from, 
+                                                                                          Math.min(from + capacity, observations.size()));
+            batch.initialize(subList, initialMessage, warmStartMessages);
+            for (int b = 0; b < subList.size(); b++) {
+                InferenceState state = new InferenceState(graph);
+                state.setObservation(subList.get(b));
+                state.reset();
+                rtn.add(state);
+                retired[b] = false;
+                iterations[b] = 0;
+                maxDiffLists.get(b).clear();
+                metrics[b] = startMetrics(subList.get(b));
+                passingTimes[b] = 0;
+            }
+            while (batch.getActiveCount() > 0) {
+                long phaseTime = System.nanoTime();
+                batch.sweep();
+                // Shared by active samples
+                long sweepTime = (System.nanoTime() - phaseTime) / batch.getActiveCount();
+                for (int k = 0; k < batch.getActiveCount(); k++) {
+                    int b = batch.getActiveSample(k);
+                    InferenceState state = rtn.get(from + b);
+                    double maxDiff = batch.getMaxDiff(b);
+                    iterations[b] ++;
+                    state.setIteration(iterations[b]);
+                    state.setMaxDiff(maxDiff);
+                    maxDiffLists.get(b).add(maxDiff);
+                    passingTimes[b] += sweepTime;
+                    if (metrics[b] != null) {
+                        metrics[b].addMessageUpdates(edgeUpdates);
+                        finishIteration(metrics[b], iterations[b], maxDiff);
+                    }
+                    Outcome outcome = null;
+                    phaseTime = System.nanoTime();
+                    if (batch.isFailed(b)) {
+                        logger.error("A message contains NaN for sample " + (from + b) + ": probably the log-space should be used for computation.");
+                        outcome = Outcome.FAILED;
+                    }
+                    else if (maxDiff <= tolerance) {
+                        state.updateBeliefs(batch, b);
+                        outcome = Outcome.CONVERGED;
+                    }
+                    else if (iterations[b] > maxIteration) {
+                        logger.warn("Inferece for sample " + (from + b) + ": reach max iterations " + iterations[b] + " with maxDiff " + maxDiff);
+                        state.updateBeliefs(batch, b);
+                        outcome = Outcome.MAX_ITERATION;
+                    }
+                    else if (!validateConverge(maxDiffLists.get(b))) {
+                        logger.warn("Inference for sample " + (from + b) + ": cannot converge.");
+                        outcome = Outcome.NOT_CONVERGED;
+                    }
+                    if (outcome != null) {
+                        retired[b] = true;
+                        // Report the accumulated share of sweeps
+                        reportPhase(metrics[b], Phase.MESSAGE_PASSING, passingTimes[b]);
+                        if (state.hasBeliefs())
+                            finishPhase(metrics[b], Phase.BELIEFS, phaseTime);
+                        finishInference(metrics[b], outcome);
+                    }
+                }
+                batch.retire(retired);
+            }
+            if (debug)
+                logger.info("Batch inference is done for " + (from + subList.size()) + " samples.");
+        }
+        long time2 = System.currentTimeMillis();
+        if (debug)
+            logger.info("Batch inference for " + observations.size() + " samples using " + (time2 - time1) / 1000.0d + " seconds.");
+        return rtn;
+    }
+    
+    /**
+     * Increase damping for edges whose messages oscillate. See CompiledMessagePassing.increaseDamping()
+     * for the policy.
+     * @return the number of edges whose damping has been increased
+     */
+    private int increaseDamping(FactorGraph fg) {
+        int count = 0;
+        for (Factor factor : fg.getFactors()) {
+            for (Edge edge : factor.getInEdges())
+                count += increaseDamping(edge);
+            for (Edge edge : factor.getOutEdges())
+                count += increaseDamping(edge);
+        }
+        return count;
+    }
+    
+    private int increaseDamping(Edge edge) {
+        int count = 0;
+        if (edge.getReversals() >= MIN_REVERSALS && edge.getDamping() < maxDamping) {
+            edge.setDamping(Math.min(maxDamping, 1.0d - (1.0d - edge.getDamping()) / 2.0d));
+            count ++;
+        }
+        edge.resetReversals();
+        return count;
+    }
+    
+    private boolean validateConverge(List<Double> maxDiffList) {
         if (!enableConvergenceCheck || maxDiffList.size() < 50)
             return true; // We will need at least 50 iterations
         int count = 0;
@@ -212,16 +714,26 @@ public class LoopyBeliefPropagation extends AbstractInferencer {
             var.resetEdges();
         // Generate in and out edges based on factors and variables
         for (Factor factor : fg.getFactors()) {
+            // Values may be changed in place (e.g. by EM)
+            if (logSpace)
+                factor.updateLogValues();
             initializeMessages(factor);
         }
     }
 
     private void initializeMessages(Factor factor) {
-        for (Variable var : factor.getVariables()) {
+        for (int i = 0; i < factor.getVariables().size(); i++) {
+            Variable var = factor.getVariables().get(i);
             Edge factorToVarEdge = new Edge(factor, var);
             factorToVarEdge.initializeMessage(initialMessage, logSpace);
+            factorToVarEdge.setDamping(dumping);
             Edge varToFactorEdge = new Edge(var, factor);
             varToFactorEdge.initializeMessage(initialMessage, logSpace);
+            varToFactorEdge.setDamping(dumping);
+            if (warmStartMessages != null) {
+                warmStartMessages.copyMessage(factor, i, false, factorToVarEdge.getMessage(), 0, logSpace);
+                warmStartMessages.copyMessage(factor, i, true, varToFactorEdge.getMessage(), 0, logSpace);
+            }
             factor.addOutEdge(factorToVarEdge);
             factor.addInEdge(varToFactorEdge);
             var.addOutEdge(varToFactorEdge);
@@ -372,15 +884,8 @@ public class LoopyBeliefPropagation extends AbstractInferencer {
         double[] message = from.sendMessage(to, 
                                             inferenceType,
                                             logSpace);
-//        System.out.println("Message before dumping: " + Arrays.toString(message));
         // Update messages
         double[] oldMessage = edge.getMessage();
-        // Dumping is not supported for the time being. It doesn't help converge for some reason.
-//        addDumping(message,
-//                   oldMessage, 
-//                   logSpace,
-//                   to);
-//        System.out.println("Message after dumping: " + Arrays.toString(message));
         double diff = 0.0d;
         for (int i = 0; i < message.length; i++) {
             if (Double.isNaN(message[i]))
@@ -401,26 +906,10 @@ public class LoopyBeliefPropagation extends AbstractInferencer {
                 maxDiff = diff;
             }
         }
-        edge.setMessage(message);
+        // The difference is checked for the undamped message. Damping is applied in the edge.
+        edge.updateMessage(message, adaptiveDamping, logSpace);
         //        logger.info("sendMessage: from " + from + " to " + to + " with message " + 
         //                message + " (old: " + oldMessage + "). Max: " + maxDiff);
     }
-    
-    private void addDumping(double[] newMessage,
-                            double[] oldMessage,
-                            boolean logSpace,
-                            FGNode node) {
-        if (logSpace) {
-           node.convertLogToProb(newMessage);
-           node.convertLogToProb(oldMessage);
-        }
-        for (int i = 0; i < newMessage.length; i++) {
-            newMessage[i] = (1.0d - dumping) * newMessage[i] + dumping * oldMessage[i];
-        }
-        if (logSpace) {
-            node.convertProbToLog(newMessage);
-            node.convertProbToLog(oldMessage);
-        }
-    }
 
 }
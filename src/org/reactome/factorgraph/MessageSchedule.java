@@ -0,0 +1,25 @@
+/*
+ * Created on Oct 18, 2026
+ *
+ */
+package org.reactome.factorgraph;
+
+/**
+ * The message schedule used by LoopyBeliefPropagation.
+ */
+public enum MessageSchedule {
+    
+    // Messages are sent edge by edge for variables (or factors) in a random order. This is
+    // the default schedule.
+    SEQUENTIAL,
+    // Each node computes all of its outgoing messages in one pass, whose cost is linear to the
+    // node degree. An iteration updates all factors first and then all variables.
+    ALL_OUTGOING,
+    // Synchronous updates: all messages in an iteration are calculated from messages in the
+    // previous iteration so that nodes can be updated in parallel by multiple threads.
+    FLOODING,
+    // Residual belief propagation: the message from a factor to a variable that would change
+    // the most is always sent first. One iteration sends at most as many messages as the edges.
+    RESIDUAL
+    
+}
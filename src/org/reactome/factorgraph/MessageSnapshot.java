@@ -0,0 +1,101 @@
+/*
+ * Created on Oct 18, 2026
+ *
+ */
+package org.reactome.factorgraph;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A copy of messages along edges after a LoopyBeliefPropagation run, which can be used to
+ * warm-start another run on the same FactorGraph (e.g. for samples having observations similar
+ * to the base observation). Messages are keyed by Factor objects and indexed by the positions of
+ * variables in factors. Factors added during inference for observations or continuous variables are
+ * not kept, and edges not in a snapshot get the initial message when a snapshot is used.
+ */
+public class MessageSnapshot {
+    // Messages in this snapshot are in the log space or not
+    private boolean logSpace;
+    // Messages from variables to factors
+    private Map<Factor, double[][]> factorToInMessages;
+    // Messages from factors to variables
+    private Map<Factor, double[][]> factorToOutMessages;
+
+    MessageSnapshot(boolean logSpace) {
+        this.logSpace = logSpace;
+        factorToInMessages = new HashMap<Factor, double[][]>();
+        factorToOutMessages = new HashMap<Factor, double[][]>();
+    }
+
+    public boolean isLogSpace() {
+        return logSpace;
+    }
+
+    /**
+     * Get the total number of factors whose messages are kept in this snapshot.
+     * @return
+     */
+    public int getNumberOfFactors() {
+        return factorToInMessages.size();
+    }
+
+    /**
+     * Keep copies of messages between a factor and its variable at the passed index.
+     */
+    void setMessages(Factor factor,
+                     int varIndex,
+                     double[] varToFactor,
+                     int varToFactorOffset,
+                     double[] factorToVar,
+                     int factorToVarOffset) {
+        int states = factor.getVariables().get(varIndex).getStates();
+        double[][] inMessages = getMessages(factorToInMessages, factor);
+        inMessages[varIndex] = new double[states];
+        System.arraycopy(varToFactor, varToFactorOffset, inMessages[varIndex], 0, states);
+        double[][] outMessages = getMessages(factorToOutMessages, factor);
+        outMessages[varIndex] = new double[states];
+        System.arraycopy(factorToVar, factorToVarOffset, outMessages[varIndex], 0, states);
+    }
+
+    private double[][] getMessages(Map<Factor, double[][]> map, Factor factor) {
+        double[][] messages = map.get(factor);
+        if (messages == null) {
+            messages = new double[factor.getVariables().size()][];
+            map.put(factor, messages);
+        }
+        return messages;
+    }
+
+    /**
+     * Copy a kept message into the passed array.
+     * @param factor
+     * @param varIndex
+     * @param isVarToFactor true for the message from the variable to the factor
+     * @param dest
+     * @param offset
+     * @param toLogSpace the space used by the dest array
+     * @return false if no message is kept for the edge
+     */
+    boolean copyMessage(Factor factor,
+                        int varIndex,
+                        boolean isVarToFactor,
+                        double[] dest,
+                        int offset,
+                        boolean toLogSpace) {
+        double[][] messages = isVarToFactor ? factorToInMessages.get(factor) : factorToOutMessages.get(factor);
+        if (messages == null || varIndex >= messages.length || messages[varIndex] == null)
+            return false;
+        double[] message = messages[varIndex];
+        for (int i = 0; i < message.length; i++) {
+            if (logSpace == toLogSpace)
+                dest[offset + i] = message[i];
+            else if (toLogSpace)
+                dest[offset + i] = Math.log(message[i]);
+            else
+                dest[offset + i] = Math.exp(message[i]);
+        }
+        return true;
+    }
+
+}
@@ -0,0 +1,156 @@
+/*
+ * Created on Oct 18, 2026
+ *
+ */
+package org.reactome.factorgraph;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.math3.random.RandomDataGenerator;
+import org.apache.log4j.Logger;
+
+/**
+ * This class implements the stepwise (online) EM reported by Liang and Klein:
+ * http://www.aclweb.org/anthology/N09-1069 (also Cappe and Moulines, 2009). Evidences are split
+ * into training and held-out evidences. Training evidences are visited in mini-batches in a random
+ * order, and factor values are updated after each mini-batch: expected counts from the mini-batch are
+ * interpolated into running sufficient statistics with a decaying step size, (k + 1)^(-stepSizeDecay),
+ * where k is the number of updates done. The loglikelihood of held-out evidences is checked after each
+ * pass over training evidences, and learning stops when it decreases or its relative change is
+ * less than the tolerance. The max iteration is used as the maximum number of passes.
+ */
+public class OnlineEM extends ExpectationMaximization {
+    private final static Logger logger = Logger.getLogger(OnlineEM.class);
+    private int batchSize = 50;
+    // Should be in (0.5, 1.0] for convergence. 1.0 gives equal weights to all mini-batches.
+    private double stepSizeDecay = 0.7d;
+    private double heldOutRatio = 0.1d;
+    private RandomDataGenerator randomizer;
+
+    /**
+     * Default constructor.
+     */
+    public OnlineEM() {
+        randomizer = new RandomDataGenerator();
+    }
+
+    public void setRandomGenerator(RandomDataGenerator randomizer) {
+        this.randomizer = randomizer;
+    }
+
+    public RandomDataGenerator getRandomGenerator() {
+        return this.randomizer;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public void setBatchSize(int batchSize) {
+        if (batchSize <= 0)
+            throw new IllegalArgumentException("The batch size should be positive: " + batchSize);
+        this.batchSize = batchSize;
+    }
+
+    public double getStepSizeDecay() {
+        return stepSizeDecay;
+    }
+
+    public void setStepSizeDecay(double stepSizeDecay) {
+        if (stepSizeDecay <= 0.5d || stepSizeDecay > 1.0d)
+            throw new IllegalArgumentException("The step size decay should be in (0.5, 1.0]: " + stepSizeDecay);
+        this.stepSizeDecay = stepSizeDecay;
+    }
+
+    public double getHeldOutRatio() {
+        return heldOutRatio;
+    }
+
+    /**
+     * Set the ratio of evidences held out for checking convergence.
+     * @param heldOutRatio
+     */
+    public void setHeldOutRatio(double heldOutRatio) {
+        if (heldOutRatio <= 0.0d || heldOutRatio >= 1.0d)
+            throw new IllegalArgumentException("The held-out ratio should be in (0.0, 1.0): " + heldOutRatio);
+        this.heldOutRatio = heldOutRatio;
+    }
+
+    /**
+     * Learn parameters for the passed list of factors. Values with the highest held-out loglikelihood
+     * are kept in the factors after learning.
+     * @return the loglikelihood of held-out evidences for the learned values
+     */
+    @Override
+    public double learn(FactorGraph factorGraph, List<EMFactor> factors) throws InferenceCannotConvergeException {
+        prepareLearning(factorGraph, factors);
+        int size = getEvidences().size();
+        int heldOutSize = (int) Math.round(size * heldOutRatio);
+        if (heldOutSize == 0 || heldOutSize == size)
+            throw new IllegalStateException("Too few evidences to be split into training and held-out evidences: " + size);
+        int[] permutation = randomizer.nextPermutation(size, size);
+        int[] heldOut = Arrays.copyOfRange(permutation, 0, heldOutSize);
+        int[] training = Arrays.copyOfRange(permutation, heldOutSize, size);
+        List<EMFactor> noFactors = Collections.emptyList();
+        double bestLogLikelihood = Double.NEGATIVE_INFINITY;
+        List<double[]> bestValues = null;
+        // Running expected counts per evidence for each factor
+        double[][] statistics = new double[factors.size()][];
+        int update = 0;
+        for (int pass = 0; pass < getMaxIteration(); pass++) {
+            // A new order for each pass
+            int[] order = randomizer.nextPermutation(training.length, training.length);
+            for (int start = 0; start < training.length; start += batchSize) {
+                int end = Math.min(start + batchSize, training.length);
+                int[] batch = new int[end - start];
+                for (int i = start; i < end; i++)
+                    batch[i - start] = training[order[i]];
+                for (EMFactor factor : factors) {
+                    factor.initCounts();
+                    // Laplace's correction is added in the M-step only
+                    Arrays.fill(factor.getCounts(), 0.0d);
+                }
+                expect(factorGraph, factors, batch);
+                // 1.0 for the first update
+                double stepSize = Math.pow(update + 1, -stepSizeDecay);
+                update ++;
+                for (int i = 0; i < factors.size(); i++) {
+                    double[] counts = factors.get(i).getCounts();
+                    if (statistics[i] == null)
+                        statistics[i] = new double[counts.length];
+                    for (int j = 0; j < counts.length; j++) {
+                        statistics[i][j] += stepSize * (counts[j] / batch.length - statistics[i][j]);
+                        // Scale to all training evidences so that counts are comparable to those in full-batch EM
+                        counts[j] = 1.0d + training.length * statistics[i][j];
+                    }
+                }
+                maximize(factorGraph, factors);
+            }
+            double logLikelihood = expect(factorGraph, noFactors, heldOut);
+            if (getDebug())
+                logger.info("Held-out loglikelihood for pass " + (pass + 1) + ": " + logLikelihood);
+            if (logLikelihood <= bestLogLikelihood)
+                break;
+            double diff = Math.abs((logLikelihood - bestLogLikelihood) / bestLogLikelihood);
+            bestLogLikelihood = logLikelihood;
+            bestValues = copyValues(factors);
+            // diff is NaN for the first pass
+            if (diff < getTolerance())
+                break;
+        }
+        for (int i = 0; bestValues != null && i < factors.size(); i++)
+            factors.get(i).setValues(bestValues.get(i));
+        return bestLogLikelihood;
+    }
+
+    private List<double[]> copyValues(List<EMFactor> factors) {
+        List<double[]> values = new ArrayList<double[]>(factors.size());
+        for (EMFactor factor : factors)
+            values.add(factor.getValues().clone());
+        return values;
+    }
+
+}
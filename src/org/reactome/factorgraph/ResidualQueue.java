@@ -0,0 +1,96 @@
+/*
+ * Created on Oct 18, 2026
+ *
+ */
+package org.reactome.factorgraph;
+
+/**
+ * An indexed binary max-heap of edges keyed by their residuals, which is used by the RESIDUAL
+ * message schedule. All edges stay in the heap all the time so that the residual of any edge can
+ * be updated in log(n) without any allocation. An edge whose message has been sent simply gets
+ * a zero residual.
+ */
+class ResidualQueue {
+    // Edges organized as a heap
+    private int[] heap;
+    // Position of an edge in the heap
+    private int[] position;
+    private double[] residuals;
+
+    public ResidualQueue(int size) {
+        heap = new int[size];
+        position = new int[size];
+        residuals = new double[size];
+        for (int i = 0; i < size; i++) {
+            heap[i] = i;
+            position[i] = i;
+        }
+    }
+
+    public boolean isEmpty() {
+        return heap.length == 0;
+    }
+
+    /**
+     * Get the edge having the largest residual.
+     * @return
+     */
+    public int peek() {
+        return heap[0];
+    }
+
+    public double getMaxResidual() {
+        if (heap.length == 0)
+            return 0.0d;
+        return residuals[heap[0]];
+    }
+
+    public double getResidual(int edge) {
+        return residuals[edge];
+    }
+
+    public void update(int edge, double residual) {
+        double old = residuals[edge];
+        residuals[edge] = residual;
+        if (residual > old)
+            siftUp(position[edge]);
+        else if (residual < old)
+            siftDown(position[edge]);
+    }
+
+    private void siftUp(int i) {
+        int edge = heap[i];
+        double residual = residuals[edge];
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (residuals[heap[parent]] >= residual)
+                break;
+            move(heap[parent], i);
+            i = parent;
+        }
+        move(edge, i);
+    }
+
+    private void siftDown(int i) {
+        int edge = heap[i];
+        double residual = residuals[edge];
+        int half = heap.length >>> 1;
+        while (i < half) {
+            int child = 2 * i + 1;
+            int right = child + 1;
+            if (right < heap.length && residuals[heap[right]] > residuals[heap[child]])
+                child = right;
+            if (residual >= residuals[heap[child]])
+                break;
+            move(heap[child], i);
+            i = child;
+        }
+        move(edge, i);
+    }
+
+    private void move(int edge, int i) {
+        heap[i] = edge;
+        position[edge] = i;
+    }
+
+}
@@ -0,0 +1,262 @@
+/*
+ * Created on Oct 18, 2026
+ *
+ */
+package org.reactome.factorgraph;
+
+import java.util.Arrays;
+
+/**
+ * Partition of variables in a CompiledFactorGraph into tree-structured blocks used by blocked Gibbs sampling.
+ * A block is grown from a seed variable by breadth-first search: a factor is added as an internal factor of
+ * the block if it has exactly one variable in the block (its parent) and at least one variable not in any
+ * block (its children), none of these children shares any other factor with the block or with each other, and
+ * the number of joint states of the children is small.
+ * Therefore, factors linking two or more variables in a block are internal factors, which form a tree. Other
+ * variables in an internal factor belong to other blocks, and are fixed when the block is sampled. For example,
+ * gene, mRNA and protein variables linked by central dogma factors usually fall into one block. A block
+ * can be sampled jointly given all other variables by forward-filtering/backward-sampling.
+ * Blocks and their internal factors are ordered breadth-first from the seed so that a factor always comes
+ * after the factor of its parent. All arrays are package accessible for performance reason.
+ */
+class SamplingBlocks {
+    // The largest number of joint states of children allowed for an internal factor so that a large
+    // factor doesn't make a block more expensive than single-site updates
+    private static final int MAX_COMBINATIONS = 64;
+    // Variables of block b are blockVariables[blockStart[b]] to blockVariables[blockStart[b + 1] - 1] with
+    // the seed variable first
+    int[] blockStart;
+    int[] blockVariables;
+    // Internal factors of block b are from blockFactorStart[b] to blockFactorStart[b + 1] - 1
+    int[] blockFactorStart;
+    // For each internal factor
+    int[] factor;
+    int[] parentVariable;
+    int[] parentStride;
+    // The number of joint states of children
+    int[] childCombinations;
+    // Children of internal factor k are childVariables[childStart[k]] to childVariables[childStart[k + 1] - 1]
+    int[] childStart;
+    int[] childVariables;
+    int[] childStrides;
+    // Variables in other blocks for internal factor k, which are fixed during sampling
+    int[] outsideStart;
+    int[] outsideVariables;
+    int[] outsideStrides;
+    // Lookups for factors of a variable that are not internal factors, in the same format as
+    // CompiledFactorGraph.conditionalIndex, indexed by variable
+    int[] localStart;
+    int[] localIndex;
+    // The largest value in childCombinations
+    int maxCombinations;
+
+    public SamplingBlocks(CompiledFactorGraph graph) {
+        build(graph);
+    }
+
+    private void build(CompiledFactorGraph graph) {
+        int variables = graph.getNumberOfVariables();
+        int factors = graph.getNumberOfFactors();
+        int edges = graph.getNumberOfEdges();
+        int[] blockOf = new int[variables];
+        Arrays.fill(blockOf, -1);
+        // The block having a factor as an internal factor, -1 for not internal
+        int[] factorBlock = new int[factors];
+        Arrays.fill(factorBlock, -1);
+        // Marks candidate children of the factor being checked
+        boolean[] isCandidate = new boolean[variables];
+        int maxArity = 1;
+        for (int f = 0; f < factors; f++)
+            maxArity = Math.max(maxArity, graph.factorEdgeStart[f + 1] - graph.factorEdgeStart[f]);
+        int[] candidates = new int[maxArity];
+        blockStart = new int[variables + 1];
+        blockVariables = new int[variables];
+        blockFactorStart = new int[variables + 1];
+        factor = new int[factors];
+        parentVariable = new int[factors];
+        parentStride = new int[factors];
+        childCombinations = new int[factors];
+        childStart = new int[factors + 1];
+        childVariables = new int[edges];
+        childStrides = new int[edges];
+        outsideStart = new int[factors + 1];
+        outsideVariables = new int[edges];
+        outsideStrides = new int[edges];
+        int blocks = 0;
+        int varCount = 0; // Also used as the queue for breadth-first search
+        int factorCount = 0;
+        int childCount = 0;
+        int outsideCount = 0;
+        for (int seed = 0; seed < variables; seed++) {
+            if (blockOf[seed] >= 0)
+                continue;
+            int b = blocks ++;
+            blockOf[seed] = b;
+            int head = varCount;
+            blockVariables[varCount ++] = seed;
+            while (head < varCount) {
+                int u = blockVariables[head ++];
+                for (int i = graph.varEdgeStart[u]; i < graph.varEdgeStart[u + 1]; i++) {
+                    int e = graph.varEdges[i];
+                    int f = graph.edgeFactor[e];
+                    if (factorBlock[f] >= 0)
+                        continue;
+                    int size = collectCandidates(graph, f, e, b, blockOf, candidates);
+                    if (size <= 0)
+                        continue;
+                    int combinations = 1;
+                    for (int j = 0; j < size && combinations <= MAX_COMBINATIONS; j++)
+                        combinations *= graph.varStates[candidates[j]];
+                    if (combinations > MAX_COMBINATIONS)
+                        continue;
+                    for (int j = 0; j < size; j++)
+                        isCandidate[candidates[j]] = true;
+                    boolean isTree = true;
+                    for (int j = 0; j < size && isTree; j++)
+                        isTree = !isLinked(graph, candidates[j], f, b, blockOf, isCandidate);
+                    for (int j = 0; j < size; j++)
+                        isCandidate[candidates[j]] = false;
+                    if (!isTree)
+                        continue;
+                    // Add f as an internal factor
+                    factorBlock[f] = b;
+                    factor[factorCount] = f;
+                    parentVariable[factorCount] = u;
+                    parentStride[factorCount] = graph.edgeStride[e];
+                    for (int j = graph.factorEdgeStart[f]; j < graph.factorEdgeStart[f + 1]; j++) {
+                        if (j == e)
+                            continue;
+                        int v = graph.edgeVariable[j];
+                        if (blockOf[v] < 0) {
+                            blockOf[v] = b;
+                            blockVariables[varCount ++] = v;
+                            childVariables[childCount] = v;
+                            childStrides[childCount] = graph.edgeStride[j];
+                            childCount ++;
+                        }
+                        else {
+                            outsideVariables[outsideCount] = v;
+                            outsideStrides[outsideCount] = graph.edgeStride[j];
+                            outsideCount ++;
+                        }
+                    }
+                    childCombinations[factorCount] = combinations;
+                    if (combinations > maxCombinations)
+                        maxCombinations = combinations;
+                    factorCount ++;
+                    childStart[factorCount] = childCount;
+                    outsideStart[factorCount] = outsideCount;
+                }
+            }
+            blockStart[blocks] = varCount;
+            blockFactorStart[blocks] = factorCount;
+        }
+        blockStart = Arrays.copyOf(blockStart, blocks + 1);
+        blockFactorStart = Arrays.copyOf(blockFactorStart, blocks + 1);
+        buildLocalIndex(graph, blockOf, factorBlock);
+    }
+
+    /**
+     * Collect variables in factor f that are not in any block as candidate children.
+     * @param e the edge from the parent variable to f
+     * @return the number of candidates, or -1 if another variable of f is in block b already
+     */
+    private int collectCandidates(CompiledFactorGraph graph,
+                                  int f,
+                                  int e,
+                                  int b,
+                                  int[] blockOf,
+                                  int[] candidates) {
+        int size = 0;
+        for (int j = graph.factorEdgeStart[f]; j < graph.factorEdgeStart[f + 1]; j++) {
+            if (j == e)
+                continue;
+            int v = graph.edgeVariable[j];
+            if (blockOf[v] == b)
+                return -1; // A loop in the block
+            if (blockOf[v] < 0)
+                candidates[size ++] = v;
+        }
+        return size;
+    }
+
+    /**
+     * Check if the passed variable shares a factor other than f with a variable in block b or
+     * with another candidate.
+     */
+    private boolean isLinked(CompiledFactorGraph graph,
+                             int v,
+                             int f,
+                             int b,
+                             int[] blockOf,
+                             boolean[] isCandidate) {
+        for (int i = graph.varEdgeStart[v]; i < graph.varEdgeStart[v + 1]; i++) {
+            int g = graph.edgeFactor[graph.varEdges[i]];
+            if (g == f)
+                continue;
+            for (int j = graph.factorEdgeStart[g]; j < graph.factorEdgeStart[g + 1]; j++) {
+                int w = graph.edgeVariable[j];
+                if (w != v && (blockOf[w] == b || isCandidate[w]))
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Build lookups for factors that are not internal factors of the block of each variable. Note that an
+     * internal factor of a block is not internal to variables in other blocks (i.e. outside variables).
+     */
+    private void buildLocalIndex(CompiledFactorGraph graph,
+                                 int[] blockOf,
+                                 int[] factorBlock) {
+        int variables = graph.getNumberOfVariables();
+        int[] start = new int[variables + 1];
+        for (int v = 0; v < variables; v++) {
+            int size = 0;
+            for (int i = graph.varEdgeStart[v]; i < graph.varEdgeStart[v + 1]; i++) {
+                int f = graph.edgeFactor[graph.varEdges[i]];
+                if (factorBlock[f] != blockOf[v])
+                    size += 3 + 2 * (graph.factorEdgeStart[f + 1] - graph.factorEdgeStart[f] - 1);
+            }
+            start[v + 1] = start[v] + size;
+        }
+        int[] index = new int[start[variables]];
+        int pos = 0;
+        for (int v = 0; v < variables; v++) {
+            for (int i = graph.varEdgeStart[v]; i < graph.varEdgeStart[v + 1]; i++) {
+                int e = graph.varEdges[i];
+                int f = graph.edgeFactor[e];
+                if (factorBlock[f] == blockOf[v])
+                    continue;
+                index[pos++] = graph.tableOffset[f];
+                index[pos++] = graph.edgeStride[e];
+                index[pos++] = graph.factorEdgeStart[f + 1] - graph.factorEdgeStart[f] - 1;
+                for (int j = graph.factorEdgeStart[f]; j < graph.factorEdgeStart[f + 1]; j++) {
+                    if (j == e)
+                        continue;
+                    index[pos++] = graph.edgeVariable[j];
+                    index[pos++] = graph.edgeStride[j];
+                }
+            }
+        }
+        localStart = start;
+        localIndex = index;
+    }
+
+    public int getNumberOfBlocks() {
+        return blockStart.length - 1;
+    }
+
+    /**
+     * The number of variables in the largest block.
+     * @return
+     */
+    public int getMaxBlockSize() {
+        int max = 0;
+        for (int b = 0; b < getNumberOfBlocks(); b++)
+            max = Math.max(max, blockStart[b + 1] - blockStart[b]);
+        return max;
+    }
+
+}
@@ -0,0 +1,22 @@
+/*
+ * Created on Oct 18, 2026
+ *
+ */
+package org.reactome.factorgraph;
+
+/**
+ * The order used by GibbsSampling to update variables in a sweep.
+ */
+public enum SamplingSchedule {
+    
+    // Variables are sampled one by one in the order of the compiled graph. This is the
+    // default schedule.
+    SEQUENTIAL,
+    // Variables are colored so that no two variables sharing a factor have the same color.
+    // Variables of one color are sampled in parallel, one color after another.
+    CHROMATIC,
+    // Variables are partitioned into tree-structured blocks, and variables in a block are
+    // sampled jointly by forward-filtering/backward-sampling.
+    BLOCKED
+    
+}
@@ -119,20 +119,15 @@ public class SharedEMFactors extends EMFactor {
         // validate all parents should have the same index and therefore stride
         EMFactor factor0 = sharedFactors.get(0);
         Variable parent = factor0.getParent();
-        int parentIndex = factor0.getVariables().indexOf(parent);
-        int parentStride = factor0.strides.get(parentIndex);
+        int[] parentStateIndex = factor0.getStateIndex(parent);
         // Get all counts for calculate conditional probabilities
         double[] parentCounts = new double[parent.getStates()];
-        for (int i = 0; i < counts.length; i++) {
-            int targetState = (int) Math.floor(i / (double) parentStride) % parent.getStates();
-            parentCounts[targetState] += counts[i];
-        }
+        for (int i = 0; i < counts.length; i++)
+            parentCounts[parentStateIndex[i]] += counts[i];
         if (values == null)
             values = new double[factor0.getValues().length];
-        for (int i = 0; i < counts.length; i++) {
-            int parentState = (int) Math.floor(i / (double) parentStride) % parent.getStates();
-            values[i] = counts[i] / parentCounts[parentState];
-        }
+        for (int i = 0; i < counts.length; i++)
+            values[i] = counts[i] / parentCounts[parentStateIndex[i]];
         
         // Now copy the learned values to each EMFactor
         // Note: all EM factors contained by this object will share the same values object. This
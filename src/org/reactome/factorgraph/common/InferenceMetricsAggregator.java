@@ -0,0 +1,299 @@
+/*
+ * Created on Oct 18, 2026
+ *
+ */
+package org.reactome.factorgraph.common;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.reactome.factorgraph.InferenceListener;
+import org.reactome.factorgraph.InferenceMetrics;
+import org.reactome.factorgraph.InferenceMetrics.Outcome;
+import org.reactome.factorgraph.InferenceMetrics.Phase;
+
+/**
+ * An InferenceListener aggregating InferenceMetrics for all runs, for each pathway (i.e. the name of a
+ * FactorGraph) and for each sample (i.e. the name of an Observation). An object of this class can be
+ * registered as a JMX MBean so that a running job can be monitored by e.g. jconsole.
+ */
+public class InferenceMetricsAggregator implements InferenceListener, InferenceMetricsAggregatorMBean {
+    // Used as the key for inference without observation
+    public static final String PRIOR = "prior";
+    private final MetricsSummary total;
+    private ConcurrentHashMap<String, MetricsSummary> pathwayToSummary;
+    private ConcurrentHashMap<String, MetricsSummary> sampleToSummary;
+
+    public InferenceMetricsAggregator() {
+        total = new MetricsSummary();
+        pathwayToSummary = new ConcurrentHashMap<String, MetricsSummary>();
+        sampleToSummary = new ConcurrentHashMap<String, MetricsSummary>();
+    }
+
+    /**
+     * Register this object to the platform MBeanServer using the passed name
+     * (e.g. "org.reactome.factorgraph:type=InferenceMetrics").
+     * @param name
+     * @throws Exception
+     */
+    public void register(String name) throws Exception {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName objectName = new ObjectName(name);
+        if (server.isRegistered(objectName))
+            server.unregisterMBean(objectName);
+        server.registerMBean(this, objectName);
+    }
+
+    @Override
+    public void iterationFinished(InferenceMetrics metrics,
+                                  int iteration,
+                                  double maxDiff) {
+    }
+
+    @Override
+    public void phaseFinished(InferenceMetrics metrics,
+                              Phase phase,
+                              long nanos) {
+        // Phases are aggregated when inference is finished
+    }
+
+    @Override
+    public void logZCalculated(InferenceMetrics metrics,
+                               long nanos) {
+        total.addPhaseTime(Phase.LOGZ, nanos);
+        getSummary(pathwayToSummary, getPathwayKey(metrics)).addPhaseTime(Phase.LOGZ, nanos);
+        getSummary(sampleToSummary, getSampleKey(metrics)).addPhaseTime(Phase.LOGZ, nanos);
+    }
+
+    @Override
+    public void inferenceFinished(InferenceMetrics metrics) {
+        total.add(metrics);
+        getSummary(pathwayToSummary, getPathwayKey(metrics)).add(metrics);
+        getSummary(sampleToSummary, getSampleKey(metrics)).add(metrics);
+    }
+
+    private String getPathwayKey(InferenceMetrics metrics) {
+        String name = metrics.getFactorGraphName();
+        return name == null ? "" : name;
+    }
+
+    private String getSampleKey(InferenceMetrics metrics) {
+        String name = metrics.getObservationName();
+        return name == null ? PRIOR : name;
+    }
+
+    private MetricsSummary getSummary(ConcurrentHashMap<String, MetricsSummary> keyToSummary,
+                                      String key) {
+        MetricsSummary summary = keyToSummary.get(key);
+        if (summary == null) {
+            summary = new MetricsSummary();
+            MetricsSummary old = keyToSummary.putIfAbsent(key, summary);
+            if (old != null)
+                summary = old;
+        }
+        return summary;
+    }
+
+    public MetricsSummary getTotalSummary() {
+        return total;
+    }
+
+    /**
+     * @param pathway
+     * @return null if nothing has been aggregated for the passed pathway.
+     */
+    public MetricsSummary getPathwaySummary(String pathway) {
+        return pathwayToSummary.get(pathway);
+    }
+
+    /**
+     * @param sample
+     * @return null if nothing has been aggregated for the passed sample.
+     */
+    public MetricsSummary getSampleSummary(String sample) {
+        return sampleToSummary.get(sample);
+    }
+
+    @Override
+    public long getRuns() {
+        return total.getRuns();
+    }
+
+    @Override
+    public long getConverged() {
+        return total.getCount(Outcome.CONVERGED);
+    }
+
+    @Override
+    public long getMaxIterationReached() {
+        return total.getCount(Outcome.MAX_ITERATION);
+    }
+
+    @Override
+    public long getNotConverged() {
+        return total.getCount(Outcome.NOT_CONVERGED);
+    }
+
+    @Override
+    public long getFailed() {
+        return total.getCount(Outcome.FAILED);
+    }
+
+    @Override
+    public long getTotalIterations() {
+        return total.getIterations();
+    }
+
+    @Override
+    public long getMessageUpdates() {
+        return total.getMessageUpdates();
+    }
+
+    @Override
+    public double getMessagePassingSeconds() {
+        return total.getPhaseTime(Phase.MESSAGE_PASSING) / 1.0e9d;
+    }
+
+    @Override
+    public double getTotalSeconds() {
+        return total.getTotalTime() / 1.0e9d;
+    }
+
+    @Override
+    public long getAllocatedBytes() {
+        return total.getAllocatedBytes();
+    }
+
+    @Override
+    public String[] getPathwayNames() {
+        return getSortedKeys(pathwayToSummary);
+    }
+
+    @Override
+    public String[] getSampleNames() {
+        return getSortedKeys(sampleToSummary);
+    }
+
+    private String[] getSortedKeys(Map<String, MetricsSummary> keyToSummary) {
+        List<String> keys = new ArrayList<String>(keyToSummary.keySet());
+        Collections.sort(keys);
+        return keys.toArray(new String[keys.size()]);
+    }
+
+    @Override
+    public String describePathway(String pathway) {
+        MetricsSummary summary = pathwayToSummary.get(pathway);
+        return summary == null ? null : summary.toString();
+    }
+
+    @Override
+    public String describeSample(String sample) {
+        MetricsSummary summary = sampleToSummary.get(sample);
+        return summary == null ? null : summary.toString();
+    }
+
+    @Override
+    public void reset() {
+        total.clear();
+        pathwayToSummary.clear();
+        sampleToSummary.clear();
+    }
+
+    /**
+     * Metrics summed over a set of inference runs.
+     */
+    public static class MetricsSummary {
+        private long runs;
+        private long[] outcomeCounts = new long[Outcome.values().length];
+        private long iterations;
+        private long messageUpdates;
+        private long[] phaseTimes = new long[Phase.values().length];
+        private long allocatedBytes;
+
+        synchronized void add(InferenceMetrics metrics) {
+            runs ++;
+            if (metrics.getOutcome() != null)
+                outcomeCounts[metrics.getOutcome().ordinal()] ++;
+            iterations += metrics.getIteration();
+            messageUpdates += metrics.getMessageUpdates();
+            for (Phase phase : Phase.values())
+                phaseTimes[phase.ordinal()] += metrics.getPhaseTime(phase);
+            if (metrics.getAllocatedBytes() > 0)
+                allocatedBytes += metrics.getAllocatedBytes();
+        }
+
+        synchronized void clear() {
+            runs = 0;
+            Arrays.fill(outcomeCounts, 0);
+            iterations = 0;
+            messageUpdates = 0;
+            Arrays.fill(phaseTimes, 0);
+            allocatedBytes = 0;
+        }
+
+        synchronized void addPhaseTime(Phase phase, long nanos) {
+            phaseTimes[phase.ordinal()] += nanos;
+        }
+
+        public synchronized long getRuns() {
+            return runs;
+        }
+
+        public synchronized long getCount(Outcome outcome) {
+            return outcomeCounts[outcome.ordinal()];
+        }
+
+        public synchronized long getIterations() {
+            return iterations;
+        }
+
+        public synchronized long getMessageUpdates() {
+            return messageUpdates;
+        }
+
+        /**
+         * @param phase
+         * @return time in nanoseconds
+         */
+        public synchronized long getPhaseTime(Phase phase) {
+            return phaseTimes[phase.ordinal()];
+        }
+
+        /**
+         * @return time of all phases in nanoseconds
+         */
+        public synchronized long getTotalTime() {
+            long time = 0;
+            for (long phaseTime : phaseTimes)
+                time += phaseTime;
+            return time;
+        }
+
+        public synchronized long getAllocatedBytes() {
+            return allocatedBytes;
+        }
+
+        @Override
+        public synchronized String toString() {
+            StringBuilder builder = new StringBuilder();
+            builder.append("runs: ").append(runs);
+            for (Outcome outcome : Outcome.values())
+                builder.append(", ").append(outcome).append(": ").append(outcomeCounts[outcome.ordinal()]);
+            builder.append(", iterations: ").append(iterations);
+            builder.append(", message updates: ").append(messageUpdates);
+            for (Phase phase : Phase.values())
+                builder.append(", ").append(phase).append(": ").append(phaseTimes[phase.ordinal()] / 1.0e9d).append(" seconds");
+            builder.append(", allocated bytes: ").append(allocatedBytes);
+            return builder.toString();
+        }
+    }
+
+}
@@ -0,0 +1,52 @@
+/*
+ * Created on Oct 18, 2026
+ *
+ */
+package org.reactome.factorgraph.common;
+
+/**
+ * The JMX interface of InferenceMetricsAggregator. Attributes are for all runs aggregated so far.
+ */
+public interface InferenceMetricsAggregatorMBean {
+
+    public long getRuns();
+
+    public long getConverged();
+
+    public long getMaxIterationReached();
+
+    public long getNotConverged();
+
+    public long getFailed();
+
+    public long getTotalIterations();
+
+    public long getMessageUpdates();
+
+    public double getMessagePassingSeconds();
+
+    public double getTotalSeconds();
+
+    public long getAllocatedBytes();
+
+    public String[] getPathwayNames();
+
+    public String[] getSampleNames();
+
+    /**
+     * Describe metrics aggregated for the passed pathway (i.e. the name of a FactorGraph).
+     * @param pathway
+     * @return
+     */
+    public String describePathway(String pathway);
+
+    /**
+     * Describe metrics aggregated for the passed sample (i.e. the name of an Observation).
+     * @param sample
+     * @return
+     */
+    public String describeSample(String sample);
+
+    public void reset();
+
+}
@@ -0,0 +1,197 @@
+/*
+ * Created on Oct 18, 2026
+ *
+ */
+package org.reactome.factorgraph.common;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+
+import org.apache.log4j.Logger;
+import org.reactome.factorgraph.InferenceListener;
+import org.reactome.factorgraph.InferenceMetrics;
+import org.reactome.factorgraph.InferenceMetrics.Phase;
+
+/**
+ * An InferenceListener writing one record for each inference run into a CSV or JSON-lines file so that
+ * metrics can be analyzed without parsing log files. Records are flushed immediately so that a file is
+ * usable for a long-running job. Since the LOGZ phase is reported separately from runs via
+ * logZCalculated(), its time is not written. Use InferenceMetricsAggregator to get it.
+ */
+public class InferenceMetricsWriter implements InferenceListener {
+    private static final Logger logger = Logger.getLogger(InferenceMetricsWriter.class);
+    // Phases written for each run
+    private static final Phase[] PHASES = new Phase[] {
+        Phase.TRUNCATE_CONTINUOUS_FACTORS,
+        Phase.ATTACH_OBSERVATION,
+        Phase.MESSAGE_PASSING,
+        Phase.BELIEFS
+    };
+
+    public static enum Format {
+        CSV,
+        JSON_LINES
+    }
+
+    private PrintWriter writer;
+    private Format format;
+
+    public InferenceMetricsWriter(String fileName,
+                                  Format format) throws IOException {
+        this(new BufferedWriter(new FileWriter(fileName)), format);
+    }
+
+    public InferenceMetricsWriter(Writer writer,
+                                  Format format) {
+        this.writer = new PrintWriter(writer);
+        this.format = format;
+        if (format == Format.CSV)
+            writeHeader();
+    }
+
+    public Format getFormat() {
+        return format;
+    }
+
+    private void writeHeader() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("inferencer,factorGraph,observation,startTime,outcome,iterations,maxDiff,messageUpdates");
+        for (Phase phase : PHASES)
+            builder.append(",").append(getColumnName(phase));
+        builder.append(",totalSeconds,allocatedBytes");
+        writer.println(builder.toString());
+        writer.flush();
+    }
+
+    /**
+     * Convert a phase name into a column name: e.g. MESSAGE_PASSING to messagePassingSeconds.
+     */
+    private String getColumnName(Phase phase) {
+        StringBuilder builder = new StringBuilder();
+        String[] tokens = phase.name().toLowerCase().split("_");
+        builder.append(tokens[0]);
+        for (int i = 1; i < tokens.length; i++)
+            builder.append(Character.toUpperCase(tokens[i].charAt(0))).append(tokens[i].substring(1));
+        builder.append("Seconds");
+        return builder.toString();
+    }
+
+    @Override
+    public void iterationFinished(InferenceMetrics metrics,
+                                  int iteration,
+                                  double maxDiff) {
+    }
+
+    @Override
+    public void phaseFinished(InferenceMetrics metrics,
+                              Phase phase,
+                              long nanos) {
+    }
+
+    @Override
+    public void logZCalculated(InferenceMetrics metrics,
+                               long nanos) {
+    }
+
+    @Override
+    public void inferenceFinished(InferenceMetrics metrics) {
+        String line = null;
+        if (format == Format.CSV)
+            line = toCSV(metrics);
+        else
+            line = toJSON(metrics);
+        synchronized (this) {
+            writer.println(line);
+            writer.flush();
+            if (writer.checkError())
+                logger.error("Error in writing inference metrics for " + metrics.getFactorGraphName());
+        }
+    }
+
+    private String toCSV(InferenceMetrics metrics) {
+        StringBuilder builder = new StringBuilder();
+        builder.append(quote(metrics.getInferencer()));
+        builder.append(",").append(quote(metrics.getFactorGraphName()));
+        builder.append(",").append(quote(metrics.getObservationName()));
+        builder.append(",").append(metrics.getStartTime());
+        builder.append(",").append(metrics.getOutcome());
+        builder.append(",").append(metrics.getIteration());
+        builder.append(",").append(metrics.getMaxDiff());
+        builder.append(",").append(metrics.getMessageUpdates());
+        for (Phase phase : PHASES)
+            builder.append(",").append(metrics.getPhaseTime(phase) / 1.0e9d);
+        builder.append(",").append(metrics.getTotalTime() / 1.0e9d);
+        builder.append(",").append(metrics.getAllocatedBytes());
+        return builder.toString();
+    }
+
+    private String quote(String text) {
+        if (text == null)
+            return "";
+        if (text.indexOf(',') < 0 && text.indexOf('"') < 0 && text.indexOf('\n') < 0)
+            return text;
+        return "\"" + text.replace("\"", "\"\"") + "\"";
+    }
+
+    private String toJSON(InferenceMetrics metrics) {
+        StringBuilder builder = new StringBuilder();
+        builder.append("{\"inferencer\":").append(toJSON(metrics.getInferencer()));
+        builder.append(",\"factorGraph\":").append(toJSON(metrics.getFactorGraphName()));
+        builder.append(",\"observation\":").append(toJSON(metrics.getObservationName()));
+        builder.append(",\"startTime\":").append(metrics.getStartTime());
+        builder.append(",\"outcome\":\"").append(metrics.getOutcome()).append("\"");
+        builder.append(",\"iterations\":").append(metrics.getIteration());
+        builder.append(",\"maxDiffs\":[");
+        double[] maxDiffs = metrics.getMaxDiffs();
+        for (int i = 0; i < maxDiffs.length; i++) {
+            if (i > 0)
+                builder.append(",");
+            builder.append(toJSON(maxDiffs[i]));
+        }
+        builder.append("]");
+        builder.append(",\"messageUpdates\":").append(metrics.getMessageUpdates());
+        for (Phase phase : PHASES)
+            builder.append(",\"").append(getColumnName(phase)).append("\":").append(metrics.getPhaseTime(phase) / 1.0e9d);
+        builder.append(",\"totalSeconds\":").append(metrics.getTotalTime() / 1.0e9d);
+        builder.append(",\"allocatedBytes\":").append(metrics.getAllocatedBytes());
+        builder.append("}");
+        return builder.toString();
+    }
+
+    private String toJSON(double value) {
+        // Not supported by JSON
+        if (Double.isNaN(value) || Double.isInfinite(value))
+            return "null";
+        return value + "";
+    }
+
+    private String toJSON(String text) {
+        if (text == null)
+            return "null";
+        StringBuilder builder = new StringBuilder();
+        builder.append("\"");
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '"' || c == '\\')
+                builder.append('\\').append(c);
+            else if (c == '\n')
+                builder.append("\\n");
+            else if (c == '\t')
+                builder.append("\\t");
+            else if (c < 0x20)
+                builder.append(String.format("\\u%04x", (int) c));
+            else
+                builder.append(c);
+        }
+        builder.append("\"");
+        return builder.toString();
+    }
+
+    public synchronized void close() {
+        writer.close();
+    }
+
+}
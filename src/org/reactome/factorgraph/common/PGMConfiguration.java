@@ -7,6 +7,7 @@ package org.reactome.factorgraph.common;
 import java.io.FileInputStream;
 import java.io.InputStream;
 import java.lang.reflect.Method;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -15,9 +16,14 @@ import org.apache.log4j.Logger;
 import org.jdom.Document;
 import org.jdom.Element;
 import org.jdom.input.SAXBuilder;
+import org.reactome.factorgraph.AbstractInferencer;
 import org.reactome.factorgraph.ExpectationMaximization;
 import org.reactome.factorgraph.GibbsSampling;
+import org.reactome.factorgraph.InferenceListener;
+import org.reactome.factorgraph.JunctionTreeInference;
 import org.reactome.factorgraph.LoopyBeliefPropagation;
+import org.reactome.factorgraph.MessageSchedule;
+import org.reactome.factorgraph.SamplingSchedule;
 
 /**
  * This class is used to parse an XML based configuration file. This class should be used as 
@@ -49,6 +55,10 @@ public class PGMConfiguration {
     private LoopyBeliefPropagation lbp;
     // Gibbs Sampling
     private GibbsSampling gbs;
+    // Exact inference for graphs having small cliques
+    private JunctionTreeInference junctionTree;
+    // Listeners shared by all inferencers returned from this object
+    private List<InferenceListener> inferenceListeners;
     
     protected PGMConfiguration() {
     }
@@ -120,6 +130,9 @@ public class PGMConfiguration {
         clone.setDebug(em.getDebug());
         clone.setMaxIteration(em.getMaxIteration());
         clone.setTolerance(em.getTolerance());
+        clone.setNumberOfThreads(em.getNumberOfThreads());
+        clone.setUseWarmStart(em.getUseWarmStart());
+        clone.setWarmStartThreshold(em.getWarmStartThreshold());
         // Handle LBP
         clone.setInferenser(getLBP());
         return clone;
@@ -132,7 +145,14 @@ public class PGMConfiguration {
         target.setTolerance(src.getTolerance());
         target.setUseLogSpace(src.getUseLogSpace());
         target.setDumping(src.getDumping());
+        target.setAdaptiveDamping(src.isAdaptiveDamping());
+        target.setMaxDamping(src.getMaxDamping());
         target.setUpdateViaFactors(src.getUpdateViaFactors());
+        target.setUseCompiledGraph(src.getUseCompiledGraph());
+        target.setSchedule(src.getSchedule());
+        target.setNumberOfThreads(src.getNumberOfThreads());
+        target.setBatchSize(src.getBatchSize());
+        target.setUseTreeSchedule(src.getUseTreeSchedule());
     }
     
     /**
@@ -172,9 +192,63 @@ public class PGMConfiguration {
                 parseLBP(child);
             else if (name.equals("GibbsSampling"))
                 parseGBS(child);
+            else if (name.equals("JunctionTree"))
+                parseJunctionTree(child);
+            else if (name.equals("inferenceMetrics"))
+                parseInferenceMetrics(child);
         }
     }
     
+    /**
+     * Parse the configuration for inference metrics. For example:
+     * <pre>
+     * &lt;inferenceMetrics&gt;
+     *     &lt;file format="JSON_LINES"&gt;metrics.json&lt;/file&gt;
+     *     &lt;jmx&gt;org.reactome.factorgraph:type=InferenceMetrics&lt;/jmx&gt;
+     * &lt;/inferenceMetrics&gt;
+     * </pre>
+     * The format of the file can be CSV (default) or JSON_LINES.
+     */
+    private void parseInferenceMetrics(Element element) throws Exception {
+        List<Element> list = element.getChildren();
+        for (Element elm : list) {
+            String name = elm.getName();
+            String value = elm.getTextTrim();
+            if (name.equals("file")) {
+                String format = elm.getAttributeValue("format");
+                InferenceMetricsWriter writer = new InferenceMetricsWriter(value,
+                                                                           format == null ? InferenceMetricsWriter.Format.CSV : InferenceMetricsWriter.Format.valueOf(format));
+                addInferenceListener(writer);
+            }
+            else if (name.equals("jmx")) {
+                InferenceMetricsAggregator aggregator = new InferenceMetricsAggregator();
+                aggregator.register(value);
+                addInferenceListener(aggregator);
+            }
+        }
+    }
+    
+    /**
+     * Add an InferenceListener, which will be added to all inferencers returned from this object.
+     * @param listener
+     */
+    public void addInferenceListener(InferenceListener listener) {
+        if (inferenceListeners == null)
+            inferenceListeners = new ArrayList<InferenceListener>();
+        inferenceListeners.add(listener);
+    }
+    
+    public List<InferenceListener> getInferenceListeners() {
+        return inferenceListeners;
+    }
+    
+    private void addInferenceListeners(AbstractInferencer inferencer) {
+        if (inferenceListeners == null)
+            return;
+        for (InferenceListener listener : inferenceListeners)
+            inferencer.addInferenceListener(listener);
+    }
+    
     private void parseUseGaussianForGeneExp(Element element) {
         String value = element.getText();
         if (value.equals("true"))
@@ -197,6 +271,29 @@ public class PGMConfiguration {
                 gbs.setBurnin(new Integer(value));
             else if (name.equals("restart"))
                 gbs.setRestart(new Integer(value));
+            else if (name.equals("numberOfThreads"))
+                gbs.setNumberOfThreads(new Integer(value));
+            else if (name.equals("schedule"))
+                gbs.setSchedule(SamplingSchedule.valueOf(value));
+            else if (name.equals("rHatThreshold"))
+                gbs.setRHatThreshold(new Double(value));
+            else if (name.equals("minEffectiveSampleSize"))
+                gbs.setMinEffectiveSampleSize(new Double(value));
+            else if (name.equals("checkInterval"))
+                gbs.setCheckInterval(new Integer(value));
+        }
+    }
+    
+    private void parseJunctionTree(Element element) {
+        junctionTree = new JunctionTreeInference();
+        List<Element> list = element.getChildren();
+        for (Element elm : list) {
+            String name = elm.getName();
+            String value = elm.getText();
+            if (name.equals("debug"))
+                junctionTree.setDebug(new Boolean(value));
+            else if (name.equals("maxCliqueSize"))
+                junctionTree.setMaxCliqueSize(new Integer(value));
         }
     }
     
@@ -220,6 +317,12 @@ public class PGMConfiguration {
                     em.setTolerance(new Double(value));
                 else if (name.equals("debug"))
                     em.setDebug(new Boolean(value));
+                else if (name.equals("numberOfThreads"))
+                    em.setNumberOfThreads(new Integer(value));
+                else if (name.equals("useWarmStart"))
+                    em.setUseWarmStart(new Boolean(value));
+                else if (name.equals("warmStartThreshold"))
+                    em.setWarmStartThreshold(new Double(value));
             }
         }
         else
@@ -238,6 +341,7 @@ public class PGMConfiguration {
             return null;
         LoopyBeliefPropagation rtn = new LoopyBeliefPropagation();
         cloneLBP(rtn, lbp);
+        addInferenceListeners(rtn);
         return rtn;
     }
     
@@ -249,6 +353,22 @@ public class PGMConfiguration {
         rtn.setMaxIteration(gbs.getMaxIteration());
         rtn.setRestart(gbs.getRestart());
         rtn.setBurnin(gbs.getBurnin());
+        rtn.setNumberOfThreads(gbs.getNumberOfThreads());
+        rtn.setSchedule(gbs.getSchedule());
+        rtn.setRHatThreshold(gbs.getRHatThreshold());
+        rtn.setMinEffectiveSampleSize(gbs.getMinEffectiveSampleSize());
+        rtn.setCheckInterval(gbs.getCheckInterval());
+        addInferenceListeners(rtn);
+        return rtn;
+    }
+    
+    public JunctionTreeInference getJunctionTreeInference() {
+        if (junctionTree == null)
+            return null;
+        JunctionTreeInference rtn = new JunctionTreeInference();
+        rtn.setDebug(junctionTree.getDebug());
+        rtn.setMaxCliqueSize(junctionTree.getMaxCliqueSize());
+        addInferenceListeners(rtn);
         return rtn;
     }
     
@@ -269,6 +389,20 @@ public class PGMConfiguration {
                 lbp.setUpdateViaFactors(new Boolean(value));
             else if (name.equals("dumping"))
                 lbp.setDumping(new Double(value));
+            else if (name.equals("adaptiveDamping"))
+                lbp.setAdaptiveDamping(new Boolean(value));
+            else if (name.equals("maxDamping"))
+                lbp.setMaxDamping(new Double(value));
+            else if (name.equals("compiled"))
+                lbp.setUseCompiledGraph(new Boolean(value));
+            else if (name.equals("schedule"))
+                lbp.setSchedule(MessageSchedule.valueOf(value));
+            else if (name.equals("threads"))
+                lbp.setNumberOfThreads(new Integer(value));
+            else if (name.equals("batchSize"))
+                lbp.setBatchSize(new Integer(value));
+            else if (name.equals("treeSchedule"))
+                lbp.setUseTreeSchedule(new Boolean(value));
         }
     }
     
@@ -0,0 +1,458 @@
+/*
+ * Created on Oct 18, 2026
+ *
+ */
+package org.reactome.factorgraph.common;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.reactome.factorgraph.Factor;
+import org.reactome.factorgraph.FactorGraph;
+import org.reactome.factorgraph.Observation;
+import org.reactome.factorgraph.Variable;
+
+/**
+ * Generate synthetic FactorGraphs and observations so that inference and learning can be tested at scale
+ * (from 1k to 1M variables) without a Reactome database or real data. Two families of graphs are supported:
+ * pairwise Markov random fields (Ising for 2 states) whose degrees follow a power law as in the FI network,
+ * and Reactome-like reaction graphs having 3-state variables and high-arity reaction factors. The output of
+ * this class is determined by the seed only.
+ */
+public class SyntheticFactorGraphGenerator {
+    // Values used for reaction factors, which are the same as in FactorValueAssigner
+    private static final double EPSILON_VALUE = 0.001d;
+    private static final int REACTION_STATES = 3;
+
+    private long seed;
+    private Random random;
+    // For pairwise graphs
+    private int states = 2;
+    private double averageDegree = 4.0d;
+    // Exponent of the power-law degree distribution
+    private double degreeExponent = 2.5d;
+    private double coupling = 0.2d;
+    // The fraction of couplings having a negative sign
+    private double frustration = 0.0d;
+    // The standard deviation of random fields. No single-variable factor is created if it is 0.
+    private double field = 0.1d;
+    // For reaction graphs
+    private int maxInputs = 4;
+    private double catalystRatio = 0.5d;
+    private double activatorRatio = 0.1d;
+    private double inhibitorRatio = 0.1d;
+    // The probability of using a new entity for a reaction participant instead of an existing one
+    private double newEntityRatio = 0.5d;
+    // Cached reaction factor values
+    private Map<Integer, double[]> keyToReactionValues;
+
+    public SyntheticFactorGraphGenerator() {
+        this(System.currentTimeMillis());
+    }
+
+    public SyntheticFactorGraphGenerator(long seed) {
+        setSeed(seed);
+        keyToReactionValues = new HashMap<Integer, double[]>();
+    }
+
+    /**
+     * Reset the random generator using the passed seed.
+     * @param seed
+     */
+    public void setSeed(long seed) {
+        this.seed = seed;
+        this.random = new Random(seed);
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    public int getStates() {
+        return states;
+    }
+
+    /**
+     * The number of states for variables in pairwise graphs.
+     * @param states
+     */
+    public void setStates(int states) {
+        if (states < 2)
+            throw new IllegalArgumentException("States should be at least 2.");
+        this.states = states;
+    }
+
+    public double getAverageDegree() {
+        return averageDegree;
+    }
+
+    public void setAverageDegree(double averageDegree) {
+        this.averageDegree = averageDegree;
+    }
+
+    public double getDegreeExponent() {
+        return degreeExponent;
+    }
+
+    /**
+     * Set the exponent gamma in P(k) ~ k^-gamma for pairwise graphs. The value should be greater than 2.
+     * @param degreeExponent
+     */
+    public void setDegreeExponent(double degreeExponent) {
+        if (degreeExponent <= 2.0d)
+            throw new IllegalArgumentException("The degree exponent should be greater than 2.");
+        this.degreeExponent = degreeExponent;
+    }
+
+    public double getCoupling() {
+        return coupling;
+    }
+
+    public void setCoupling(double coupling) {
+        this.coupling = coupling;
+    }
+
+    public double getFrustration() {
+        return frustration;
+    }
+
+    public void setFrustration(double frustration) {
+        this.frustration = frustration;
+    }
+
+    public double getField() {
+        return field;
+    }
+
+    public void setField(double field) {
+        this.field = field;
+    }
+
+    public int getMaxInputs() {
+        return maxInputs;
+    }
+
+    /**
+     * The maximum number of inputs in a reaction. The arity of a reaction factor is up to
+     * maxInputs + 4 (catalyst, activator, inhibitor and output).
+     * @param maxInputs
+     */
+    public void setMaxInputs(int maxInputs) {
+        this.maxInputs = maxInputs;
+    }
+
+    public double getCatalystRatio() {
+        return catalystRatio;
+    }
+
+    public void setCatalystRatio(double catalystRatio) {
+        this.catalystRatio = catalystRatio;
+    }
+
+    public double getActivatorRatio() {
+        return activatorRatio;
+    }
+
+    public void setActivatorRatio(double activatorRatio) {
+        this.activatorRatio = activatorRatio;
+    }
+
+    public double getInhibitorRatio() {
+        return inhibitorRatio;
+    }
+
+    public void setInhibitorRatio(double inhibitorRatio) {
+        this.inhibitorRatio = inhibitorRatio;
+    }
+
+    public double getNewEntityRatio() {
+        return newEntityRatio;
+    }
+
+    public void setNewEntityRatio(double newEntityRatio) {
+        this.newEntityRatio = newEntityRatio;
+    }
+
+    /**
+     * Create a pairwise Markov random field. Edges are sampled by the Chung-Lu model so that expected
+     * degrees follow a power law with the configured exponent and average degree. The pairwise factor
+     * is exp(J * (1 - 2|a - b| / (states - 1))) for states a and b, which is the Ising model for 2 states.
+     * J has the configured coupling with a negative sign for a fraction of edges. If field is not 0,
+     * a single-variable factor is created for each variable so that all variables are contained by the
+     * returned graph. Otherwise, variables having no edge are not contained.
+     * @param variables
+     * @return
+     */
+    public FactorGraph createPairwiseGraph(int variables) {
+        List<Variable> varList = createVariables("V", variables, states);
+        long[] edges = samplePowerLawEdges(variables);
+        Set<Factor> factors = new LinkedHashSet<Factor>();
+        for (long edge : edges) {
+            Variable var1 = varList.get((int) (edge >>> 32));
+            Variable var2 = varList.get((int) edge);
+            double j = random.nextDouble() < frustration ? -coupling : coupling;
+            Factor factor = new Factor();
+            factor.setName(var1.getName() + " - " + var2.getName());
+            factor.setVariables(new ArrayList<Variable>(Arrays.asList(var1, var2)));
+            double[] values = factor.getValues();
+            for (int a = 0; a < states; a++) {
+                for (int b = 0; b < states; b++)
+                    values[a + b * states] = Math.exp(j * getSpin(Math.abs(a - b)));
+            }
+            factors.add(factor);
+        }
+        if (field != 0.0d) {
+            for (Variable var : varList) {
+                double h = random.nextGaussian() * field;
+                Factor factor = new Factor();
+                factor.setName(var.getName());
+                factor.setVariables(new ArrayList<Variable>(Collections.singletonList(var)));
+                double[] values = factor.getValues();
+                for (int a = 0; a < states; a++)
+                    values[a] = Math.exp(h * getSpin(a));
+                factors.add(factor);
+            }
+        }
+        return createFactorGraph("Pairwise_" + variables, varList, factors);
+    }
+
+    /**
+     * Map a state (or a difference of states) in [0, states - 1] to [1, -1].
+     */
+    private double getSpin(int state) {
+        return 1.0d - 2.0d * state / (states - 1);
+    }
+
+    /**
+     * Sample edges using the Chung-Lu model: both ends of an edge are drawn with probabilities
+     * proportional to expected degrees, w_i ~ (i + 1)^(-1 / (gamma - 1)). Self-loops and duplicated
+     * edges are removed. An edge is encoded as a long: the smaller index in the higher 32 bits.
+     */
+    private long[] samplePowerLawEdges(int variables) {
+        double[] cumWeights = new double[variables];
+        double exponent = -1.0d / (degreeExponent - 1.0d);
+        double total = 0.0d;
+        for (int i = 0; i < variables; i++) {
+            total += Math.pow(i + 1, exponent);
+            cumWeights[i] = total;
+        }
+        int edgeCount = (int) Math.round(variables * averageDegree / 2.0d);
+        long[] edges = new long[edgeCount];
+        int size = 0;
+        for (int i = 0; i < edgeCount; i++) {
+            int var1 = sampleIndex(cumWeights, total);
+            int var2 = sampleIndex(cumWeights, total);
+            if (var1 == var2)
+                continue;
+            edges[size ++] = ((long) Math.min(var1, var2) << 32) | Math.max(var1, var2);
+        }
+        Arrays.sort(edges, 0, size);
+        // Remove duplicates
+        int unique = 0;
+        for (int i = 0; i < size; i++) {
+            if (unique == 0 || edges[i] != edges[unique - 1])
+                edges[unique ++] = edges[i];
+        }
+        // Edges are sorted by indices. Shuffle them so that the order of factors is not correlated
+        // with degrees.
+        for (int i = unique - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            long tmp = edges[i];
+            edges[i] = edges[j];
+            edges[j] = tmp;
+        }
+        return Arrays.copyOf(edges, unique);
+    }
+
+    private int sampleIndex(double[] cumWeights, double total) {
+        double value = random.nextDouble() * total;
+        int index = Arrays.binarySearch(cumWeights, value);
+        if (index < 0)
+            index = -index - 1;
+        return Math.min(index, cumWeights.length - 1);
+    }
+
+    /**
+     * Create a Reactome-like reaction graph having 3-state variables. Reactions are added until the
+     * number of variables reaches the passed number. Each reaction has a factor containing 1 to maxInputs
+     * inputs, an optional catalyst, activator and inhibitor, and an output variable. Factor values follow
+     * the rule in FactorValueAssigner: the expected output state is the minimum state of inputs, catalyst
+     * and activator, capped by the reversed state of the inhibitor. The output variable is linked to one or
+     * two output entities by pairwise factors. Participants are picked from existing entities with
+     * probabilities proportional to their usages, so that hubs (e.g. ATP) emerge.
+     * @param variables
+     * @return
+     */
+    public FactorGraph createReactionGraph(int variables) {
+        List<Variable> varList = new ArrayList<Variable>(variables);
+        // An entity is added once for each use so that picking is preferential
+        List<Variable> entityUsages = new ArrayList<Variable>();
+        Set<Factor> factors = new LinkedHashSet<Factor>();
+        int reaction = 0;
+        while (varList.size() < variables) {
+            List<Variable> rxtVars = new ArrayList<Variable>();
+            int inputs = 1;
+            while (inputs < maxInputs && random.nextDouble() < 0.5d)
+                inputs ++;
+            for (int i = 0; i < inputs; i++)
+                rxtVars.add(pickEntity(rxtVars, varList, entityUsages));
+            if (random.nextDouble() < catalystRatio)
+                rxtVars.add(pickEntity(rxtVars, varList, entityUsages));
+            if (random.nextDouble() < activatorRatio)
+                rxtVars.add(pickEntity(rxtVars, varList, entityUsages));
+            int mins = rxtVars.size();
+            boolean hasInhibitor = random.nextDouble() < inhibitorRatio;
+            if (hasInhibitor)
+                rxtVars.add(pickEntity(rxtVars, varList, entityUsages));
+            Variable outputVar = createVariable("R" + reaction + "_OUTPUT", REACTION_STATES, varList.size());
+            varList.add(outputVar);
+            rxtVars.add(outputVar);
+            Factor factor = new Factor();
+            factor.setName("Reaction " + reaction);
+            factor.setVariables(rxtVars);
+            factor.setValues(getReactionValues(mins, hasInhibitor).clone());
+            factors.add(factor);
+            // Link to output entities
+            int outputs = random.nextDouble() < 0.3d ? 2 : 1;
+            for (int i = 0; i < outputs; i++) {
+                Variable entity = pickEntity(Collections.singletonList(outputVar), varList, entityUsages);
+                Factor outputFactor = new Factor();
+                outputFactor.setName("R" + reaction + " -> " + entity.getName());
+                outputFactor.setVariables(new ArrayList<Variable>(Arrays.asList(entity, outputVar)));
+                outputFactor.setValues(getReactionValues(1, false).clone());
+                factors.add(outputFactor);
+            }
+            reaction ++;
+        }
+        return createFactorGraph("Reaction_" + variables, varList, factors);
+    }
+
+    /**
+     * Pick an existing entity not in the excluded list, or create a new one.
+     */
+    private Variable pickEntity(List<Variable> excluded,
+                                List<Variable> varList,
+                                List<Variable> entityUsages) {
+        Variable entity = null;
+        if (entityUsages.size() > 0 && random.nextDouble() >= newEntityRatio) {
+            // Try a few times in case an existing entity has been used
+            for (int i = 0; i < 5 && entity == null; i++) {
+                Variable candidate = entityUsages.get(random.nextInt(entityUsages.size()));
+                if (!excluded.contains(candidate))
+                    entity = candidate;
+            }
+        }
+        if (entity == null) {
+            entity = createVariable("E" + varList.size(), REACTION_STATES, varList.size());
+            varList.add(entity);
+        }
+        entityUsages.add(entity);
+        return entity;
+    }
+
+    /**
+     * Get values for a reaction factor having the passed number of min-labeled variables (inputs,
+     * catalyst and activator) listed first, an optional inhibitor and the output as the last variable.
+     */
+    private double[] getReactionValues(int mins,
+                                       boolean hasInhibitor) {
+        Integer key = mins * 2 + (hasInhibitor ? 1 : 0);
+        double[] values = keyToReactionValues.get(key);
+        if (values != null)
+            return values;
+        double major = 1.0d - EPSILON_VALUE;
+        double minor = EPSILON_VALUE / 2.0d;
+        int size = mins + (hasInhibitor ? 1 : 0) + 1;
+        values = new double[(int) Math.pow(REACTION_STATES, size)];
+        for (int i = 0; i < values.length; i++) {
+            // The first variable has stride 1
+            int index = i;
+            int expected = REACTION_STATES - 1;
+            for (int j = 0; j < mins; j++) {
+                expected = Math.min(expected, index % REACTION_STATES);
+                index /= REACTION_STATES;
+            }
+            if (hasInhibitor) {
+                expected = Math.min(expected, REACTION_STATES - 1 - index % REACTION_STATES);
+                index /= REACTION_STATES;
+            }
+            values[i] = index == expected ? major : minor;
+        }
+        keyToReactionValues.put(key, values);
+        return values;
+    }
+
+    /**
+     * Create a list of observations. A random subset of variables having the passed ratio is observed
+     * in all samples, which is similar to genes profiled in a data set, and states are assigned randomly.
+     * For a reaction graph, only entity variables are observed.
+     * @param fg
+     * @param samples
+     * @param observedRatio
+     * @return
+     */
+    public List<Observation<Integer>> createObservations(FactorGraph fg,
+                                                         int samples,
+                                                         double observedRatio) {
+        List<Variable> candidates = new ArrayList<Variable>();
+        for (Variable var : fg.getVariables()) {
+            if (!var.getName().endsWith("_OUTPUT"))
+                candidates.add(var);
+        }
+        // Make the order independent of the HashSet in the FactorGraph
+        Collections.sort(candidates, (v1, v2) -> Integer.compare(Integer.parseInt(v1.getId()),
+                                                                 Integer.parseInt(v2.getId())));
+        Collections.shuffle(candidates, random);
+        int observed = (int) Math.round(candidates.size() * observedRatio);
+        List<Variable> observedVars = candidates.subList(0, observed);
+        List<Observation<Integer>> observations = new ArrayList<Observation<Integer>>(samples);
+        for (int i = 0; i < samples; i++) {
+            Observation<Integer> observation = new Observation<Integer>();
+            observation.setName("Sample" + i);
+            for (Variable var : observedVars)
+                observation.addAssignment(var, random.nextInt(var.getStates()));
+            observations.add(observation);
+        }
+        return observations;
+    }
+
+    private List<Variable> createVariables(String prefix,
+                                           int variables,
+                                           int states) {
+        List<Variable> varList = new ArrayList<Variable>(variables);
+        for (int i = 0; i < variables; i++)
+            varList.add(createVariable(prefix + i, states, i));
+        return varList;
+    }
+
+    private Variable createVariable(String name,
+                                    int states,
+                                    int id) {
+        Variable var = new Variable(states);
+        var.setName(name);
+        var.setId(id);
+        return var;
+    }
+
+    private FactorGraph createFactorGraph(String name,
+                                          List<Variable> varList,
+                                          Set<Factor> factors) {
+        FactorGraph fg = new FactorGraph();
+        fg.setName(name + "_" + seed);
+        fg.setFactors(factors);
+        fg.validatVariables();
+        // Don't call setIdsInFactors(), which depends on the order of a HashSet.
+        int id = varList.size();
+        for (Factor factor : factors)
+            factor.setId(id ++);
+        return fg;
+    }
+
+}
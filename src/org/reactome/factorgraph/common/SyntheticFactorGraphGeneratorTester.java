@@ -0,0 +1,186 @@
+/*
+ * Created on Oct 18, 2026
+ *
+ */
+package org.reactome.factorgraph.common;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.reactome.factorgraph.Factor;
+import org.reactome.factorgraph.FactorGraph;
+import org.reactome.factorgraph.InferenceListener;
+import org.reactome.factorgraph.InferenceMetrics;
+import org.reactome.factorgraph.InferenceMetrics.Phase;
+import org.reactome.factorgraph.LoopyBeliefPropagation;
+import org.reactome.factorgraph.Observation;
+import org.reactome.factorgraph.Variable;
+
+/**
+ * Tests for SyntheticFactorGraphGenerator, which cannot be placed in the generator itself since
+ * JUnit requires a test class to have one constructor only.
+ */
+public class SyntheticFactorGraphGeneratorTester {
+    private static final long SEED = 1234L;
+
+    public SyntheticFactorGraphGeneratorTester() {
+    }
+
+    @Test
+    public void testPairwiseGraph() {
+        SyntheticFactorGraphGenerator generator = new SyntheticFactorGraphGenerator(SEED);
+        int size = 1000;
+        FactorGraph fg = generator.createPairwiseGraph(size);
+        // Each variable has a single-variable factor for its field
+        Assert.assertEquals(size, fg.getVariables().size());
+        int maxEdges = (int) Math.round(size * generator.getAverageDegree() / 2.0d);
+        int edges = 0;
+        for (Factor factor : fg.getFactors()) {
+            int arity = factor.getVariables().size();
+            Assert.assertTrue("Wrong arity: " + arity, arity == 1 || arity == 2);
+            if (arity == 2)
+                edges ++;
+        }
+        Assert.assertEquals(size + edges, fg.getFactors().size());
+        // Self-loops and duplicated edges are removed from sampled edges
+        Assert.assertTrue("Too many edges: " + edges, edges <= maxEdges);
+        Assert.assertTrue("Too few edges: " + edges, edges > maxEdges / 2);
+        int maxDegree = 0;
+        for (Variable var : fg.getVariables()) {
+            int degree = var.getFactors().size() - 1;
+            Assert.assertTrue(degree >= 0 && degree < size);
+            maxDegree = Math.max(maxDegree, degree);
+        }
+        // Hubs are expected from the power-law degree distribution
+        double averageDegree = 2.0d * edges / size;
+        System.out.println(fg.getName() + ": edges " + edges + ", average degree " + averageDegree + ", max degree " + maxDegree);
+        Assert.assertTrue("No hub: " + maxDegree, maxDegree > 5 * averageDegree);
+        assertSameGraph(fg, new SyntheticFactorGraphGenerator(SEED).createPairwiseGraph(size));
+    }
+
+    @Test
+    public void testReactionGraph() {
+        SyntheticFactorGraphGenerator generator = new SyntheticFactorGraphGenerator(SEED);
+        int size = 1000;
+        FactorGraph fg = generator.createReactionGraph(size);
+        // A reaction adds at most maxInputs + 3 (catalyst, activator and inhibitor) new entities,
+        // the output variable and 2 output entities
+        int maxNewVariables = generator.getMaxInputs() + 6;
+        int variables = fg.getVariables().size();
+        Assert.assertTrue("Wrong number of variables: " + variables,
+                          variables >= size && variables < size + maxNewVariables);
+        int reactions = 0;
+        for (Variable var : fg.getVariables()) {
+            Assert.assertEquals(3, var.getStates());
+            Assert.assertTrue(var.getFactors().size() > 0);
+            if (var.getName().endsWith("_OUTPUT"))
+                reactions ++;
+        }
+        // One factor for a reaction, and one or two factors for output entities
+        int factors = fg.getFactors().size();
+        Assert.assertTrue("Wrong number of factors: " + factors,
+                          factors >= 2 * reactions && factors <= 3 * reactions);
+        for (Factor factor : fg.getFactors()) {
+            int arity = factor.getVariables().size();
+            Assert.assertTrue("Wrong arity: " + arity, arity >= 2 && arity <= generator.getMaxInputs() + 4);
+        }
+        assertSameGraph(fg, new SyntheticFactorGraphGenerator(SEED).createReactionGraph(size));
+    }
+
+    @Test
+    public void testObservations() {
+        SyntheticFactorGraphGenerator generator = new SyntheticFactorGraphGenerator(SEED);
+        FactorGraph fg = generator.createReactionGraph(1000);
+        List<Observation<Integer>> observations = generator.createObservations(fg, 2, 0.1d);
+        Assert.assertEquals(2, observations.size());
+        for (Observation<Integer> observation : observations) {
+            for (Variable var : observation.getVariableToAssignment().keySet())
+                Assert.assertTrue("Output variables should not be observed: " + var, !var.getName().endsWith("_OUTPUT"));
+        }
+        Assert.assertEquals(observations.get(0).getVariableToAssignment().keySet(),
+                            observations.get(1).getVariableToAssignment().keySet());
+    }
+
+    private void assertSameGraph(FactorGraph fg1, FactorGraph fg2) {
+        Assert.assertEquals(fg1.getName(), fg2.getName());
+        Assert.assertEquals(fg1.getFactors().size(), fg2.getFactors().size());
+        // Factors are kept in LinkedHashSets in the generation order
+        List<Factor> factors2 = new ArrayList<Factor>(fg2.getFactors());
+        int i = 0;
+        for (Factor factor1 : fg1.getFactors()) {
+            Factor factor2 = factors2.get(i ++);
+            Assert.assertEquals(factor1.getName(), factor2.getName());
+            Assert.assertEquals(factor1.getVariables().size(), factor2.getVariables().size());
+            for (int j = 0; j < factor1.getVariables().size(); j++)
+                Assert.assertEquals(factor1.getVariables().get(j).getName(), factor2.getVariables().get(j).getName());
+            Assert.assertTrue("Different values for " + factor1.getName(),
+                              Arrays.equals(factor1.getValues(), factor2.getValues()));
+        }
+    }
+
+    /**
+     * Print generation time and memory for large graphs, and LBP metrics for graphs up to 10k variables.
+     */
+    @Test
+    public void testGenerateGraphs() throws Exception {
+        int[] sizes = new int[] {1000, 10000, 100000};
+        Runtime runtime = Runtime.getRuntime();
+        for (int size : sizes) {
+            for (int type = 0; type < 2; type++) {
+                SyntheticFactorGraphGenerator generator = new SyntheticFactorGraphGenerator(SEED);
+                System.gc();
+                long memory = runtime.totalMemory() - runtime.freeMemory();
+                long time = System.currentTimeMillis();
+                FactorGraph fg = type == 0 ? generator.createPairwiseGraph(size) : generator.createReactionGraph(size);
+                time = System.currentTimeMillis() - time;
+                System.gc();
+                memory = runtime.totalMemory() - runtime.freeMemory() - memory;
+                int maxDegree = 0;
+                for (Variable var : fg.getVariables())
+                    maxDegree = Math.max(maxDegree, var.getFactors().size());
+                int maxArity = 0;
+                for (Factor factor : fg.getFactors())
+                    maxArity = Math.max(maxArity, factor.getVariables().size());
+                System.out.println(fg.getName() + ": variables " + fg.getVariables().size() +
+                                   ", factors " + fg.getFactors().size() +
+                                   ", max degree " + maxDegree +
+                                   ", max arity " + maxArity +
+                                   ", generation " + time + " ms, memory " + memory / (1024 * 1024) + " MB");
+                Assert.assertTrue(fg.getVariables().size() >= size);
+                if (size > 10000)
+                    continue;
+                List<Observation<Integer>> observations = generator.createObservations(fg, 2, 0.1d);
+                LoopyBeliefPropagation lbp = new LoopyBeliefPropagation();
+                lbp.setUseCompiledGraph(true);
+                lbp.setFactorGraph(fg);
+                lbp.addInferenceListener(new InferenceListener() {
+                    @Override
+                    public void iterationFinished(InferenceMetrics metrics, int iteration, double maxDiff) {
+                    }
+
+                    @Override
+                    public void phaseFinished(InferenceMetrics metrics, Phase phase, long nanos) {
+                    }
+
+                    @Override
+                    public void inferenceFinished(InferenceMetrics metrics) {
+                        System.out.println("\t" + metrics);
+                    }
+
+                    @Override
+                    public void logZCalculated(InferenceMetrics metrics, long nanos) {
+                    }
+                });
+                lbp.runInference();
+                for (Observation<Integer> observation : observations) {
+                    lbp.setObservation(observation);
+                    lbp.runInference();
+                }
+            }
+        }
+    }
+
+}
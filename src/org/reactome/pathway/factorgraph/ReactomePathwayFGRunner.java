@@ -802,6 +802,9 @@ public class ReactomePathwayFGRunner {
                          varToPrior,
                          observation);
         logger.info("Done inference on base for " + pathway);
+        // Samples should be close to the base. Use its messages to start inference.
+        // If LBP failed for the base, null is returned and nothing will change.
+        lbp.setWarmStartMessages(lbp.createMessageSnapshot());
         
         System.out.println("Variable\tBase");
         for (Variable var : lbp.getFactorGraph().getVariables()) {